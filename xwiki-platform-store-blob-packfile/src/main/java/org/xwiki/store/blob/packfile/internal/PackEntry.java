@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+/**
+ * Where the content of a blob is in the pack files.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class PackEntry
+{
+    /** The number of the pack file. */
+    private final int pack;
+
+    /** The position of the first byte of content in the pack file. */
+    private final long offset;
+
+    /** The number of bytes of content. */
+    private final long length;
+
+    /** The hex encoded SHA-256 digest of the content. */
+    private final String digest;
+
+    /**
+     * The Constructor.
+     *
+     * @param pack the number of the pack file.
+     * @param offset the position of the first byte of content in the pack file.
+     * @param length the number of bytes of content.
+     * @param digest the hex encoded SHA-256 digest of the content.
+     */
+    PackEntry(final int pack, final long offset, final long length, final String digest)
+    {
+        this.pack = pack;
+        this.offset = offset;
+        this.length = length;
+        this.digest = digest;
+    }
+
+    /** @return the number of the pack file. */
+    int getPack()
+    {
+        return this.pack;
+    }
+
+    /** @return the position of the first byte of content in the pack file. */
+    long getOffset()
+    {
+        return this.offset;
+    }
+
+    /** @return the number of bytes of content. */
+    long getLength()
+    {
+        return this.length;
+    }
+
+    /** @return the hex encoded SHA-256 digest of the content. */
+    String getDigest()
+    {
+        return this.digest;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobInfo;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.store.blob.BlobStreamHandler;
+
+/**
+ * A blob store which keeps blobs in an append-only log of pack files on the local disk.
+ * It does not use the context of the transaction so it's runnables can run in a transaction of any store,
+ * blob changes only become visible, and durable, when that transaction commits.
+ * Select it for attachment content with store.attachments.datanucleus.blobStore=packfile.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@Component
+@Named("packfile")
+@Singleton
+public class PackFileBlobStore implements BlobStore<Object>, Initializable, Disposable
+{
+    /** Used to report failed compactions. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackFileBlobStore.class);
+
+    /** The directory to keep the store in, defaults to "blobs" in the permanent directory. */
+    private static final String DIRECTORY_PROPERTY = "store.blob.packfile.directory";
+
+    /** The size in bytes past which a new pack file is started. */
+    private static final String MAX_PACK_SIZE_PROPERTY = "store.blob.packfile.maxPackSize";
+
+    /** Seconds between compactions of the pack files, 0 to disable compaction. */
+    private static final String COMPACTION_INTERVAL_PROPERTY = "store.blob.packfile.compactionInterval";
+
+    /** Seconds after the last part after which an unfinished staged upload is removed. */
+    private static final String UPLOAD_EXPIRY_PROPERTY = "store.blob.packfile.uploadExpiry";
+
+    /** The source of the configuration for the store. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Used to find the permanent directory to put the store in. */
+    @Inject
+    private Environment environment;
+
+    /** The log of blob contents. */
+    private PackFileStore store;
+
+    /** Staged uploads in progress. */
+    private PackUploads uploads;
+
+    /** The directory for content being saved which does not fit in memory. */
+    private File spoolDirectory;
+
+    /** The executor which runs compaction, null if compaction is disabled. */
+    private ScheduledExecutorService compactionExecutor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        final String dirName = this.configuration.getProperty(DIRECTORY_PROPERTY, String.class);
+        final File dir = (dirName != null)
+            ? new File(dirName) : new File(this.environment.getPermanentDirectory(), "blobs");
+        final long maxPackSize = this.configuration.getProperty(MAX_PACK_SIZE_PROPERTY, 256L << 20);
+        try {
+            this.spoolDirectory = new File(dir, "spool");
+            // Anything left here was being saved when the store was stopped.
+            FileUtils.deleteDirectory(this.spoolDirectory);
+            FileUtils.forceMkdir(this.spoolDirectory);
+            this.store = new PackFileStore(new File(dir, "packs"), maxPackSize);
+            this.uploads = new PackUploads(this.store, new File(dir, "uploads"));
+        } catch (IOException e) {
+            throw new InitializationException("Failed to open the pack file blob store in [" + dir + "]", e);
+        }
+
+        final long interval = this.configuration.getProperty(COMPACTION_INTERVAL_PROPERTY, 600L);
+        final long uploadExpiry = this.configuration.getProperty(UPLOAD_EXPIRY_PROPERTY, 86400L) * 1000;
+        if (interval > 0) {
+            this.compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "PackFileBlobStore compaction");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            this.compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try {
+                        PackFileBlobStore.this.uploads.expire(uploadExpiry);
+                        PackFileBlobStore.this.store.compact();
+                    } catch (Exception e) {
+                        // Keep the schedule, the next run will try again.
+                        LOGGER.warn("Failed to compact the pack file blob store", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.compactionExecutor != null) {
+            this.compactionExecutor.shutdownNow();
+        }
+        try {
+            this.store.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close the pack file blob store", e);
+        }
+    }
+
+    @Override
+    public TransactionRunnable<Object> getSaveRunnable(final String id, final InputStream readFrom)
+    {
+        return new PackSaveTransactionRunnable(this.store, id, readFrom, null, this.spoolDirectory);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getSaveRunnable(final String id,
+                                                                   final InputStream readFrom,
+                                                                   final long expectedLength)
+    {
+        return this.getSaveRunnable(id, readFrom);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getSaveRunnable(final String id,
+                                                                   final ReadableByteChannel readFrom,
+                                                                   final long expectedLength)
+    {
+        return new PackSaveTransactionRunnable(this.store, id, null, readFrom, this.spoolDirectory);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getLoadRunnable(final String id, final OutputStream writeTo)
+    {
+        return this.getLoadRunnable(id, 0, Long.MAX_VALUE, writeTo);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getLoadRunnable(final String id,
+                                                                   final long offset,
+                                                                   final long length,
+                                                                   final OutputStream writeTo)
+    {
+        return this.getLoadRunnable(id, offset, length, Channels.newChannel(writeTo));
+    }
+
+    @Override
+    public TransactionRunnable<Object> getLoadRunnable(final String id,
+                                                                   final long offset,
+                                                                   final long length,
+                                                                   final WritableByteChannel writeTo)
+    {
+        return new PackLoadTransactionRunnable(this.store, id, offset, length, writeTo);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getLoadRunnable(final String id, final BlobStreamHandler handler)
+    {
+        return new PackLoadTransactionRunnable(this.store, id, handler);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getStatRunnable(final String id, final BlobInfo outputInfo)
+    {
+        return new TransactionRunnable<Object>() {
+            @Override
+            protected void onRun()
+            {
+                final PackEntry entry = PackFileBlobStore.this.store.get(id);
+                outputInfo.setExists(entry != null);
+                if (entry != null) {
+                    outputInfo.setLength(entry.getLength());
+                    outputInfo.setDigest(entry.getDigest());
+                }
+            }
+        };
+    }
+
+    @Override
+    public TransactionRunnable<Object> getDeleteRunnable(final String id)
+    {
+        return this.getDeleteAllRunnable(Collections.singletonList(id));
+    }
+
+    @Override
+    public TransactionRunnable<Object> getDeleteAllRunnable(final Collection<String> ids)
+    {
+        final List<String> toDelete = new ArrayList<String>(ids);
+        return new TransactionRunnable<Object>() {
+            @Override
+            protected void onCommit() throws IOException
+            {
+                PackFileBlobStore.this.store.delete(toDelete);
+            }
+        };
+    }
+
+    @Override
+    public TransactionRunnable<Object> getListAllRunnable(final List<String> outputList)
+    {
+        return this.getListRunnable("", null, Integer.MAX_VALUE, outputList);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getListRunnable(final String prefix,
+                                                                   final String after,
+                                                                   final int limit,
+                                                                   final List<String> outputList)
+    {
+        return new TransactionRunnable<Object>() {
+            @Override
+            protected void onRun()
+            {
+                PackFileBlobStore.this.store.list(prefix, after, limit, outputList);
+            }
+        };
+    }
+
+    @Override
+    public TransactionRunnable<Object> getStartUploadRunnable(final String id,
+                                                                          final List<String> outputUploadId)
+    {
+        return this.uploads.getStartRunnable(id, outputUploadId);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getUploadPartRunnable(final String uploadId,
+                                                                         final int partNumber,
+                                                                         final InputStream readFrom)
+    {
+        return this.uploads.getPartRunnable(uploadId, partNumber, readFrom);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getListUploadPartsRunnable(final String uploadId,
+                                                                              final List<Integer> outputList)
+    {
+        return this.uploads.getListPartsRunnable(uploadId, outputList);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getCompleteUploadRunnable(final String uploadId,
+                                                                             final int partCount)
+    {
+        return this.uploads.getCompleteRunnable(uploadId, partCount);
+    }
+
+    @Override
+    public TransactionRunnable<Object> getAbortUploadRunnable(final String uploadId)
+    {
+        return this.uploads.getAbortRunnable(uploadId);
+    }
+}
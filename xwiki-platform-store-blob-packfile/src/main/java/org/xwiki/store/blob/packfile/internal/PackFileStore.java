@@ -0,0 +1,967 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.xwiki.store.blob.BlobStreamHandler;
+
+/**
+ * An append-only log of blob contents in a directory of pack files.
+ * <p>
+ * Every change is a record appended to the newest pack file. A save appends a PUT record with the
+ * content and later a COMMIT record which makes it visible, a delete appends a DELETE record.
+ * A PUT without a COMMIT is the remains of a save which was rolled back or interrupted, it is ignored.
+ * The index of where every blob is kept in memory and rebuilt by replaying the pack files in order
+ * when the store is opened, a record cut short by a crash at the end of a pack is truncated.
+ * <p>
+ * Space in the log is reserved and record headers are written holding this object, content is
+ * copied into its reserved space with positional writes without holding it, so a large save does
+ * not hold up other appends. Commits are made durable by forcing the pack file to disk,
+ * concurrent commits share one force rather than each doing their own.
+ * Content is read from memory mappings of the pack files so it is served from the page cache.
+ * <p>
+ * Space taken by replaced and deleted content is reclaimed by {@link #compact()} which copies
+ * the live content of mostly dead pack files to the end of the log and then removes them.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class PackFileStore
+{
+    /** The first four bytes of every record, "XBLB". */
+    private static final int MAGIC = 0x58424c42;
+
+    /** A record containing content. */
+    private static final byte PUT = 1;
+
+    /** A record which makes the content of a PUT record the content of a blob. */
+    private static final byte COMMIT = 2;
+
+    /** A record which removes a blob. */
+    private static final byte DELETE = 3;
+
+    /** The length of a SHA-256 digest. */
+    private static final int DIGEST_LENGTH = 32;
+
+    /** The name of the pack files. */
+    private static final Pattern PACK_NAME = Pattern.compile("^pack-([0-9]+)\\.dat$");
+
+    /** Content shorter than this is read with a plain read rather than a mapping. */
+    private static final int MAP_THRESHOLD = 65536;
+
+    /** The largest region which is mapped at once. */
+    private static final long MAP_SLICE = 64L * 1024 * 1024;
+
+    /** Pack files where less than this proportion of the content is live are compacted. */
+    private static final double COMPACTION_RATIO = 0.5;
+
+    /** The directory containing the pack files. */
+    private final File directory;
+
+    /** The size past which a new pack file is started. */
+    private final long maxPackSize;
+
+    /** The location of the content of every blob, guarded by this. */
+    private final TreeMap<String, PackEntry> index = new TreeMap<String, PackEntry>();
+
+    /** The number of live bytes of content in each pack file, guarded by this. */
+    private final Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+
+    /** The number of saves with content in each pack file which are not yet committed, guarded by this. */
+    private final Map<Integer, Integer> pendingPuts = new HashMap<Integer, Integer>();
+
+    /** The open channel of every pack file. */
+    private final ConcurrentSkipListMap<Integer, FileChannel> packs =
+        new ConcurrentSkipListMap<Integer, FileChannel>();
+
+    /**
+     * Held for reading while content is read from a pack file, for writing while a pack file is removed.
+     * Never taken while holding this, so a slow reader never holds up appends. It is not held while
+     * a stream handler runs, the handler reads through a channel of its own.
+     */
+    private final ReadWriteLock packsLock = new ReentrantReadWriteLock();
+
+    /** Held while forcing, so that only one thread forces at once. */
+    private final Object syncLock = new Object();
+
+    /** The number of the pack file which records are appended to, guarded by this. */
+    private int current;
+
+    /** The position in the current pack file where the next record goes, guarded by this. */
+    private long end;
+
+    /** The number of records appended, guarded by this. */
+    private long appended;
+
+    /** The number of records which are known to be on disk, guarded by syncLock. */
+    private long synced;
+
+    /**
+     * The Constructor.
+     * Replays the existing pack files to build the index.
+     *
+     * @param directory the directory containing the pack files, created if missing.
+     * @param maxPackSize the size past which a new pack file is started.
+     * @throws IOException if the pack files cannot be read.
+     */
+    PackFileStore(final File directory, final long maxPackSize) throws IOException
+    {
+        this.directory = directory;
+        this.maxPackSize = maxPackSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the pack file directory [" + directory + "]");
+        }
+        final TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        for (final File file : directory.listFiles()) {
+            final Matcher m = PACK_NAME.matcher(file.getName());
+            if (m.matches()) {
+                files.put(Integer.valueOf(m.group(1)), file);
+            }
+        }
+        final Map<String, PackEntry> puts = new HashMap<String, PackEntry>();
+        for (final Map.Entry<Integer, File> e : files.entrySet()) {
+            this.replay(e.getKey(), e.getValue(), puts, e.getKey().equals(files.lastKey()));
+        }
+        for (final Map.Entry<Integer, File> e : files.entrySet()) {
+            this.packs.put(e.getKey(), new RandomAccessFile(e.getValue(), "rw").getChannel());
+        }
+        for (final PackEntry entry : this.index.values()) {
+            this.addLive(entry.getPack(), entry.getLength());
+        }
+        if (this.packs.isEmpty()) {
+            this.openPack(1);
+        } else {
+            this.current = this.packs.lastKey();
+            this.end = this.packs.get(this.current).size();
+        }
+    }
+
+    /**
+     * Replay the records of a pack file into the index.
+     *
+     * @param pack the number of the pack file.
+     * @param file the pack file.
+     * @param puts every PUT record seen so far by the location of its content, COMMIT records refer to them.
+     * @param last true if this is the last pack file, a torn record at its end is truncated.
+     * @throws IOException if the pack file cannot be read or is corrupt.
+     */
+    private void replay(final int pack, final File file, final Map<String, PackEntry> puts, final boolean last)
+        throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long recordStart = 0;
+        long consumed = 0;
+        try {
+            for (;;) {
+                recordStart = consumed;
+                final int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                final byte type = (magic == MAGIC) ? in.readByte() : 0;
+                if (type != PUT && type != COMMIT && type != DELETE) {
+                    if (!last) {
+                        throw new IOException("Corrupt record at [" + recordStart + "] in [" + file + "]");
+                    }
+                    // A crash can leave the end of the last pack zero filled or half written. Record headers
+                    // are written in order and every forced record was preceded by a force of all those
+                    // before it, so nothing from here on was ever committed.
+                    in.close();
+                    truncate(file, recordStart);
+                    return;
+                }
+                final String id = in.readUTF();
+                consumed = recordStart + 4 + 1 + 2 + utfLength(id);
+                if (type == PUT) {
+                    final long length = in.readLong();
+                    final long offset = consumed + 8;
+                    IOUtils.skipFully(in, length);
+                    final byte[] digest = new byte[DIGEST_LENGTH];
+                    in.readFully(digest);
+                    puts.put(location(pack, offset), new PackEntry(pack, offset, length, toHex(digest)));
+                    consumed = offset + length + DIGEST_LENGTH;
+                } else if (type == COMMIT) {
+                    final int putPack = in.readInt();
+                    final long putOffset = in.readLong();
+                    final PackEntry entry = puts.get(location(putPack, putOffset));
+                    if (entry != null) {
+                        this.index.put(id, entry);
+                    }
+                    consumed += 4 + 8;
+                } else {
+                    this.index.remove(id);
+                }
+            }
+        } catch (EOFException e) {
+            // The store was stopped in the middle of an append, nothing after this was committed.
+            // This can be the end of an older pack, content is still copied into a pack after it
+            // stops being the one which records are appended to.
+            in.close();
+            truncate(file, recordStart);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Cut a pack file short after the last whole record.
+     *
+     * @param file the pack file.
+     * @param length the length to cut the file to.
+     * @throws IOException if the file cannot be truncated.
+     */
+    private static void truncate(final File file, final long length) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param id the id of a blob.
+     * @return the location of the content of the blob or null if there is no such blob.
+     */
+    synchronized PackEntry get(final String id)
+    {
+        return this.index.get(id);
+    }
+
+    /**
+     * @param prefix only ids starting with this are listed.
+     * @param after only ids greater than this are listed, null to start at the beginning.
+     * @param limit the greatest number of ids to list.
+     * @param outputList the list to add the ids to.
+     */
+    synchronized void list(final String prefix, final String after, final int limit, final List<String> outputList)
+    {
+        final boolean fromAfter = after != null && after.compareTo(prefix) >= 0;
+        int count = 0;
+        for (final String id : this.index.tailMap(fromAfter ? after : prefix, !fromAfter).keySet()) {
+            if (count >= limit || !id.startsWith(prefix)) {
+                return;
+            }
+            outputList.add(id);
+            count++;
+        }
+    }
+
+    /**
+     * Read the content of a blob.
+     * The content is read through a channel of its own which stays readable if compaction removes
+     * the pack file meanwhile, so a slow target never holds up compaction.
+     *
+     * @param entry the location of the content.
+     * @param offset the position in the content to start reading from.
+     * @param length the greatest number of bytes to read.
+     * @param target the channel to write the content to.
+     * @return false if the pack file was removed by compaction after the entry was looked up,
+     *         the entry should be looked up again.
+     * @throws IOException if reading the pack file or writing the content fails.
+     */
+    boolean read(final PackEntry entry, final long offset, final long length, final WritableByteChannel target)
+        throws IOException
+    {
+        final FileChannel channel = this.openPack(entry);
+        if (channel == null) {
+            return false;
+        }
+        try {
+            final long skip = Math.min(offset, entry.getLength());
+            long position = entry.getOffset() + skip;
+            final long end = (length > entry.getLength() - skip)
+                ? entry.getOffset() + entry.getLength() : position + length;
+            if (end - position < MAP_THRESHOLD) {
+                final ByteBuffer buff = ByteBuffer.allocate((int) (end - position));
+                while (buff.hasRemaining() && channel.read(buff, position + buff.position()) >= 0) {
+                    // Keep reading until the buffer is full.
+                }
+                buff.flip();
+                writeFully(target, buff);
+                return true;
+            }
+            while (position < end) {
+                final long size = Math.min(end - position, MAP_SLICE);
+                writeFully(target, channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+                position += size;
+            }
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Give the content of a blob to a handler as an InputStream.
+     * The handler reads through a channel of its own which stays readable if compaction removes
+     * the pack file meanwhile, so a slow handler never holds up compaction.
+     *
+     * @param entry the location of the content.
+     * @param handler the handler to give the content to.
+     * @return false if the pack file was removed by compaction after the entry was looked up,
+     *         the entry should be looked up again.
+     * @throws IOException if reading the pack file or handling the content fails.
+     */
+    boolean read(final PackEntry entry, final BlobStreamHandler handler) throws IOException
+    {
+        final FileChannel channel = this.openPack(entry);
+        if (channel == null) {
+            return false;
+        }
+        try {
+            handler.handle(new PackEntryInputStream(channel, entry));
+            return true;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Open a channel of its own on the pack file which holds an entry.
+     * Only the opening is done holding the lock, compaction can not remove the file meanwhile.
+     *
+     * @param entry the location of the content.
+     * @return a new channel which the caller must close, null if the pack file was removed by compaction.
+     * @throws IOException if the pack file can not be opened.
+     */
+    private FileChannel openPack(final PackEntry entry) throws IOException
+    {
+        this.packsLock.readLock().lock();
+        try {
+            if (!this.packs.containsKey(entry.getPack())) {
+                return null;
+            }
+            return new RandomAccessFile(this.packFile(entry.getPack()), "r").getChannel();
+        } finally {
+            this.packsLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append the content of a blob to the log, it is not visible until it is committed.
+     * Every PUT must be followed by {@link #commit(String, PackEntry)} or {@link #abandon(PackEntry)}.
+     *
+     * @param id the id of the blob.
+     * @param spool the content.
+     * @return the location of the content.
+     * @throws IOException if writing the pack file fails.
+     */
+    PackEntry put(final String id, final PackSpool spool) throws IOException
+    {
+        final byte[] digest = spool.getDigest();
+        final FileChannel channel;
+        final PackEntry entry;
+        synchronized (this) {
+            channel = this.reservePut(id, spool.getLength());
+            entry = new PackEntry(this.current, this.end - spool.getLength() - DIGEST_LENGTH,
+                                  spool.getLength(), toHex(digest));
+        }
+        boolean written = false;
+        try {
+            spool.writeTo(channel, entry.getOffset());
+            writeFully(channel, ByteBuffer.wrap(digest), entry.getOffset() + entry.getLength());
+            this.forceIfReplaced(channel, entry.getPack());
+            written = true;
+        } finally {
+            if (!written) {
+                this.abandon(entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Make the content of a PUT the content of a blob and wait until that is on disk.
+     *
+     * @param id the id of the blob.
+     * @param entry the location returned by {@link #put(String, PackSpool)}.
+     * @throws IOException if writing the pack file fails.
+     */
+    void commit(final String id, final PackEntry entry) throws IOException
+    {
+        final long sequence;
+        synchronized (this) {
+            this.release(entry);
+            sequence = this.appendCommit(id, entry);
+        }
+        this.sync(sequence);
+    }
+
+    /**
+     * Give up on a PUT, its content is left for compaction to remove.
+     *
+     * @param entry the location returned by {@link #put(String, PackSpool)}.
+     */
+    synchronized void abandon(final PackEntry entry)
+    {
+        this.release(entry);
+    }
+
+    /**
+     * Remove blobs and wait until that is on disk.
+     *
+     * @param ids the ids of the blobs to remove, ids of blobs which do not exist are ignored.
+     * @throws IOException if writing the pack file fails.
+     */
+    void delete(final Iterable<String> ids) throws IOException
+    {
+        long sequence = -1;
+        synchronized (this) {
+            for (final String id : ids) {
+                final PackEntry entry = this.index.get(id);
+                if (entry != null) {
+                    sequence = this.appendDelete(id);
+                    this.index.remove(id);
+                    this.addLive(entry.getPack(), -entry.getLength());
+                }
+            }
+        }
+        if (sequence != -1) {
+            this.sync(sequence);
+        }
+    }
+
+    /**
+     * Copy the live content of pack files which are mostly dead to the end of the log and remove them.
+     * The pack file being appended to and pack files with saves in progress are left alone.
+     *
+     * @throws IOException if reading or writing the pack files fails.
+     */
+    void compact() throws IOException
+    {
+        final List<Integer> candidates = new ArrayList<Integer>();
+        synchronized (this) {
+            for (final Map.Entry<Integer, FileChannel> e : this.packs.entrySet()) {
+                final Long live = this.liveBytes.get(e.getKey());
+                if (e.getKey() != this.current && !this.pendingPuts.containsKey(e.getKey())
+                    && (live == null || live < e.getValue().size() * COMPACTION_RATIO))
+                {
+                    candidates.add(e.getKey());
+                }
+            }
+        }
+        for (final Integer pack : candidates) {
+            this.compactPack(pack);
+        }
+    }
+
+    /**
+     * Move everything which is still needed out of a pack file and remove it.
+     *
+     * @param pack the number of the pack file.
+     * @throws IOException if reading or writing the pack files fails.
+     */
+    private void compactPack(final int pack) throws IOException
+    {
+        final FileChannel source = this.packs.get(pack);
+        final List<String> ids = new ArrayList<String>();
+        synchronized (this) {
+            for (final Map.Entry<String, PackEntry> e : this.index.entrySet()) {
+                if (e.getValue().getPack() == pack) {
+                    ids.add(e.getKey());
+                }
+            }
+        }
+        for (final String id : ids) {
+            final PackEntry old;
+            final FileChannel channel;
+            final PackEntry copy;
+            synchronized (this) {
+                old = this.index.get(id);
+                if (old == null || old.getPack() != pack) {
+                    // Replaced or deleted since it was listed.
+                    continue;
+                }
+                channel = this.reservePut(id, old.getLength());
+                copy = new PackEntry(this.current, this.end - old.getLength() - DIGEST_LENGTH,
+                                     old.getLength(), old.getDigest());
+            }
+            try {
+                long done = 0;
+                while (done < old.getLength()) {
+                    final long size = Math.min(old.getLength() - done, MAP_SLICE);
+                    writeFully(channel, source.map(FileChannel.MapMode.READ_ONLY, old.getOffset() + done, size),
+                               copy.getOffset() + done);
+                    done += size;
+                }
+                writeFully(channel, ByteBuffer.wrap(fromHex(old.getDigest())), copy.getOffset() + copy.getLength());
+                this.forceIfReplaced(channel, copy.getPack());
+            } catch (IOException e) {
+                this.abandon(copy);
+                throw e;
+            }
+            synchronized (this) {
+                this.release(copy);
+                if (this.index.get(id) == old) {
+                    this.appendCommit(id, copy);
+                }
+                // Otherwise it was replaced or deleted during the copy and the copy is left for compaction.
+            }
+        }
+        this.carryRecords(pack);
+        final long sequence;
+        synchronized (this) {
+            sequence = this.appended;
+        }
+        this.sync(sequence);
+
+        synchronized (this) {
+            this.liveBytes.remove(pack);
+        }
+        this.packsLock.writeLock().lock();
+        try {
+            this.packs.remove(pack);
+            source.close();
+            final File file = this.packFile(pack);
+            if (!file.delete()) {
+                throw new IOException("Could not delete compacted pack file [" + file + "]");
+            }
+        } finally {
+            this.packsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copy the records of a pack file which are still needed once it is removed, other than its content.
+     * These are commits of content in older pack files which are still current, and deletes of
+     * blobs which older pack files would otherwise bring back.
+     *
+     * @param pack the number of the pack file.
+     * @throws IOException if reading or writing the pack files fails.
+     */
+    private void carryRecords(final int pack) throws IOException
+    {
+        final DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(this.packFile(pack))));
+        try {
+            for (;;) {
+                try {
+                    in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                final byte type = in.readByte();
+                final String id = in.readUTF();
+                if (type == PUT) {
+                    IOUtils.skipFully(in, in.readLong() + DIGEST_LENGTH);
+                } else if (type == COMMIT) {
+                    final int putPack = in.readInt();
+                    final long putOffset = in.readLong();
+                    synchronized (this) {
+                        final PackEntry entry = this.index.get(id);
+                        if (putPack < pack && entry != null
+                            && entry.getPack() == putPack && entry.getOffset() == putOffset)
+                        {
+                            this.appendCommit(id, entry);
+                        }
+                    }
+                } else if (type == DELETE) {
+                    synchronized (this) {
+                        if (!this.index.containsKey(id) && this.packs.firstKey() < pack) {
+                            this.appendDelete(id);
+                        }
+                    }
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Close all pack files, the store must not be used after this.
+     *
+     * @throws IOException if closing fails.
+     */
+    void close() throws IOException
+    {
+        this.packsLock.writeLock().lock();
+        try {
+            this.packs.get(this.current).force(false);
+            for (final FileChannel channel : this.packs.values()) {
+                channel.close();
+            }
+        } finally {
+            this.packsLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait until a record is on disk. If another thread is forcing the pack file, this waits for it and
+     * then checks whether that was enough, so a burst of commits only forces a few times.
+     *
+     * @param sequence the sequence number of the record, as returned when it was appended.
+     * @throws IOException if forcing the pack file fails.
+     */
+    private void sync(final long sequence) throws IOException
+    {
+        synchronized (this.syncLock) {
+            if (this.synced >= sequence) {
+                return;
+            }
+            final long upTo;
+            final FileChannel channel;
+            synchronized (this) {
+                upTo = this.appended;
+                channel = this.packs.get(this.current);
+            }
+            // Pack files are forced when they are replaced as the current one, so forcing
+            // the current one covers every record appended so far.
+            channel.force(false);
+            this.synced = upTo;
+        }
+    }
+
+    /**
+     * Append a COMMIT record and publish the content in the index, must be called holding this.
+     *
+     * @param id the id of the blob.
+     * @param entry the location of the content.
+     * @return the sequence number of the record.
+     * @throws IOException if writing the pack file fails.
+     */
+    private long appendCommit(final String id, final PackEntry entry) throws IOException
+    {
+        final FileChannel channel = this.startRecord(COMMIT, id, -1);
+        final ByteBuffer buff = ByteBuffer.allocate(4 + 8);
+        buff.putInt(entry.getPack()).putLong(entry.getOffset()).flip();
+        this.append(channel, buff);
+        final PackEntry old = this.index.put(id, entry);
+        if (old != null) {
+            this.addLive(old.getPack(), -old.getLength());
+        }
+        this.addLive(entry.getPack(), entry.getLength());
+        return this.appended;
+    }
+
+    /**
+     * Append a DELETE record, must be called holding this.
+     *
+     * @param id the id of the blob.
+     * @return the sequence number of the record.
+     * @throws IOException if writing the pack file fails.
+     */
+    private long appendDelete(final String id) throws IOException
+    {
+        this.startRecord(DELETE, id, -1);
+        return this.appended;
+    }
+
+    /**
+     * Write the start of a record, starting a new pack file first if the current one is full.
+     * Must be called holding this.
+     *
+     * @param type the type of record.
+     * @param id the id of the blob.
+     * @param length the length of the content of a PUT record, ignored for other records.
+     * @return the channel of the pack file, the rest of the record goes at {@link #end}.
+     * @throws IOException if writing the pack file fails.
+     */
+    private FileChannel startRecord(final byte type, final String id, final long length) throws IOException
+    {
+        FileChannel channel = this.packs.get(this.current);
+        if (this.end >= this.maxPackSize) {
+            // Everything in a pack file is on disk before appends move on, see sync().
+            channel.force(false);
+            this.openPack(this.current + 1);
+            channel = this.packs.get(this.current);
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeByte(type);
+        out.writeUTF(id);
+        if (type == PUT) {
+            out.writeLong(length);
+        }
+        out.flush();
+        this.append(channel, ByteBuffer.wrap(baos.toByteArray()));
+        this.appended++;
+        return channel;
+    }
+
+    /**
+     * Write the start of a PUT record and reserve the space for the content and digest which follow it,
+     * the content is written without holding this. Must be called holding this.
+     * Every reservation must be followed by {@link #release(PackEntry)}.
+     *
+     * @param id the id of the blob.
+     * @param length the length of the content.
+     * @return the channel of the pack file, the reserved space ends at {@link #end}.
+     * @throws IOException if writing the pack file fails.
+     */
+    private FileChannel reservePut(final String id, final long length) throws IOException
+    {
+        final FileChannel channel = this.startRecord(PUT, id, length);
+        this.end += length + DIGEST_LENGTH;
+        final Integer pending = this.pendingPuts.get(this.current);
+        this.pendingPuts.put(this.current, (pending == null) ? 1 : pending + 1);
+        return channel;
+    }
+
+    /**
+     * Write bytes at the end of the current pack file, must be called holding this.
+     *
+     * @param channel the channel of the current pack file.
+     * @param buff the bytes to write.
+     * @throws IOException if writing fails.
+     */
+    private void append(final FileChannel channel, final ByteBuffer buff) throws IOException
+    {
+        final int size = buff.remaining();
+        writeFully(channel, buff, this.end);
+        this.end += size;
+    }
+
+    /**
+     * Force content which was copied into a pack file to disk if appends have moved on to a newer pack.
+     * The pack was forced when it was replaced but the copy may have finished after that, and syncing
+     * a commit only forces the current pack.
+     *
+     * @param channel the channel of the pack file the content was copied into.
+     * @param pack the number of that pack file.
+     * @throws IOException if forcing fails.
+     */
+    private void forceIfReplaced(final FileChannel channel, final int pack) throws IOException
+    {
+        final boolean replaced;
+        synchronized (this) {
+            replaced = this.current != pack;
+        }
+        if (replaced) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Create a new pack file and make it the current one.
+     *
+     * @param pack the number of the pack file.
+     * @throws IOException if the file cannot be created.
+     */
+    private void openPack(final int pack) throws IOException
+    {
+        this.packs.put(pack, new RandomAccessFile(this.packFile(pack), "rw").getChannel());
+        this.current = pack;
+        this.end = 0;
+    }
+
+    /**
+     * @param pack the number of a pack file.
+     * @return the pack file.
+     */
+    private File packFile(final int pack)
+    {
+        return new File(this.directory, "pack-" + pack + ".dat");
+    }
+
+    /**
+     * Forget a pending PUT, must be called holding this.
+     *
+     * @param entry the location of the content of the PUT.
+     */
+    private void release(final PackEntry entry)
+    {
+        final Integer pending = this.pendingPuts.get(entry.getPack());
+        if (pending == null || pending <= 1) {
+            this.pendingPuts.remove(entry.getPack());
+        } else {
+            this.pendingPuts.put(entry.getPack(), pending - 1);
+        }
+    }
+
+    /**
+     * Account for content becoming live or dead, must be called holding this.
+     *
+     * @param pack the pack file which contains the content.
+     * @param delta the number of bytes which became live, negative if they became dead.
+     */
+    private void addLive(final int pack, final long delta)
+    {
+        final Long live = this.liveBytes.get(pack);
+        this.liveBytes.put(pack, (live == null) ? delta : live + delta);
+    }
+
+    /** Reads the content of a blob with positional reads, so that appends to the same pack are not disturbed. */
+    private static class PackEntryInputStream extends InputStream
+    {
+        private final FileChannel channel;
+
+        /** The position in the pack file of the next byte to read. */
+        private long position;
+
+        /** The position in the pack file after the end of the content. */
+        private final long end;
+
+        PackEntryInputStream(final FileChannel channel, final PackEntry entry)
+        {
+            this.channel = channel;
+            this.position = entry.getOffset();
+            this.end = entry.getOffset() + entry.getLength();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            final byte[] one = new byte[1];
+            return (this.read(one, 0, 1) == -1) ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buff, final int off, final int len) throws IOException
+        {
+            if (this.position >= this.end) {
+                return -1;
+            }
+            final int count = (int) Math.min(len, this.end - this.position);
+            final int read = this.channel.read(ByteBuffer.wrap(buff, off, count), this.position);
+            if (read == -1) {
+                throw new EOFException("Pack file is shorter than the content of a blob");
+            }
+            this.position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long n)
+        {
+            final long count = Math.max(0, Math.min(n, this.end - this.position));
+            this.position += count;
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, this.end - this.position);
+        }
+    }
+
+    /**
+     * @param pack the number of a pack file.
+     * @param offset the position of content in the pack file.
+     * @return a key which identifies the content.
+     */
+    private static String location(final int pack, final long offset)
+    {
+        return pack + ":" + offset;
+    }
+
+    /**
+     * @param id a string.
+     * @return the number of bytes the string takes in modified UTF-8, as written by writeUTF.
+     */
+    private static int utfLength(final String id)
+    {
+        int length = 0;
+        for (int i = 0; i < id.length(); i++) {
+            final char c = id.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param channel the channel to write to.
+     * @param buff the bytes to write.
+     * @throws IOException if writing fails.
+     */
+    private static void writeFully(final WritableByteChannel channel, final ByteBuffer buff) throws IOException
+    {
+        while (buff.hasRemaining()) {
+            channel.write(buff);
+        }
+    }
+
+    /**
+     * @param channel the channel to write to.
+     * @param buff the bytes to write.
+     * @param position the position in the file to write them at.
+     * @throws IOException if writing fails.
+     */
+    private static void writeFully(final FileChannel channel, final ByteBuffer buff, final long position)
+        throws IOException
+    {
+        final long start = position - buff.position();
+        while (buff.hasRemaining()) {
+            channel.write(buff, start + buff.position());
+        }
+    }
+
+    /**
+     * @param digest the output of a MessageDigest.
+     * @return the digest hex encoded.
+     */
+    private static String toHex(final byte[] digest)
+    {
+        final StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (final byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param hex a hex encoded digest.
+     * @return the digest.
+     */
+    private static byte[] fromHex(final String hex)
+    {
+        final byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return out;
+    }
+}
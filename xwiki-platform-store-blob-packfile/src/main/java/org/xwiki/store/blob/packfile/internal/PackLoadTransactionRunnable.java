@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobStreamHandler;
+
+/**
+ * Load a blob, or a range of it, from the pack file store, or give it to a handler as an InputStream.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class PackLoadTransactionRunnable extends TransactionRunnable<Object>
+{
+    /** The store to load from. */
+    private final PackFileStore store;
+
+    /** The id of the blob. */
+    private final String blobId;
+
+    /** The position in the blob to start loading from. */
+    private final long offset;
+
+    /** The greatest number of bytes to load. */
+    private final long length;
+
+    /** The channel to write to, null if giving the content to a handler. */
+    private final WritableByteChannel writeTo;
+
+    /** The handler to give the content to, null if writing to a channel. */
+    private final BlobStreamHandler handler;
+
+    PackLoadTransactionRunnable(final PackFileStore store,
+                                final String blobId,
+                                final long offset,
+                                final long length,
+                                final WritableByteChannel writeTo)
+    {
+        if (writeTo instanceof SelectableChannel && !((SelectableChannel) writeTo).isBlocking()) {
+            // A non-blocking channel would make the writing loop spin.
+            throw new IllegalArgumentException("The channel to load blob [" + blobId + "] to must be blocking");
+        }
+        this.store = store;
+        this.blobId = blobId;
+        this.offset = offset;
+        this.length = length;
+        this.writeTo = writeTo;
+        this.handler = null;
+    }
+
+    PackLoadTransactionRunnable(final PackFileStore store, final String blobId, final BlobStreamHandler handler)
+    {
+        this.store = store;
+        this.blobId = blobId;
+        this.offset = 0;
+        this.length = Long.MAX_VALUE;
+        this.writeTo = null;
+        this.handler = handler;
+    }
+
+    @Override
+    protected void onRun() throws IOException
+    {
+        for (;;) {
+            final PackEntry entry = this.store.get(this.blobId);
+            if (entry == null) {
+                throw new FileNotFoundException("No blob [" + this.blobId + "] in the pack file store");
+            }
+            final boolean read = (this.handler != null)
+                ? this.store.read(entry, this.handler)
+                : this.store.read(entry, this.offset, this.length, this.writeTo);
+            if (read) {
+                return;
+            }
+            // The content was moved by compaction, look it up again.
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Save a blob in the pack file store.
+ * The content is appended to the log when the transaction runs and made visible when it commits,
+ * if the transaction is rolled back the content is left for compaction to remove.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class PackSaveTransactionRunnable extends TransactionRunnable<Object>
+{
+    /** The size of the buffer to read the source with. */
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The store to save in. */
+    private final PackFileStore store;
+
+    /** The id of the blob. */
+    private final String blobId;
+
+    /** The source of data to copy from, null if copying from a channel. */
+    private final InputStream copyFrom;
+
+    /** The channel to copy from, null if copying from an InputStream. */
+    private final ReadableByteChannel channelFrom;
+
+    /** The directory for content which does not fit in memory while it is collected. */
+    private final File spoolDirectory;
+
+    /** The location of the appended content, null until it is appended. */
+    private PackEntry entry;
+
+    PackSaveTransactionRunnable(final PackFileStore store,
+                                final String blobId,
+                                final InputStream copyFrom,
+                                final ReadableByteChannel channelFrom,
+                                final File spoolDirectory)
+    {
+        if (channelFrom instanceof SelectableChannel && !((SelectableChannel) channelFrom).isBlocking()) {
+            // A non-blocking channel would make the reading loop spin.
+            throw new IllegalArgumentException("The channel to save blob [" + blobId + "] from must be blocking");
+        }
+        this.store = store;
+        this.blobId = blobId;
+        this.copyFrom = copyFrom;
+        this.channelFrom = channelFrom;
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    @Override
+    protected void onRun() throws IOException
+    {
+        // The source may be slow, collect it before taking the log so other saves are not held up.
+        final PackSpool spool = new PackSpool(this.spoolDirectory, BUFFER_SIZE);
+        try {
+            final byte[] buff = new byte[BUFFER_SIZE];
+            if (this.copyFrom != null) {
+                for (int count = this.copyFrom.read(buff); count != -1; count = this.copyFrom.read(buff)) {
+                    spool.write(buff, 0, count);
+                }
+            } else {
+                final ByteBuffer bb = ByteBuffer.wrap(buff);
+                for (int count = this.channelFrom.read(bb); count != -1; count = this.channelFrom.read(bb)) {
+                    spool.write(buff, 0, bb.position());
+                    bb.clear();
+                }
+            }
+            this.entry = this.store.put(this.blobId, spool);
+        } finally {
+            spool.dispose();
+        }
+    }
+
+    @Override
+    protected void onCommit() throws IOException
+    {
+        this.store.commit(this.blobId, this.entry);
+    }
+
+    @Override
+    protected void onRollback()
+    {
+        if (this.entry != null) {
+            this.store.abandon(this.entry);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.xwiki.store.UnexpectedException;
+
+/**
+ * Content of a blob collected before it is appended to a pack file, so that the pack file is not
+ * held while a slow client sends it. Content is kept in memory up to a limit, then in a temporary file.
+ * The digest of the content is computed as it is collected.
+ * The parts of a staged upload are already in files, a spool can also be made of those.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class PackSpool
+{
+    /** The algorithm of the digests of blob contents. */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** The size of the buffer used to read part files. */
+    private static final int BUFFER_SIZE = 65536;
+
+    /** The directory to make the temporary file in. */
+    private final File tempDirectory;
+
+    /** The content while it is small. */
+    private final byte[] memory;
+
+    /** The number of bytes collected. */
+    private long length;
+
+    /** The digest of the content collected so far. */
+    private final MessageDigest digest = newDigest();
+
+    /** The temporary file, null while the content fits in memory. */
+    private File tempFile;
+
+    /** The channel of the temporary file. */
+    private FileChannel tempChannel;
+
+    /** The files which the content is made of, null unless the spool was made from files. */
+    private List<File> parts;
+
+    /**
+     * The Constructor.
+     *
+     * @param tempDirectory the directory to make the temporary file in.
+     * @param memoryLimit the number of bytes kept in memory before spilling to a file.
+     */
+    PackSpool(final File tempDirectory, final int memoryLimit)
+    {
+        this.tempDirectory = tempDirectory;
+        this.memory = new byte[memoryLimit];
+    }
+
+    /**
+     * Make a spool of content which is already in files, the files are read once to compute the digest.
+     *
+     * @param parts the files which the content is made of, in order.
+     * @return a spool of the content of the files.
+     * @throws IOException if reading the files fails.
+     */
+    static PackSpool ofParts(final List<File> parts) throws IOException
+    {
+        final PackSpool spool = new PackSpool(null, 0);
+        final byte[] buff = new byte[BUFFER_SIZE];
+        for (final File part : parts) {
+            final FileInputStream in = new FileInputStream(part);
+            try {
+                for (int count = in.read(buff); count != -1; count = in.read(buff)) {
+                    spool.digest.update(buff, 0, count);
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            spool.length += part.length();
+        }
+        spool.parts = parts;
+        return spool;
+    }
+
+    /** @return a new MessageDigest of the algorithm used for blob contents. */
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException("No " + DIGEST_ALGORITHM + " support in this JVM", e);
+        }
+    }
+
+    /**
+     * Collect content.
+     *
+     * @param buff the buffer containing the content.
+     * @param off the position of the content in the buffer.
+     * @param len the number of bytes of content.
+     * @throws IOException if writing to the temporary file fails.
+     */
+    void write(final byte[] buff, final int off, final int len) throws IOException
+    {
+        this.digest.update(buff, off, len);
+        if (this.tempChannel == null && this.length + len <= this.memory.length) {
+            System.arraycopy(buff, off, this.memory, (int) this.length, len);
+        } else {
+            if (this.tempChannel == null) {
+                this.tempFile = File.createTempFile("spool-", ".tmp", this.tempDirectory);
+                this.tempChannel = new RandomAccessFile(this.tempFile, "rw").getChannel();
+                writeFully(this.tempChannel, ByteBuffer.wrap(this.memory, 0, (int) this.length));
+            }
+            writeFully(this.tempChannel, ByteBuffer.wrap(buff, off, len));
+        }
+        this.length += len;
+    }
+
+    /** @return the number of bytes collected. */
+    long getLength()
+    {
+        return this.length;
+    }
+
+    /** @return the digest of the content, may only be called once all content is collected. */
+    byte[] getDigest()
+    {
+        return this.digest.digest();
+    }
+
+    /**
+     * Write the collected content to a pack file.
+     * The writes are positional so other appends to the same pack file may run at the same time.
+     *
+     * @param target the channel of the pack file.
+     * @param position the position in the pack file to write the content at.
+     * @throws IOException if reading the temporary file or writing the pack file fails.
+     */
+    void writeTo(final FileChannel target, final long position) throws IOException
+    {
+        if (this.parts != null) {
+            long partPosition = position;
+            for (final File part : this.parts) {
+                final FileInputStream in = new FileInputStream(part);
+                try {
+                    transferFully(in.getChannel(), part.length(), target, partPosition);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+                partPosition += part.length();
+            }
+            return;
+        }
+        if (this.tempChannel == null) {
+            final ByteBuffer buff = ByteBuffer.wrap(this.memory, 0, (int) this.length);
+            while (buff.hasRemaining()) {
+                target.write(buff, position + buff.position());
+            }
+            return;
+        }
+        transferFully(this.tempChannel, this.length, target, position);
+    }
+
+    /**
+     * @param source the channel to copy from, starting at position 0.
+     * @param length the number of bytes to copy.
+     * @param target the channel to copy to.
+     * @param position the position in the target to copy to.
+     * @throws IOException if reading or writing fails.
+     */
+    private static void transferFully(final FileChannel source,
+                                      final long length,
+                                      final FileChannel target,
+                                      final long position) throws IOException
+    {
+        source.position(0);
+        long done = 0;
+        while (done < length) {
+            final long count = target.transferFrom(source, position + done, length - done);
+            if (count <= 0) {
+                throw new EOFException("Spooled content is shorter than the [" + length + "] bytes collected");
+            }
+            done += count;
+        }
+    }
+
+    /** Remove the temporary file if there is one. */
+    void dispose()
+    {
+        if (this.tempChannel != null) {
+            try {
+                this.tempChannel.close();
+            } catch (IOException e) {
+                // Nothing more can be done, the file is deleted anyway.
+            }
+            FileUtils.deleteQuietly(this.tempFile);
+            this.tempChannel = null;
+        }
+    }
+
+    /**
+     * @param channel the channel to write to.
+     * @param buff the bytes to write.
+     * @throws IOException if writing fails.
+     */
+    static void writeFully(final FileChannel channel, final ByteBuffer buff) throws IOException
+    {
+        while (buff.hasRemaining()) {
+            channel.write(buff);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Staged uploads to the pack file store.
+ * Each upload is a directory holding the id of the blob and one file per part, the parts are only
+ * appended to the log when the upload is completed.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class PackUploads
+{
+    /** The encoding of the file holding the blob id. */
+    private static final String ENCODING = "UTF-8";
+
+    /** The name of the file holding the blob id. */
+    private static final String BLOB_ID_FILE = "blob-id";
+
+    /** The name of the part files. */
+    private static final Pattern PART_NAME = Pattern.compile("^part-([0-9]+)$");
+
+    /** The form of upload ids, anything else could refer to a file outside of the upload directory. */
+    private static final Pattern UPLOAD_ID = Pattern.compile("^[0-9a-f-]+$");
+
+    /** The store which completed uploads are saved in. */
+    private final PackFileStore store;
+
+    /** The directory containing a directory for every upload in progress. */
+    private final File directory;
+
+    /**
+     * The Constructor.
+     *
+     * @param store the store which completed uploads are saved in.
+     * @param directory the directory to keep uploads in progress in, created if missing.
+     * @throws IOException if the directory cannot be created.
+     */
+    PackUploads(final PackFileStore store, final File directory) throws IOException
+    {
+        this.store = store;
+        this.directory = directory;
+        FileUtils.forceMkdir(directory);
+    }
+
+    /**
+     * @param blobId the id of the blob which the upload will be saved as.
+     * @param outputUploadId a list which the id of the new upload will be added to.
+     * @return a runnable which starts an upload.
+     */
+    TransactionRunnable<Object> getStartRunnable(final String blobId,
+                                                             final List<String> outputUploadId)
+    {
+        return new TransactionRunnable<Object>() {
+            private File uploadDir;
+
+            @Override
+            protected void onRun() throws IOException
+            {
+                final String uploadId = UUID.randomUUID().toString();
+                this.uploadDir = new File(PackUploads.this.directory, uploadId);
+                FileUtils.writeStringToFile(new File(this.uploadDir, BLOB_ID_FILE), blobId, ENCODING);
+                outputUploadId.add(uploadId);
+            }
+
+            @Override
+            protected void onRollback()
+            {
+                FileUtils.deleteQuietly(this.uploadDir);
+            }
+        };
+    }
+
+    /**
+     * @param uploadId the id of the upload.
+     * @param partNumber the number of the part, a part uploaded again replaces the earlier one.
+     * @param readFrom the content of the part.
+     * @return a runnable which uploads a part.
+     */
+    TransactionRunnable<Object> getPartRunnable(final String uploadId,
+                                                            final int partNumber,
+                                                            final InputStream readFrom)
+    {
+        return new TransactionRunnable<Object>() {
+            private File temp;
+
+            @Override
+            protected void onRun() throws IOException
+            {
+                this.temp = File.createTempFile("part-", ".tmp", PackUploads.this.getUploadDir(uploadId));
+                final FileOutputStream out = new FileOutputStream(this.temp);
+                try {
+                    IOUtils.copyLarge(readFrom, out);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            }
+
+            @Override
+            protected void onCommit() throws IOException
+            {
+                final File part = new File(this.temp.getParentFile(), "part-" + partNumber);
+                FileUtils.deleteQuietly(part);
+                if (!this.temp.renameTo(part)) {
+                    throw new IOException("Could not move the upload part [" + this.temp + "] to [" + part + "]");
+                }
+            }
+
+            @Override
+            protected void onRollback()
+            {
+                FileUtils.deleteQuietly(this.temp);
+            }
+        };
+    }
+
+    /**
+     * @param uploadId the id of the upload.
+     * @param outputList a list which the numbers of the uploaded parts will be added to, in order.
+     * @return a runnable which lists the parts of an upload.
+     */
+    TransactionRunnable<Object> getListPartsRunnable(final String uploadId,
+                                                                 final List<Integer> outputList)
+    {
+        return new TransactionRunnable<Object>() {
+            @Override
+            protected void onRun() throws IOException
+            {
+                outputList.addAll(PackUploads.this.getParts(uploadId).keySet());
+            }
+        };
+    }
+
+    /**
+     * @param uploadId the id of the upload.
+     * @param partCount the number of parts which the client uploaded.
+     * @return a runnable which saves the parts of an upload, in order, as the content of the blob.
+     */
+    TransactionRunnable<Object> getCompleteRunnable(final String uploadId, final int partCount)
+    {
+        return new TransactionRunnable<Object>() {
+            private String blobId;
+
+            private PackEntry entry;
+
+            @Override
+            protected void onRun() throws IOException
+            {
+                final File uploadDir = PackUploads.this.getUploadDir(uploadId);
+                this.blobId = FileUtils.readFileToString(new File(uploadDir, BLOB_ID_FILE), ENCODING);
+                final Map<Integer, File> partsByNumber = PackUploads.this.getParts(uploadId);
+                int expected = 0;
+                for (final Integer partNumber : partsByNumber.keySet()) {
+                    if (partNumber != expected) {
+                        throw new IllegalStateException("Part [" + expected + "] of upload [" + uploadId
+                                                        + "] is missing");
+                    }
+                    expected++;
+                }
+                if (expected != partCount) {
+                    throw new IllegalStateException("Upload [" + uploadId + "] has [" + expected
+                                                    + "] parts but [" + partCount + "] were uploaded");
+                }
+                final List<File> parts = new ArrayList<File>(partsByNumber.values());
+                this.entry = PackUploads.this.store.put(this.blobId, PackSpool.ofParts(parts));
+            }
+
+            @Override
+            protected void onCommit() throws IOException
+            {
+                PackUploads.this.store.commit(this.blobId, this.entry);
+                FileUtils.deleteQuietly(PackUploads.this.getUploadDir(uploadId));
+            }
+
+            @Override
+            protected void onRollback()
+            {
+                if (this.entry != null) {
+                    PackUploads.this.store.abandon(this.entry);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param uploadId the id of the upload.
+     * @return a runnable which abandons an upload and removes its parts.
+     */
+    TransactionRunnable<Object> getAbortRunnable(final String uploadId)
+    {
+        return new TransactionRunnable<Object>() {
+            @Override
+            protected void onCommit()
+            {
+                if (UPLOAD_ID.matcher(uploadId).matches()) {
+                    FileUtils.deleteQuietly(new File(PackUploads.this.directory, uploadId));
+                }
+            }
+        };
+    }
+
+    /**
+     * Remove uploads which have not been added to for a while, they were most likely abandoned
+     * without being aborted.
+     *
+     * @param maxAge the number of milliseconds after the last part after which an upload is removed.
+     */
+    void expire(final long maxAge)
+    {
+        final long cutoff = System.currentTimeMillis() - maxAge;
+        final File[] uploadDirs = this.directory.listFiles();
+        if (uploadDirs == null) {
+            return;
+        }
+        for (final File uploadDir : uploadDirs) {
+            // Adding a part file updates the modification time of the directory.
+            if (uploadDir.lastModified() < cutoff) {
+                FileUtils.deleteQuietly(uploadDir);
+            }
+        }
+    }
+
+    /**
+     * @param uploadId the id of the upload.
+     * @return the directory of the upload.
+     * @throws FileNotFoundException if there is no such upload.
+     */
+    private File getUploadDir(final String uploadId) throws FileNotFoundException
+    {
+        final File uploadDir = new File(this.directory, uploadId);
+        if (!UPLOAD_ID.matcher(uploadId).matches() || !new File(uploadDir, BLOB_ID_FILE).isFile()) {
+            throw new FileNotFoundException("No upload [" + uploadId + "]");
+        }
+        return uploadDir;
+    }
+
+    /**
+     * @param uploadId the id of the upload.
+     * @return the part files of the upload by part number.
+     * @throws FileNotFoundException if there is no such upload.
+     */
+    private Map<Integer, File> getParts(final String uploadId) throws FileNotFoundException
+    {
+        final Map<Integer, File> parts = new TreeMap<Integer, File>();
+        for (final File file : this.getUploadDir(uploadId).listFiles()) {
+            final Matcher m = PART_NAME.matcher(file.getName());
+            if (m.matches()) {
+                parts.put(Integer.valueOf(m.group(1)), file);
+            }
+        }
+        return parts;
+    }
+}
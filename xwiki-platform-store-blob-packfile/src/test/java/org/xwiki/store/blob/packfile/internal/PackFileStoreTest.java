@@ -0,0 +1,231 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.packfile.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.store.blob.BlobStreamHandler;
+
+/**
+ * Appending to, compacting and replaying the pack file log.
+ */
+public class PackFileStoreTest
+{
+    /** Small enough that every save starts a new pack file. */
+    private static final long SMALL_PACK = 64;
+
+    private File directory;
+
+    private PackFileStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("packfilestore-", "");
+        this.directory.delete();
+        this.store = new PackFileStore(this.directory, SMALL_PACK);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.store.close();
+        FileUtils.deleteQuietly(this.directory);
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        final PackEntry entry = this.store.put("a", this.spool("content of a"));
+        Assert.assertNull("A put is not visible before it is committed", this.store.get("a"));
+        this.store.commit("a", entry);
+        Assert.assertEquals("content of a", this.read("a"));
+        Assert.assertEquals("of", this.read("a", 8, 2));
+
+        final StringBuilder handled = new StringBuilder();
+        Assert.assertTrue(this.store.read(this.store.get("a"), new BlobStreamHandler() {
+            @Override
+            public void handle(final InputStream content) throws IOException
+            {
+                handled.append(IOUtils.toString(content, "UTF-8"));
+            }
+        }));
+        Assert.assertEquals("content of a", handled.toString());
+
+        this.store.abandon(this.store.put("a", this.spool("never committed")));
+        Assert.assertEquals("content of a", this.read("a"));
+    }
+
+    @Test
+    public void testCompact() throws Exception
+    {
+        this.save("a", "first version of a");
+        this.save("b", "content of b");
+        this.save("a", "second version of a");
+        this.save("c", "content of c");
+        this.store.delete(Collections.singleton("b"));
+        final int before = this.packCount();
+
+        this.store.compact();
+        Assert.assertTrue(this.packCount() < before);
+        Assert.assertEquals("second version of a", this.read("a"));
+        Assert.assertNull(this.store.get("b"));
+        Assert.assertEquals("content of c", this.read("c"));
+
+        // The records carried by compaction give the same index when the log is replayed.
+        this.reopen();
+        Assert.assertEquals("second version of a", this.read("a"));
+        Assert.assertNull(this.store.get("b"));
+        Assert.assertEquals("content of c", this.read("c"));
+    }
+
+    @Test
+    public void testReplay() throws Exception
+    {
+        this.save("a", "first version of a");
+        this.save("a", "second version of a");
+        this.save("b", "content of b");
+        this.store.delete(Collections.singleton("b"));
+        this.store.put("c", this.spool("never committed"));
+        this.reopen();
+
+        Assert.assertEquals("second version of a", this.read("a"));
+        Assert.assertNull(this.store.get("b"));
+        Assert.assertNull(this.store.get("c"));
+    }
+
+    @Test
+    public void testZeroFilledTail() throws Exception
+    {
+        this.store.close();
+        this.store = new PackFileStore(this.directory, Long.MAX_VALUE);
+        this.save("a", "content of a");
+        this.store.close();
+        final File pack = this.lastPack();
+        final long length = pack.length();
+        this.append(pack, new byte[100]);
+
+        this.store = new PackFileStore(this.directory, Long.MAX_VALUE);
+        Assert.assertEquals(length, pack.length());
+        Assert.assertEquals("content of a", this.read("a"));
+
+        // Appends go after the truncated tail and are found again.
+        this.save("b", "content of b");
+        this.reopen();
+        Assert.assertEquals("content of a", this.read("a"));
+        Assert.assertEquals("content of b", this.read("b"));
+    }
+
+    @Test
+    public void testCutShortTail() throws Exception
+    {
+        this.save("a", "content of a");
+        this.store.close();
+        final File pack = this.lastPack();
+        final long length = pack.length();
+        // The start of a PUT record whose content was never written.
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0x58424c42);
+        out.writeByte(1);
+        out.writeUTF("b");
+        out.writeLong(1000);
+        out.flush();
+        this.append(pack, baos.toByteArray());
+
+        this.store = new PackFileStore(this.directory, SMALL_PACK);
+        Assert.assertEquals(length, pack.length());
+        Assert.assertEquals("content of a", this.read("a"));
+        Assert.assertNull(this.store.get("b"));
+    }
+
+    private PackSpool spool(final String content) throws IOException
+    {
+        final byte[] bytes = content.getBytes("UTF-8");
+        final PackSpool spool = new PackSpool(this.directory, 16);
+        spool.write(bytes, 0, bytes.length);
+        return spool;
+    }
+
+    private void save(final String id, final String content) throws IOException
+    {
+        final PackSpool spool = this.spool(content);
+        try {
+            this.store.commit(id, this.store.put(id, spool));
+        } finally {
+            spool.dispose();
+        }
+    }
+
+    private String read(final String id) throws IOException
+    {
+        return this.read(id, 0, Long.MAX_VALUE);
+    }
+
+    private String read(final String id, final long offset, final long length) throws IOException
+    {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Assert.assertTrue(this.store.read(this.store.get(id), offset, length, Channels.newChannel(baos)));
+        return new String(baos.toByteArray(), "UTF-8");
+    }
+
+    private void reopen() throws IOException
+    {
+        this.store.close();
+        this.store = new PackFileStore(this.directory, SMALL_PACK);
+    }
+
+    private int packCount()
+    {
+        return this.directory.list().length;
+    }
+
+    private File lastPack()
+    {
+        File last = null;
+        for (int i = 1; new File(this.directory, "pack-" + i + ".dat").exists(); i++) {
+            last = new File(this.directory, "pack-" + i + ".dat");
+        }
+        return last;
+    }
+
+    private void append(final File file, final byte[] bytes) throws IOException
+    {
+        final FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
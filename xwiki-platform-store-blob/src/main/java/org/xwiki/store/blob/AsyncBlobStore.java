@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Future;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Blob storage operations which run on threads of the store rather than the caller's.
+ * This is an offload, not non-blocking I/O: every operation occupies one of the store's threads
+ * for it's whole duration, doing blocking reads and writes on the data store and on the given channel.
+ * It frees the caller's thread, it does not let a few threads serve many slow transfers, a transfer
+ * to a slow client holds a thread until the client has taken all of it.
+ * <p>
+ * Each operation runs in a transaction of it's own, with the same guarantees as the
+ * corresponding {@link BlobStore} runnable started alone. The store has a bounded number of threads,
+ * once they are busy and it's queue is full new operations are rejected: their Future fails with a
+ * {@link java.util.concurrent.RejectedExecutionException} and their callback is told, nothing is thrown.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@Role
+public interface AsyncBlobStore
+{
+    /**
+     * Save a blob.
+     *
+     * @param id the identifier for the blob.
+     * @param readFrom the channel to read the blob content from, it must be in blocking mode and it is not closed.
+     * @param expectedLength the expected number of bytes in the blob or -1 if unknown.
+     * @param callback told when the save has committed or failed, may be null.
+     * @return a Future which completes when the save has committed, a thread of the store is
+     *         blocked reading from the channel until then.
+     */
+    Future<Void> save(final String id,
+                      final ReadableByteChannel readFrom,
+                      final long expectedLength,
+                      final BlobCallback<Void> callback);
+
+    /**
+     * Load a range of a blob.
+     *
+     * @param id the identifier for the blob.
+     * @param offset the position in the blob to start loading from.
+     * @param length the greatest number of bytes to load, Long.MAX_VALUE for the rest of the blob.
+     * @param writeTo the channel to write the blob content to, it must be in blocking mode and it is not closed.
+     * @param callback told when the load has finished or failed, may be null.
+     * @return a Future which completes when the content has been written, a thread of the store is
+     *         blocked writing to the channel until then.
+     */
+    Future<Void> load(final String id,
+                      final long offset,
+                      final long length,
+                      final WritableByteChannel writeTo,
+                      final BlobCallback<Void> callback);
+
+    /**
+     * Get what is known about a blob without reading it's content.
+     *
+     * @param id the identifier for the blob.
+     * @param callback told when the information is available or the lookup failed, may be null.
+     * @return a Future of the information.
+     */
+    Future<BlobInfo> stat(final String id, final BlobCallback<BlobInfo> callback);
+
+    /**
+     * Delete a blob.
+     *
+     * @param id the identifier for the blob.
+     * @param callback told when the delete has committed or failed, may be null.
+     * @return a Future which completes when the delete has committed.
+     */
+    Future<Void> delete(final String id, final BlobCallback<Void> callback);
+}
@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob;
+
+/**
+ * Told when an operation of an {@link AsyncBlobStore} finishes.
+ * It is called on the thread which ran the operation so it should hand off anything slow.
+ *
+ * @version $Id$
+ * @since TODO
+ * @param <V> the type of the result of the operation.
+ */
+public interface BlobCallback<V>
+{
+    /**
+     * Called when the operation and it's transaction have completed successfully.
+     *
+     * @param result the result of the operation.
+     */
+    void onSuccess(V result);
+
+    /**
+     * Called when the operation failed or was cancelled, it's transaction has been rolled back.
+     *
+     * @param cause the reason for the failure.
+     */
+    void onFailure(Throwable cause);
+}
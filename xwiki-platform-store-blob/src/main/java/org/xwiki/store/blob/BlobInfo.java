@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob;
+
+/**
+ * What is known about a stored blob without reading it's content.
+ * An empty BlobInfo is given to {@link BlobStore#getStatRunnable(String, BlobInfo)} which populates it.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+public class BlobInfo
+{
+    /** The value of length when the length of the blob is not known. */
+    public static final long UNKNOWN_LENGTH = -1;
+
+    /** True if the blob exists. */
+    private boolean exists;
+
+    /** The number of bytes in the blob or UNKNOWN_LENGTH. */
+    private long length = UNKNOWN_LENGTH;
+
+    /** The hex encoded SHA-256 digest of the content or null if unknown. */
+    private String digest;
+
+    /** @return true if the blob exists. */
+    public boolean exists()
+    {
+        return this.exists;
+    }
+
+    /** @param exists true if the blob exists. */
+    public void setExists(final boolean exists)
+    {
+        this.exists = exists;
+    }
+
+    /**
+     * @return the number of bytes in the blob, UNKNOWN_LENGTH if the blob does not exist or was
+     *         saved by a store which did not record it's length.
+     */
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    /** @param length the number of bytes in the blob. */
+    public void setLength(final long length)
+    {
+        this.length = length;
+    }
+
+    /**
+     * The digest changes whenever the content changes so it is usable as an entity tag.
+     *
+     * @return the hex encoded SHA-256 digest of the blob content or null if it is not known.
+     */
+    public String getDigest()
+    {
+        return this.digest;
+    }
+
+    /** @param digest the hex encoded SHA-256 digest of the blob content. */
+    public void setDigest(final String digest)
+    {
+        this.digest = digest;
+    }
+}
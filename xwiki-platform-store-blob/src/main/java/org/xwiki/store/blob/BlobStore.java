@@ -21,6 +21,9 @@ package org.xwiki.store.blob;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
 import java.util.List;
 
 import org.xwiki.component.annotation.Role;
@@ -45,6 +48,32 @@ public interface BlobStore<T>
      */
     TransactionRunnable<T> getSaveRunnable(final String id, final InputStream readFrom);
 
+    /**
+     * Get a TransactionRunnable for saving a blob of which the size is known in advance.
+     * The size is only a hint which the store may use to choose how to lay the blob out,
+     * the whole InputStream is saved even if it's length differs.
+     *
+     * @param id the identifier for the blob.
+     * @param readFrom the InputStream to read the blob content from.
+     * @param expectedLength the expected number of bytes in the blob or -1 if unknown.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getSaveRunnable(final String id, final InputStream readFrom, final long expectedLength);
+
+    /**
+     * Get a TransactionRunnable for saving a blob from a channel.
+     * A store may read from the channel straight into it's own buffers, avoiding the copies
+     * which an InputStream requires.
+     *
+     * @param id the identifier for the blob.
+     * @param readFrom the channel to read the blob content from, it must be in blocking mode.
+     * @param expectedLength the expected number of bytes in the blob or -1 if unknown.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getSaveRunnable(final String id,
+                                           final ReadableByteChannel readFrom,
+                                           final long expectedLength);
+
     /**
      * Get a TransactionRunnable for storing a blob to the store.
      *
@@ -54,6 +83,58 @@ public interface BlobStore<T>
      */
     TransactionRunnable<T> getLoadRunnable(final String id, final OutputStream writeTo);
 
+    /**
+     * Get a TransactionRunnable for storing a part of a blob to the store.
+     * Only the part of the blob which is requested will be read from the store.
+     *
+     * @param id the identifier for the blob.
+     * @param offset the number of bytes from the beginning of the blob where the part starts.
+     * @param length the number of bytes to write, if the blob ends first then fewer bytes are written.
+     * @param writeTo the OutputStream to write the part of the blob content to.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getLoadRunnable(final String id,
+                                           final long offset,
+                                           final long length,
+                                           final OutputStream writeTo);
+
+    /**
+     * Get a TransactionRunnable for writing a part of a blob to a channel.
+     * A store may hand it's own buffers to the channel, avoiding the copies which an OutputStream requires.
+     *
+     * @param id the identifier for the blob.
+     * @param offset the number of bytes from the beginning of the blob where the part starts.
+     * @param length the number of bytes to write, if the blob ends first then fewer bytes are written.
+     * @param writeTo the channel to write the part of the blob content to, it must be in blocking mode.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getLoadRunnable(final String id,
+                                           final long offset,
+                                           final long length,
+                                           final WritableByteChannel writeTo);
+
+    /**
+     * Get a TransactionRunnable which gives the content of a blob to a handler as an InputStream.
+     * The content is pulled from the store as the handler reads it, on the thread running the
+     * transaction, so there is no copying thread and no more than a chunk is held in memory.
+     * The InputStream is only usable until the handler returns.
+     *
+     * @param id the identifier for the blob.
+     * @param handler the handler which reads the content.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getLoadRunnable(final String id, final BlobStreamHandler handler);
+
+    /**
+     * Get a TransactionRunnable for finding out whether a blob exists and how large it is
+     * without reading the content.
+     *
+     * @param id the identifier for the blob.
+     * @param populateInfo an empty BlobInfo which will be populated with what is known about the blob.
+     * @return a TransactionRunnable which will populate the BlobInfo when run.
+     */
+    TransactionRunnable<T> getStatRunnable(final String id, final BlobInfo populateInfo);
+
     /**
      * Get a TransactionRunnable for removing a blob from the blob store.
      *
@@ -62,6 +143,16 @@ public interface BlobStore<T>
      */
     TransactionRunnable<T> getDeleteRunnable(final String id);
 
+    /**
+     * Get a TransactionRunnable for removing many blobs from the blob store at once.
+     * The blobs are gone as soon as the transaction commits but a store may reclaim
+     * the space they used later. Ids of blobs which do not exist are ignored.
+     *
+     * @param ids the identifiers of the blobs.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getDeleteAllRunnable(final Collection<String> ids);
+
     /**
      * Get a TransactionRunnable for listing all blobs in the blob store.
      *
@@ -69,4 +160,78 @@ public interface BlobStore<T>
      * @return a TransactionRunnable which will populate the list when run.
      */
     TransactionRunnable<T> getListAllRunnable(final List<String> populateList);
+
+    /**
+     * Get a TransactionRunnable for listing one page of the blobs in the blob store.
+     * Ids are listed in ascending order, to walk the whole store pass the last id of each page as the
+     * after parameter of the next until a page is not full.
+     * Paging bounds the size of each result and the memory used to find it, not the work the store
+     * does to find it, a store may have to read every id to produce a page.
+     *
+     * @param prefix only list blobs whose id starts with this, null to list all blobs.
+     * @param after only list blobs whose id comes after this, null to start at the beginning.
+     * @param limit the maximum number of ids to list.
+     * @param populateList an empty list which will be populated with the ids of the page.
+     * @return a TransactionRunnable which will populate the list when run.
+     */
+    TransactionRunnable<T> getListRunnable(final String prefix,
+                                           final String after,
+                                           final int limit,
+                                           final List<String> populateList);
+
+    /**
+     * Get a TransactionRunnable for starting a staged upload of a blob.
+     * The parts of a staged upload are each written in their own transaction, possibly in parallel
+     * and possibly retried, the blob is only replaced when the upload is completed.
+     * A store may require every part but the last to have a length which is a multiple of a size it documents.
+     * An upload which is neither completed nor aborted may be removed by the store after some time.
+     * A store which can not remove such uploads may refuse to start them.
+     *
+     * @param id the identifier for the blob.
+     * @param populateUploadId an empty list which will be populated with the id of the new upload.
+     * @return a TransactionRunnable which will populate the list when run.
+     */
+    TransactionRunnable<T> getStartUploadRunnable(final String id, final List<String> populateUploadId);
+
+    /**
+     * Get a TransactionRunnable for writing a part of a staged upload.
+     * If the part was already written, it is replaced.
+     *
+     * @param uploadId the id of the upload.
+     * @param partNumber the position of the part in the blob, parts are numbered from 0 and concatenated
+     *        in ascending order.
+     * @param readFrom the InputStream to read the content of the part from.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getUploadPartRunnable(final String uploadId,
+                                                 final int partNumber,
+                                                 final InputStream readFrom);
+
+    /**
+     * Get a TransactionRunnable for listing the parts of a staged upload which have been written.
+     *
+     * @param uploadId the id of the upload.
+     * @param populateList an empty list which will be populated with the part numbers in ascending order.
+     * @return a TransactionRunnable which will populate the list when run.
+     */
+    TransactionRunnable<T> getListUploadPartsRunnable(final String uploadId, final List<Integer> populateList);
+
+    /**
+     * Get a TransactionRunnable for completing a staged upload, replacing the blob with the parts.
+     * The upload is only completed if the parts which were written are exactly those numbered from 0
+     * to partCount - 1, so that a part which was lost or is missing is reported rather than left out.
+     *
+     * @param uploadId the id of the upload.
+     * @param partCount the number of parts which the client uploaded.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getCompleteUploadRunnable(final String uploadId, final int partCount);
+
+    /**
+     * Get a TransactionRunnable for aborting a staged upload, the blob is left as it was.
+     *
+     * @param uploadId the id of the upload.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<T> getAbortUploadRunnable(final String uploadId);
 }
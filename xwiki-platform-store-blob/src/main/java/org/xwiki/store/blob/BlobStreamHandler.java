@@ -0,0 +1,40 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the content of a blob which is given by {@link BlobStore#getLoadRunnable(String, BlobStreamHandler)}.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+public interface BlobStreamHandler
+{
+    /**
+     * Read the content of a blob, this is called in the transaction which loads the blob.
+     *
+     * @param content the content of the blob, only usable until this method returns.
+     * @throws IOException if reading or handling the content fails, the transaction is then rolled back.
+     */
+    void handle(InputStream content) throws IOException;
+}
@@ -25,20 +25,37 @@ import com.xpn.xwiki.doc.XWikiAttachmentContent;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.model.reference.AttachmentReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.store.attachments.newstore.internal.AttachmentContentStore;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionProvider;
 import org.xwiki.store.TransactionRunnable;
 import org.xwiki.store.blob.BlobStore;
+import org.xwiki.store.blob.BlobStreamHandler;
 
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A means of storing the content of an attachment in a datanucleus based store.
+ * The blob store which holds the content is chosen with store.attachments.datanucleus.blobStore,
+ * it must either take part in DataNucleus transactions or run in the transaction of any store.
  *
  * @version $Id$
  * @since TODO
@@ -46,69 +63,178 @@ import java.io.PipedOutputStream;
 @Component
 @Named("datanucleus")
 @Singleton
-public class DataNucleusAttachmentContentStore implements AttachmentContentStore<PersistenceManager>
+public class DataNucleusAttachmentContentStore
+    implements AttachmentContentStore<PersistenceManager>, StagingAttachmentContentStore, Initializable
 {
-    /** The underlying blob store. */
+    /** Logs why content is no longer staged. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataNucleusAttachmentContentStore.class);
+
+    /**
+     * The hint of the blob store to keep attachment content in, "datanucleus-cached" adds a local disk
+     * cache of recently loaded content.
+     */
+    private static final String BLOB_STORE_PROPERTY = "store.attachments.datanucleus.blobStore";
+
+    /** The source of the configuration for the store. */
     @Inject
-    @Named("datanucleus")
-    private BlobStore<PersistenceManager> blobStore;
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Used to look up the configured blob store. */
+    @Inject
+    private ComponentManager componentManager;
+
+    /** The underlying blob store. */
+    private BlobStore<? super PersistenceManager> blobStore;
 
     /** A serializer for attachment references. */
     @Inject
     private EntityReferenceSerializer<String> referenceSerializer;
 
+    /** The provider of the transactions which content is staged in. */
+    @Inject
+    @Named("datanucleus")
+    private TransactionProvider<PersistenceManager> provider;
+
+    /** True once the blob store refused to start a staged upload. */
+    private volatile boolean stagingRefused;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.blobStore = lookupBlobStore(this.componentManager,
+                                         this.configuration.getProperty(BLOB_STORE_PROPERTY, "datanucleus"));
+    }
+
+    /**
+     * Look up a blob store whose runnables can run in a DataNucleus transaction.
+     *
+     * @param componentManager the component manager to look the store up in.
+     * @param hint the hint of the blob store.
+     * @return a blob store which uses the PersistenceManager or one which runs in the transaction of any store.
+     * @throws InitializationException if there is no such blob store.
+     */
+    private static BlobStore<? super PersistenceManager> lookupBlobStore(
+        final ComponentManager componentManager,
+        final String hint) throws InitializationException
+    {
+        final Type dataNucleusStore = new DefaultParameterizedType(null, BlobStore.class, PersistenceManager.class);
+        try {
+            if (componentManager.hasComponent(dataNucleusStore, hint)) {
+                return componentManager.getInstance(dataNucleusStore, hint);
+            }
+            // A store which does not use the PersistenceManager runs in the transaction of any store.
+            return componentManager.getInstance(
+                new DefaultParameterizedType(null, BlobStore.class, Object.class), hint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException("No blob store [" + hint + "] for attachment content", e);
+        }
+    }
+
+    /**
+     * @param runnable a runnable of the blob store.
+     * @return a runnable which runs it in a DataNucleus transaction.
+     */
+    static TransactionRunnable<PersistenceManager> inDataNucleus(
+        final TransactionRunnable<? super PersistenceManager> runnable)
+    {
+        final TransactionRunnable<PersistenceManager> out = new TransactionRunnable<PersistenceManager>();
+        runnable.runIn(out);
+        return out;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The digest of the content is computed as it is written and recorded in the attachment metadata.
+     */
     @Override
     public TransactionRunnable<PersistenceManager> getAttachmentContentSaveRunnable(
             final XWikiAttachmentContent content)
     {
-        final String id = idForAttach(content.getAttachment());
-        return this.blobStore.getSaveRunnable(id, content.getContentInputStream());
+        final DigestingAttachmentContent digesting = DigestingAttachmentContent.of(content);
+        final TransactionRunnable<PersistenceManager> out = inDataNucleus(this.blobStore.getSaveRunnable(
+            this.idForAttach(content.getAttachment()), digesting.getContentInputStream(), digesting.getSize()));
+        new RecordDigestRunnable(digesting).runIn(out);
+        return out;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The content is written as a staged upload of the blob store. A blob store which can not remove
+     * abandoned uploads refuses to start them, content is then no longer staged.
+     */
     @Override
-    public TransactionRunnable<PersistenceManager> getAttachmentContentLoadRunnable(final XWikiAttachment attachment)
+    public String stageAttachmentContent(final DigestingAttachmentContent content) throws TransactionException
     {
-        final PipedInputStream pis = new PipedInputStream();
-        final PipedOutputStream pos = new PipedOutputStream();
-        final Exception[] exception = new Exception[1];
-        final Thread thread = new Thread(new Runnable() {
-            @Override
-            public void run()
-            {
-                try {
-                    attachment.setContent(pis);
-                } catch (Exception e) {
-                    exception[0] = e;
-                }
-            }
-        });
-        final TransactionRunnable tr = (new TransactionRunnable() {
-            @Override
-            protected void onRun() throws IOException
-            {
-                pos.connect(pis);
-                thread.start();
+        if (this.stagingRefused) {
+            return null;
+        }
+        final List<String> uploadId = new ArrayList<String>(1);
+        final StartableTransactionRunnable<PersistenceManager> start = this.provider.get();
+        inDataNucleus(this.blobStore.getStartUploadRunnable(this.idForAttach(content.getAttachment()), uploadId))
+            .runIn(start);
+        try {
+            start.start();
+        } catch (TransactionException e) {
+            LOGGER.warn("The blob store did not start a staged upload, attachment contents are no longer staged", e);
+            this.stagingRefused = true;
+            return null;
+        }
+        final StartableTransactionRunnable<PersistenceManager> part = this.provider.get();
+        inDataNucleus(this.blobStore.getUploadPartRunnable(uploadId.get(0), 0, content.getContentInputStream()))
+            .runIn(part);
+        try {
+            part.start();
+        } catch (TransactionException e) {
+            final StartableTransactionRunnable<PersistenceManager> abort = this.provider.get();
+            this.getAttachmentContentUnstageRunnable(uploadId.get(0)).runIn(abort);
+            try {
+                abort.start();
+            } catch (TransactionException abortFailure) {
+                // The blob store removes the upload once it expires.
+                LOGGER.debug("Failed to abort the staged upload [{}]", uploadId.get(0), abortFailure);
             }
+            throw e;
+        }
+        return uploadId.get(0);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAttachmentContentPublishRunnable(
+        final DigestingAttachmentContent content,
+        final String stageId)
+    {
+        final TransactionRunnable<PersistenceManager> out =
+            inDataNucleus(this.blobStore.getCompleteUploadRunnable(stageId, 1));
+        new RecordDigestRunnable(content).runIn(out);
+        return out;
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAttachmentContentUnstageRunnable(final String stageId)
+    {
+        return inDataNucleus(this.blobStore.getAbortUploadRunnable(stageId));
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAttachmentContentLoadRunnable(final XWikiAttachment attachment)
+    {
+        // The content is pulled from the blob store as the attachment reads it, in the transaction's thread.
+        return inDataNucleus(this.blobStore.getLoadRunnable(this.idForAttach(attachment), new BlobStreamHandler() {
             @Override
-            protected void onComplete()
+            public void handle(final InputStream content) throws IOException
             {
-                if (thread.isAlive()) {
-                    thread.interrupt();
-                }
-                if (exception[0] != null) {
-                    throw new RuntimeException("Exception in pipe thread", exception[0]);
-                }
+                attachment.setContent(content);
             }
-        });
-        final TransactionRunnable loadTr = this.blobStore.getLoadRunnable(this.idForAttach(attachment), pos);
-        loadTr.runIn(tr);
-        return tr;
+        }));
     }
 
     @Override
     public TransactionRunnable<PersistenceManager> getAttachmentContentDeleteRunnable(final XWikiAttachment attachment)
     {
-        return this.blobStore.getDeleteRunnable(this.idForAttach(attachment));
+        return inDataNucleus(this.blobStore.getDeleteRunnable(this.idForAttach(attachment)));
     }
 
     /**
@@ -123,4 +249,38 @@ public class DataNucleusAttachmentContentStore implements AttachmentContentStore
                 new AttachmentReference(attach.getFilename(), attach.getDoc().getDocumentReference());
         return this.referenceSerializer.serialize(ar);
     }
+
+    /** Record the digest of content which was written in the metadata of it's attachment. */
+    private class RecordDigestRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** The content which was written, it's digest was computed as it was written. */
+        private final DigestingAttachmentContent content;
+
+        RecordDigestRunnable(final DigestingAttachmentContent content)
+        {
+            this.content = content;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final DataNucleusAttachmentContentStore store = DataNucleusAttachmentContentStore.this;
+            final XWikiAttachment attachment = this.content.getAttachment();
+            final String id = store.idForAttach(attachment);
+            final PersistenceManager pm = this.getContext();
+            PersistableAttachmentMetadata row;
+            try {
+                row = pm.getObjectById(PersistableAttachmentMetadata.class, id);
+            } catch (JDOObjectNotFoundException e) {
+                // A new attachment, the metadata store fills the rest of the row when it saves the attachment.
+                row = new PersistableAttachmentMetadata(id,
+                    store.referenceSerializer.serialize(attachment.getDoc().getDocumentReference()));
+            }
+            final String digest = this.content.getDigest();
+            if (PersistableAttachmentMetadata.changed(row.getDigest(), digest)) {
+                row.setDigest(digest);
+            }
+            pm.makePersistent(row);
+        }
+    }
 }
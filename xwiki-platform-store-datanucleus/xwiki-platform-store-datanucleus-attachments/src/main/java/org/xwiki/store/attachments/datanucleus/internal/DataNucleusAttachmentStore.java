@@ -19,20 +19,38 @@
  */
 package org.xwiki.store.attachments.datanucleus.internal;
 
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.store.attachments.newstore.internal.AttachmentStore;
+import org.xwiki.store.datanucleus.internal.ObjectLookup;
 import org.xwiki.store.TransactionRunnable;
 
 /**
  * A means of storing the metadata of an attachment.
  * This class is designed to seperate concerns of content, metadata, and archive.
+ * Rows are looked up by id, only the attachments which are given are read or written.
+ * The digest of the content is recorded by the content store which writes the content, the content is never read.
  *
  * @version $Id: 24f7cb845408a32680ef20dbd5817abdd3f41642 $
  * @since TODO
@@ -42,11 +60,50 @@ import org.xwiki.store.TransactionRunnable;
 @Singleton
 public class DataNucleusAttachmentStore implements AttachmentStore<PersistenceManager>
 {
+    /** A serializer for attachment and document references. */
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    /** Used to get the XWikiContext which knows the mime types. */
+    @Inject
+    private Execution execution;
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The digest is left as the content store which saved the content recorded it.
+     */
     @Override
     public TransactionRunnable<PersistenceManager> getAttachmentSaveRunnable(
         final List<XWikiAttachment> toSave)
     {
-        throw new RuntimeException("Not implemented");
+        final List<String> ids = new ArrayList<String>(toSave.size());
+        for (final XWikiAttachment attach : toSave) {
+            ids.add(this.idForAttach(attach));
+        }
+        return new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                final PersistenceManager pm = this.getContext();
+                final Map<String, PersistableAttachmentMetadata> existing = fetch(pm, ids);
+                final List<PersistableAttachmentMetadata> newRows =
+                    new ArrayList<PersistableAttachmentMetadata>(toSave.size());
+                for (int i = 0; i < toSave.size(); i++) {
+                    final XWikiAttachment attach = toSave.get(i);
+                    PersistableAttachmentMetadata row = existing.get(ids.get(i));
+                    if (row == null) {
+                        row = new PersistableAttachmentMetadata(ids.get(i),
+                            DataNucleusAttachmentStore.this.referenceSerializer.serialize(
+                                attach.getDoc().getDocumentReference()));
+                        newRows.add(row);
+                    }
+                    // An existing row is only written if something changed.
+                    row.update(attach, DataNucleusAttachmentStore.this.mimeTypeOf(attach));
+                }
+                pm.makePersistentAll(newRows);
+            }
+        };
     }
 
     @Override
@@ -54,17 +111,144 @@ public class DataNucleusAttachmentStore implements AttachmentStore<PersistenceMa
         final List<AttachmentReference> refs,
         final List<XWikiAttachment> output)
     {
-        throw new RuntimeException("Not implemented.");
+        return new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                final List<String> ids = new ArrayList<String>(refs.size());
+                for (final AttachmentReference ref : refs) {
+                    ids.add(DataNucleusAttachmentStore.this.referenceSerializer.serialize(ref));
+                }
+                final Map<String, PersistableAttachmentMetadata> rows = fetch(this.getContext(), ids);
+                final Map<DocumentReference, XWikiDocument> docs = new HashMap<DocumentReference, XWikiDocument>();
+                for (int i = 0; i < refs.size(); i++) {
+                    final PersistableAttachmentMetadata row = rows.get(ids.get(i));
+                    if (row != null) {
+                        output.add(row.toXWikiAttachment(docFor(docs, refs.get(i).getDocumentReference())));
+                    }
+                }
+            }
+        };
     }
 
-    /*
-     * This is a no-op since the act of removing the attachment from the document
-     * and saving the document will make it go away.
-     */
     @Override
     public TransactionRunnable<PersistenceManager> getAttachmentDeleteRunnable(
         final List<XWikiAttachment> toDelete)
     {
-        return new TransactionRunnable<PersistenceManager>();
+        return new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                if (toDelete.isEmpty()) {
+                    return;
+                }
+                final List<String> ids = new ArrayList<String>(toDelete.size());
+                for (final XWikiAttachment attach : toDelete) {
+                    ids.add(DataNucleusAttachmentStore.this.idForAttach(attach));
+                }
+                final PersistenceManager pm = this.getContext();
+                pm.deletePersistentAll(ObjectLookup.getExisting(pm, PersistableAttachmentMetadata.class, ids));
+            }
+        };
+    }
+
+    /**
+     * Get a TransactionRunnable which lists the attachments of documents without loading the documents.
+     *
+     * @param docRefs the documents to list the attachments of.
+     * @param output a list which the metadata of the attachments will be added to, in no particular order.
+     * @return a new TransactionRunnable.
+     */
+    public TransactionRunnable<PersistenceManager> getDocumentAttachmentsLoadRunnable(
+        final List<DocumentReference> docRefs,
+        final List<PersistableAttachmentMetadata> output)
+    {
+        return new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                if (docRefs.isEmpty()) {
+                    return;
+                }
+                final Set<String> docIds = new LinkedHashSet<String>();
+                for (final DocumentReference ref : docRefs) {
+                    docIds.add(DataNucleusAttachmentStore.this.referenceSerializer.serialize(ref));
+                }
+                // One lookup on the index per document, a contains query would read the whole table.
+                final Query query =
+                    this.getContext().newQuery(PersistableAttachmentMetadata.class, "documentId == :docId");
+                for (final String docId : docIds) {
+                    output.addAll((Collection<PersistableAttachmentMetadata>) query.execute(docId));
+                }
+                query.closeAll();
+            }
+        };
+    }
+
+    /**
+     * Fetch the metadata of many attachments by id.
+     *
+     * @param pm the PersistenceManager to look up with.
+     * @param ids the serialized references of the attachments.
+     * @return the metadata which was found, by id.
+     */
+    private static Map<String, PersistableAttachmentMetadata> fetch(final PersistenceManager pm,
+                                                                    final List<String> ids)
+    {
+        final Map<String, PersistableAttachmentMetadata> out =
+            new HashMap<String, PersistableAttachmentMetadata>((int) (ids.size() / 0.75) + 1);
+        if (ids.isEmpty()) {
+            return out;
+        }
+        for (final PersistableAttachmentMetadata row
+            : ObjectLookup.getExisting(pm, PersistableAttachmentMetadata.class, ids))
+        {
+            out.put(row.getId(), row);
+        }
+        return out;
+    }
+
+    /**
+     * @param docs the documents made so far, so attachments of the same document share one.
+     * @param ref the reference of a document.
+     * @return an empty document to attach loaded attachments to.
+     */
+    private static XWikiDocument docFor(final Map<DocumentReference, XWikiDocument> docs,
+                                        final DocumentReference ref)
+    {
+        XWikiDocument doc = docs.get(ref);
+        if (doc == null) {
+            doc = new XWikiDocument(ref);
+            docs.put(ref, doc);
+        }
+        return doc;
+    }
+
+    /**
+     * @param attach an attachment.
+     * @return the mime type of the attachment or null if it is not known.
+     */
+    private String mimeTypeOf(final XWikiAttachment attach)
+    {
+        final ExecutionContext ec = this.execution.getContext();
+        final XWikiContext xcontext = (ec != null) ? (XWikiContext) ec.getProperty("xwikicontext") : null;
+        if (xcontext != null && xcontext.getEngineContext() != null) {
+            return attach.getMimeType(xcontext);
+        }
+        // Outside of a request there is no servlet context to ask.
+        return URLConnection.guessContentTypeFromName(attach.getFilename());
+    }
+
+    /**
+     * Get a serialized attachment reference for the attachment.
+     *
+     * @param attach the attachment to get a serialized reference for.
+     * @return the serialized reference for the given attachment.
+     */
+    private String idForAttach(final XWikiAttachment attach)
+    {
+        final AttachmentReference ar =
+                new AttachmentReference(attach.getFilename(), attach.getDoc().getDocumentReference());
+        return this.referenceSerializer.serialize(ar);
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.datanucleus.internal;
+
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import org.xwiki.store.UnexpectedException;
+
+/**
+ * The content of an attachment as it is given to a content store to save, the digest of the content
+ * is computed as the store reads it so that the content is not read twice.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+public class DigestingAttachmentContent extends XWikiAttachmentContent
+{
+    /** The algorithm of the digest, the same as the blob stores use. */
+    private static final String ALGORITHM = "SHA-256";
+
+    /** The content which is being saved. */
+    private final XWikiAttachmentContent content;
+
+    /** The digest of the content as it was last read, null if it was not read. */
+    private MessageDigest digest;
+
+    /** The hex encoded digest, once it has been computed. */
+    private String hexDigest;
+
+    /**
+     * The Constructor.
+     *
+     * @param content the content which is being saved.
+     */
+    private DigestingAttachmentContent(final XWikiAttachmentContent content)
+    {
+        super(content.getAttachment());
+        this.content = content;
+    }
+
+    /**
+     * @param content the content which is being saved.
+     * @return the content if it is already digested as it is read, otherwise a content which is.
+     */
+    public static DigestingAttachmentContent of(final XWikiAttachmentContent content)
+    {
+        if (content instanceof DigestingAttachmentContent) {
+            return (DigestingAttachmentContent) content;
+        }
+        return new DigestingAttachmentContent(content);
+    }
+
+    @Override
+    public byte[] getContent()
+    {
+        final byte[] out = this.content.getContent();
+        this.reset().update(out);
+        return out;
+    }
+
+    @Override
+    public InputStream getContentInputStream()
+    {
+        return new DigestInputStream(this.content.getContentInputStream(), this.reset());
+    }
+
+    @Override
+    public int getSize()
+    {
+        return this.content.getSize();
+    }
+
+    /**
+     * Get the digest of the content, the content store must have read all of it.
+     *
+     * @return the hex encoded SHA-256 digest of the content or null if the store did not read it.
+     */
+    public synchronized String getDigest()
+    {
+        if (this.hexDigest == null && this.digest != null) {
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : this.digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            this.hexDigest = sb.toString();
+        }
+        return this.hexDigest;
+    }
+
+    /** @return a new digest for the content which is about to be read. */
+    private synchronized MessageDigest reset()
+    {
+        try {
+            this.digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException("No " + ALGORITHM + " digest in this JVM", e);
+        }
+        this.hexDigest = null;
+        return this.digest;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.datanucleus.internal;
+
+import java.util.Date;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * The metadata of an attachment, stored apart from the document so that attachments can be
+ * listed and looked up without loading documents.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "AttachmentMetadata")
+public class PersistableAttachmentMetadata
+{
+    /** The serialized reference of the attachment, which is also the id of it's content blob. */
+    @PrimaryKey
+    private String id;
+
+    /** The serialized reference of the document which the attachment is attached to. */
+    @Index
+    private String documentId;
+
+    private String fileName;
+
+    private long size;
+
+    private Date date;
+
+    private String author;
+
+    private String version;
+
+    private String comment;
+
+    /** The mime type of the content, null if it could not be determined. */
+    private String mimeType;
+
+    /** The hex encoded SHA-256 digest of the content, null if it is not known. */
+    private String digest;
+
+    /** The hint of the content store which holds the content, null if it was not recorded. */
+    private String tier;
+
+    public PersistableAttachmentMetadata(final String id, final String documentId)
+    {
+        this.id = id;
+        this.documentId = documentId;
+    }
+
+    /**
+     * Copy the metadata of an attachment, assigning only what changed so that an unchanged row is not written.
+     *
+     * @param attach the attachment to copy from.
+     * @param mimeType the mime type of the content or null if unknown.
+     */
+    void update(final XWikiAttachment attach, final String mimeType)
+    {
+        if (changed(this.fileName, attach.getFilename())) {
+            this.fileName = attach.getFilename();
+        }
+        if (this.size != attach.getFilesize()) {
+            this.size = attach.getFilesize();
+        }
+        if (changed(this.date, attach.getDate())) {
+            this.date = attach.getDate();
+        }
+        if (changed(this.author, attach.getAuthor())) {
+            this.author = attach.getAuthor();
+        }
+        if (changed(this.version, attach.getVersion())) {
+            this.version = attach.getVersion();
+        }
+        if (changed(this.comment, attach.getComment())) {
+            this.comment = attach.getComment();
+        }
+        if (changed(this.mimeType, mimeType)) {
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * @param containingDocument the document which the attachment is attached to.
+     * @return an XWikiAttachment with this metadata and no content.
+     */
+    public XWikiAttachment toXWikiAttachment(final XWikiDocument containingDocument)
+    {
+        final XWikiAttachment out = new XWikiAttachment(containingDocument, this.fileName);
+        out.setFilesize((int) this.size);
+        out.setDate(this.date);
+        out.setAuthor(this.author);
+        out.setVersion(this.version);
+        out.setComment(this.comment);
+        return out;
+    }
+
+    public String getId()
+    {
+        return this.id;
+    }
+
+    public String getDocumentId()
+    {
+        return this.documentId;
+    }
+
+    public String getFileName()
+    {
+        return this.fileName;
+    }
+
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    public Date getDate()
+    {
+        return this.date;
+    }
+
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    public String getMimeType()
+    {
+        return this.mimeType;
+    }
+
+    public String getDigest()
+    {
+        return this.digest;
+    }
+
+    public void setDigest(final String digest)
+    {
+        this.digest = digest;
+    }
+
+    public String getTier()
+    {
+        return this.tier;
+    }
+
+    public void setTier(final String tier)
+    {
+        this.tier = tier;
+    }
+
+    /**
+     * @param storedValue a value as it is in the store.
+     * @param value the value being saved.
+     * @return true if the value is not the same as the stored one.
+     */
+    static boolean changed(final Object storedValue, final Object value)
+    {
+        return (storedValue == null) ? value != null : !storedValue.equals(value);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.datanucleus.internal;
+
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * An attachment content store which can write content before the transaction which makes it the content
+ * of it's attachment, so that the contents of many attachments can be written at the same time.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+public interface StagingAttachmentContentStore
+{
+    /**
+     * Write content where it is not visible, in transactions of it's own.
+     * This may be called from any thread, the content is read in the calling thread.
+     *
+     * @param content the content to write, it's digest is computed as it is written.
+     * @return the id of the staged content or null if the store can not stage content,
+     *         the content must then be saved in the transaction which saves the attachment.
+     * @throws TransactionException if the content could not be written.
+     */
+    String stageAttachmentContent(DigestingAttachmentContent content) throws TransactionException;
+
+    /**
+     * Get a TransactionRunnable which makes staged content the content of it's attachment.
+     *
+     * @param content the content which was staged.
+     * @param stageId the id which the content was staged with.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<PersistenceManager> getAttachmentContentPublishRunnable(DigestingAttachmentContent content,
+                                                                                String stageId);
+
+    /**
+     * Get a TransactionRunnable which removes staged content which will not be published.
+     *
+     * @param stageId the id which the content was staged with.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<PersistenceManager> getAttachmentContentUnstageRunnable(String stageId);
+}
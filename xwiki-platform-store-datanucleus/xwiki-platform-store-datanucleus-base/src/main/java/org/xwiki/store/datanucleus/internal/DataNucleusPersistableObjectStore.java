@@ -19,12 +19,18 @@
  */
 package org.xwiki.store.datanucleus.internal;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
+import java.util.WeakHashMap;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
@@ -41,6 +47,7 @@ import org.slf4j.LoggerFactory;
 import org.xwiki.store.TransactionException;
 import org.xwiki.store.TransactionRunnable;
 import org.xwiki.store.UnexpectedException;
+import org.xwiki.store.objects.Callback;
 import org.xwiki.store.objects.PersistableObject;
 import org.xwiki.store.objects.PersistableClass;
 import org.xwiki.store.objects.PersistableClassLoader;
@@ -48,11 +55,21 @@ import org.xwiki.store.objects.PersistableClassLoader;
 /**
  * The DataNucleusClassLoader is designed to load java classes from the data store.
  */
-public class DataNucleusPersistableObjectStore
+public class DataNucleusPersistableObjectStore implements Callback
 {
     private static final Logger LOGGER =
         LoggerFactory.getLogger(DataNucleusPersistableObjectStore.class);
 
+    /**
+     * The fields of each PersistableObject class which may lead to more persistable objects,
+     * already made accessible so that a save does no reflection lookups.
+     * The classes are weakly referenced and their fields, which refer back to the class, softly
+     * so the plans never keep a class and it's class loader from being unloaded.
+     * The plans of a class are dropped when it is redefined.
+     */
+    private final Map<Class<?>, SoftReference<Field[]>> plans =
+        Collections.synchronizedMap(new WeakHashMap<Class<?>, SoftReference<Field[]>>());
+
     public TransactionRunnable<PersistenceManager> getStoreTransactionRunnable(
         final String key,
         final PersistableObject value)
@@ -60,26 +77,79 @@ public class DataNucleusPersistableObjectStore
         return (new TransactionRunnable<PersistenceManager>() {
             protected void onRun()
             {
-                final PersistenceManager manager = this.getContext();
-                manager.setDetachAllOnCommit(true);
-                final Set<PersistableClass> classes = getClassesAndSetIds(key, value);
-                LOGGER.debug("Storing object [{}] with classes [{}].", key, classes.size());
-                for (final PersistableClass pc : classes) {
-                    // "Internal" PCs such as PersistableXWikiDocument have 0 length
-                    // and should never be stored.
-                    if (pc.getBytes().length > 0
-                        && (!JDOHelper.isDetached(pc) || JDOHelper.isDirty(pc)))
-                    {
-                        LOGGER.debug("Storing class [{}] bytecode length [{}].",
-                                     pc.getName(), pc.getBytes().length);
-                        manager.makePersistent(pc);
-                    }
-                }
-                manager.makePersistent(value);
+                DataNucleusPersistableObjectStore.this.store(this.getContext(), key, value);
             }
         });
     }
 
+    /**
+     * Store an object and everything it refers to in the current transaction.
+     * The object may be one which is already persistent in the PersistenceManager,
+     * then only what was changed on it is written.
+     *
+     * @param manager the PersistenceManager of the current transaction.
+     * @param key the key to store the object under.
+     * @param value the object to store.
+     */
+    public void store(final PersistenceManager manager, final String key, final PersistableObject value)
+    {
+        this.store(manager, value, this.setIds(key, value));
+    }
+
+    /**
+     * Store an object whose ids are already set, and everything it refers to, in the current transaction.
+     *
+     * @param manager the PersistenceManager of the current transaction.
+     * @param value the object to store.
+     * @param classes the classes of the object and everything it refers to, as returned by
+     *                {@link #setIds(String, PersistableObject)}.
+     */
+    public void store(final PersistenceManager manager,
+                      final PersistableObject value,
+                      final Set<PersistableClass> classes)
+    {
+        manager.setDetachAllOnCommit(true);
+        LOGGER.debug("Storing object [{}] with classes [{}].", value.getId(), classes.size());
+        for (final PersistableClass pc : classes) {
+            // "Internal" PCs such as PersistableXWikiDocument have 0 length
+            // and should never be stored.
+            if (pc.getBytes().length > 0
+                && (!JDOHelper.isDetached(pc) || JDOHelper.isDirty(pc)))
+            {
+                LOGGER.debug("Storing class [{}] bytecode length [{}].",
+                             pc.getName(), pc.getBytes().length);
+                manager.makePersistent(pc);
+            }
+        }
+        manager.makePersistent(value);
+    }
+
+    /**
+     * Set the ids of an object and everything it refers to, as a store under the key would,
+     * without storing anything.
+     *
+     * @param key the key which the object would be stored under.
+     * @param value the object.
+     * @return the classes of the object and everything it refers to.
+     */
+    public Set<PersistableClass> setIds(final String key, final PersistableObject value)
+    {
+        final Map<String, PersistableObject> objectsByKey =
+            new HashMap<String, PersistableObject>();
+        this.walkTree(new StringBuilder(key), value, objectsByKey,
+                      Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+        final Set<PersistableClass> out = new HashSet<PersistableClass>();
+        for (final Map.Entry<String, PersistableObject> e : objectsByKey.entrySet()) {
+            // Objects which are already persistent keep their id, it can not be set again.
+            if (!e.getKey().equals(e.getValue().getId())) {
+                e.getValue().setId(e.getKey());
+            }
+            out.add(e.getValue().getPersistableClass());
+        }
+        return out;
+    }
+
     public TransactionRunnable<PersistenceManager> getLoadTransactionRunnable(
         final Collection<String> keys,
         final String className,
@@ -103,19 +173,16 @@ public class DataNucleusPersistableObjectStore
         });
     }
 
-    private static Set<PersistableClass> getClassesAndSetIds(final String key,
-                                                             final PersistableObject value)
+    public void callback(final Object[] args)
     {
-        final Map<String, PersistableObject> objectsByKey =
-            new HashMap<String, PersistableObject>();
-        walkTree(key, value, objectsByKey, new Stack());
-
-        final Set<PersistableClass> out = new HashSet<PersistableClass>();
-        for (final Map.Entry<String, PersistableObject> e : objectsByKey.entrySet()) {
-            e.getValue().setId(e.getKey());
-            out.add(e.getValue().getPersistableClass());
+        final String className = (String) args[0];
+        synchronized (this.plans) {
+            for (final Iterator<Class<?>> it = this.plans.keySet().iterator(); it.hasNext();) {
+                if (it.next().getName().equals(className)) {
+                    it.remove();
+                }
+            }
         }
-        return out;
     }
 
     private static boolean potentiallyPersistable(final Class c)
@@ -125,90 +192,121 @@ public class DataNucleusPersistableObjectStore
     }
 
     /**
-     * Walk the elements in a collection or array looking for persistable objects.
+     * Get the fields of a class which may lead to more persistable objects, computing them the first time.
      *
-     * @param id the identifier for the object.
-     * @param value the collction or array to walk, if this is not a collection or array,
-     *              nothing will be done.
+     * @param cls the class of a PersistableObject.
+     * @return the fields to walk, already made accessible.
+     */
+    private Field[] planFor(final Class<?> cls)
+    {
+        final SoftReference<Field[]> cached = this.plans.get(cls);
+        Field[] plan = (cached == null) ? null : cached.get();
+        if (plan != null) {
+            return plan;
+        }
+        final List<Field> fields = new ArrayList<Field>();
+        for (final Field field : cls.getDeclaredFields()) {
+            final Class type = field.getType();
+            boolean isMap = Map.class.isAssignableFrom(type);
+            if (isMap || Collection.class.isAssignableFrom(type)) {
+                final ParameterizedType pType = (ParameterizedType) field.getGenericType();
+                final Class<?> componentType =
+                    (Class<?>) pType.getActualTypeArguments()[isMap ? 1 : 0];
+                if (!potentiallyPersistable(componentType)) {
+                    continue;
+                }
+            } else if (type.isArray()) {
+                if (!potentiallyPersistable(type.getComponentType())) {
+                    continue;
+                }
+            } else if (!potentiallyPersistable(type)) {
+                continue;
+            }
+            // We don't need to use reflection for this, we can use the jdo state manager.
+            field.setAccessible(true);
+            fields.add(field);
+        }
+        plan = fields.toArray(new Field[fields.size()]);
+        if (cached == null && cls.getClassLoader() instanceof PersistableClassLoader) {
+            ((PersistableClassLoader) cls.getClassLoader()).onClassRedefinition(this);
+        }
+        this.plans.put(cls, new SoftReference<Field[]>(plan));
+        return plan;
+    }
+
+    /**
+     * Walk a persistable object and everything it refers to looking for persistable objects.
+     *
+     * @param id the identifier for the object, it is returned to the same length when the walk is done.
+     * @param value the object to walk.
      * @param out, the output into which all discovered persistable objects will be placed.
-     * @param stack a stack used for internal loop detection.
+     * @param path the objects being walked, used for loop detection by identity.
      */
-    private static void walkTree(final String id,
-                                 final Object value,
-                                 final Map<String, PersistableObject> out,
-                                 final Stack stack)
+    private void walkTree(final StringBuilder id,
+                          final Object value,
+                          final Map<String, PersistableObject> out,
+                          final Set<Object> path)
     {
-        if (value == null || stack.contains(value)) {
+        if (value == null || !path.add(value)) {
             return;
         }
-        stack.push(value);
 
         if (value instanceof PersistableObject) {
-            out.put(id, (PersistableObject) value);
+            out.put(id.toString(), (PersistableObject) value);
 
             // Index over the fields looking for more persistables
-            for (final Field field : value.getClass().getDeclaredFields()) {
-                final Class type = field.getType();
-                boolean isMap = Map.class.isAssignableFrom(type);
-                if (isMap || Collection.class.isAssignableFrom(type)) {
-                    final ParameterizedType pType = (ParameterizedType) field.getGenericType();
-                    final Class<?> componentType =
-                        (Class<?>) pType.getActualTypeArguments()[isMap ? 1 : 0];
-                    if (!potentiallyPersistable(componentType)) {
-                        continue;
-                    }
-                } else if (type.isArray()) {
-                    if (!potentiallyPersistable(type.getComponentType())) {
-                        continue;
-                    }
-                } else if (!potentiallyPersistable(type)) {
-                    continue;
-                }
-                // We don't need to use reflection for this, we can use the jdo state manager.
-                field.setAccessible(true);
+            final int length = id.length();
+            for (final Field field : this.planFor(value.getClass())) {
+                id.append('.').append(field.getName());
                 try {
-                    walkTree(id + "." + field.getName(), field.get(value), out, stack);
+                    this.walkTree(id, field.get(value), out, path);
                 } catch (IllegalAccessException e) {
                     throw new UnexpectedException("Could not reflect nested objects, "
                                                   + "is a security manager preventing it?");
                 }
+                id.setLength(length);
             }
         } else {
-            walkCollection(id, value, out, stack);
+            this.walkCollection(id, value, out, path);
         }
 
-        stack.pop();
-        return;
+        path.remove(value);
     }
 
     /**
      * Walk the elements in a collection or array looking for persistable objects.
      *
-     * @param id the identifier for the object.
+     * @param id the identifier for the object, it is returned to the same length when the walk is done.
      * @param value the collction or array to walk, if this is not a collection or array,
      *              nothing will be done.
      * @param out, the output into which all discovered persistable objects will be placed.
-     * @param stack a stack used for internal loop detection.
+     * @param path the objects being walked, used for loop detection by identity.
      */
-    private static void walkCollection(final String id,
-                                       final Object value,
-                                       final Map<String, PersistableObject> out,
-                                       final Stack stack)
+    private void walkCollection(final StringBuilder id,
+                                final Object value,
+                                final Map<String, PersistableObject> out,
+                                final Set<Object> path)
     {
+        final int length = id.length();
         if (value instanceof Map) {
             for (final Map.Entry e : ((Map<?,?>) value).entrySet()) {
-                final String nextId = id + "['" + e.getKey() + "']";
-                walkTree(nextId, e.getValue(), out, stack);
+                id.append("['").append(e.getKey()).append("']");
+                this.walkTree(id, e.getValue(), out, path);
+                id.setLength(length);
             }
         } else if (value instanceof Collection) {
             int i = 0;
             for (final Object item : ((Collection) value)) {
-                walkTree(id + "[" + i + "]", item, out, stack);
+                id.append('[').append(i).append(']');
+                this.walkTree(id, item, out, path);
+                id.setLength(length);
                 i++;
             }
         } else if (value.getClass().isArray()) {
             for (int i = 0; i < Array.getLength(value); i++) {
-                walkTree(id + "[" + i + "]", Array.get(value, i), out, stack);
+                id.append('[').append(i).append(']');
+                this.walkTree(id, Array.get(value, i), out, path);
+                id.setLength(length);
             }
         }
     }
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.datanucleus.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+
+/**
+ * Looks objects up by primary key.
+ * The data store evaluates a query such as ":ids.contains(id)" by reading every row of the table,
+ * a lookup by key reads only the rows which are asked for.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+public final class ObjectLookup
+{
+    /** Utility class. */
+    private ObjectLookup()
+    {
+    }
+
+    /**
+     * Get the objects with the given keys, keys which no object has are skipped.
+     *
+     * @param <T> the type of the objects.
+     * @param pm the PersistenceManager to look the objects up with.
+     * @param type the class of the objects.
+     * @param keys the primary keys of the objects.
+     * @return the objects which exist, in the order of their keys.
+     */
+    public static <T> List<T> getExisting(final PersistenceManager pm,
+                                          final Class<T> type,
+                                          final Collection<?> keys)
+    {
+        final List<Object> oids = new ArrayList<Object>(keys.size());
+        for (final Object key : keys) {
+            oids.add(pm.newObjectIdInstance(type, key));
+        }
+        final List<T> out = new ArrayList<T>(keys.size());
+        try {
+            for (final Object obj : pm.getObjectsById(oids)) {
+                out.add(type.cast(obj));
+            }
+        } catch (JDOObjectNotFoundException e) {
+            // Some of the keys have no object, look them up one at a time to find which.
+            out.clear();
+            for (final Object oid : oids) {
+                try {
+                    out.add(type.cast(pm.getObjectById(oid)));
+                } catch (JDOObjectNotFoundException notFound) {
+                    // Skipped.
+                }
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.benchmark;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jdo.PersistenceManager;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.test.XWikiComponentInitializer;
+
+/**
+ * Benchmarks of the DataNucleus blob store running on the embedded Cassandra.
+ * Each operation is measured both as throughput and as a sample of latencies, from which JMH reports
+ * percentiles. The GC profiler reports the bytes allocated per operation as gc.alloc.rate.norm.
+ * Running the main method runs every benchmark at 1, 4, 16 and 64 threads, any JMH command line
+ * options are also accepted, for example -p blobSize=1024 to only measure small blobs.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class BlobStoreBenchmark
+{
+    /** The numbers of threads which the main method runs the benchmarks with. */
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+
+    /** The store and the transactions to run it in, shared by all threads. */
+    @State(Scope.Benchmark)
+    public static class StoreState
+    {
+        /** The size of the blobs to save and load, from 1KB to 1GB. */
+        @Param({ "1024", "65536", "1048576", "16777216", "268435456", "1073741824" })
+        public long blobSize;
+
+        /** Makes a different blob id for each thread. */
+        final AtomicInteger threadCounter = new AtomicInteger();
+
+        /** Makes different content for each save, so that no save writes the same chunks as an earlier one. */
+        final AtomicInteger saveCounter = new AtomicInteger();
+
+        private XWikiComponentInitializer initializer;
+
+        private TransactionProvider<PersistenceManager> provider;
+
+        private BlobStore<PersistenceManager> store;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception
+        {
+            this.initializer = new XWikiComponentInitializer();
+            this.initializer.initializeConfigurationSource();
+            this.initializer.initializeExecution();
+            this.provider = this.initializer.getComponentManager().getInstance(
+                new DefaultParameterizedType(null, TransactionProvider.class, PersistenceManager.class),
+                "datanucleus");
+            this.store = this.initializer.getComponentManager().getInstance(
+                new DefaultParameterizedType(null, BlobStore.class, PersistenceManager.class),
+                "datanucleus");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            this.initializer.shutdown();
+        }
+
+        /**
+         * Run a runnable of the store in a new transaction.
+         *
+         * @param runnable the runnable to run.
+         * @throws Exception if the transaction fails.
+         */
+        void run(final TransactionRunnable<PersistenceManager> runnable) throws Exception
+        {
+            final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+            runnable.runIn(transaction);
+            transaction.start();
+        }
+
+        /**
+         * @param blobId the id of the blob to save.
+         * @throws Exception if the save fails.
+         */
+        void save(final String blobId) throws Exception
+        {
+            final int seed = blobId.hashCode() * 31 + this.saveCounter.incrementAndGet();
+            this.run(this.store.getSaveRunnable(blobId, new GeneratedInputStream(this.blobSize, seed), this.blobSize));
+        }
+    }
+
+    /** The blob which a thread works on. */
+    @State(Scope.Thread)
+    public static class BlobState
+    {
+        String blobId;
+
+        @Setup(Level.Trial)
+        public void setUp(final StoreState store) throws Exception
+        {
+            this.blobId = "benchmark/" + store.blobSize + "/" + store.threadCounter.incrementAndGet();
+            store.save(this.blobId);
+        }
+    }
+
+    /** A blob which is saved again before each delete, the save is not measured. */
+    @State(Scope.Thread)
+    public static class DeletableBlobState extends BlobState
+    {
+        @Setup(Level.Invocation)
+        public void saveAgain(final StoreState store) throws Exception
+        {
+            store.save(this.blobId);
+        }
+    }
+
+    @Benchmark
+    public void save(final StoreState store, final BlobState blob) throws Exception
+    {
+        store.save(blob.blobId);
+    }
+
+    @Benchmark
+    public void load(final StoreState store, final BlobState blob) throws Exception
+    {
+        store.run(store.store.getLoadRunnable(blob.blobId, NullOutputStream.NULL_OUTPUT_STREAM));
+    }
+
+    @Benchmark
+    public void delete(final StoreState store, final DeletableBlobState blob) throws Exception
+    {
+        store.run(store.store.getDeleteRunnable(blob.blobId));
+    }
+
+    @Benchmark
+    public List<String> listAll(final StoreState store) throws Exception
+    {
+        final List<String> ids = new ArrayList<String>();
+        store.run(store.store.getListAllRunnable(ids));
+        return ids;
+    }
+
+    /**
+     * Run all benchmarks at each number of threads.
+     *
+     * @param args JMH command line options.
+     * @throws Exception if a benchmark fails.
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        final CommandLineOptions cmdLine = new CommandLineOptions(args);
+        for (final int threads : THREADS) {
+            final Options opts = new OptionsBuilder()
+                .parent(cmdLine)
+                .include(BlobStoreBenchmark.class.getName())
+                .threads(threads)
+                .addProfiler(GCProfiler.class)
+                .build();
+            new Runner(opts).run();
+        }
+    }
+
+    /**
+     * A stream of a given number of bytes which are generated rather than held in memory,
+     * so that blobs of any size can be saved without the benchmark allocating them.
+     * The content does not repeat within a chunk, nor from one seed to another, so that compression and
+     * deduplication do not flatter it.
+     */
+    private static class GeneratedInputStream extends InputStream
+    {
+        private long remaining;
+
+        private int state;
+
+        GeneratedInputStream(final long length, final int seed)
+        {
+            this.remaining = length;
+            // A xorshift sequence started at 0 stays at 0.
+            this.state = (seed == 0) ? 0x2545F491 : seed;
+        }
+
+        @Override
+        public int read()
+        {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            this.remaining--;
+            return this.next();
+        }
+
+        @Override
+        public int read(final byte[] buff, final int off, final int len)
+        {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int count = (int) Math.min(len, this.remaining);
+            for (int i = off; i < off + count; i++) {
+                buff[i] = (byte) this.next();
+            }
+            this.remaining -= count;
+            return count;
+        }
+
+        /** @return the next byte of a xorshift sequence. */
+        private int next()
+        {
+            this.state ^= this.state << 13;
+            this.state ^= this.state >>> 17;
+            this.state ^= this.state << 5;
+            return this.state & 0xff;
+        }
+    }
+}
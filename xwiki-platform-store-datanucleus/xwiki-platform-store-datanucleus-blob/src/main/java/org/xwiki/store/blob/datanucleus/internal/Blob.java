@@ -19,12 +19,24 @@
  */
 package org.xwiki.store.blob.datanucleus.internal;
 
+import java.util.List;
+
+import javax.jdo.FetchPlan;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.annotations.FetchGroup;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PrimaryKey;
 import javax.jdo.annotations.PersistenceCapable;
 
 @PersistenceCapable(table = "Blob")
+@FetchGroup(name = Blob.INLINE_CONTENT, members = { @Persistent(name = "inlineContent") })
 class Blob
 {
+    /** The fetch group which loads the inline content, only loading the blob needs it. */
+    static final String INLINE_CONTENT = "inlineContent";
+
     @PrimaryKey
     private String id;
 
@@ -34,10 +46,91 @@ class Blob
      */
     private long activeVersion;
 
-    public Blob(final String id, final long activeVersion)
+    /**
+     * The hashes of the chunks of the blob in order if it is stored as content addressed
+     * {@link HashedBlobChunk}s, null if it is stored as {@link BlobChunk}s.
+     */
+    @Persistent(defaultFetchGroup = "true")
+    private List<String> chunkHashes;
+
+    /**
+     * The size of the first chunk, each following chunk is twice the size of the previous one
+     * until maxChunkSize is reached. Null for blobs saved before the chunk size was recorded.
+     */
+    private Integer chunkSize;
+
+    /** The size of the largest chunks, null if all chunks are chunkSize. */
+    private Integer maxChunkSize;
+
+    /** The number of bytes in the blob, null for blobs saved before the length was recorded. */
+    private Long length;
+
+    /** The number of chunks in the blob, null for blobs saved before the chunk count was recorded. */
+    private Integer chunkCount;
+
+    /** The hex encoded SHA-256 digest of the blob content, null if it was not recorded. */
+    private String digest;
+
+    /**
+     * True if the blob has been deleted but it's chunks have not yet been removed by the {@link BlobPurger}.
+     * A deleted blob is treated as if it did not exist. Null for blobs saved before tombstones existed.
+     */
+    @Index
+    private Boolean deleted;
+
+    /**
+     * The whole content of a small blob which has no chunks, null if the blob is stored in chunks.
+     * It is not in the default fetch group, stat, save and delete don't read it.
+     */
+    @Persistent(defaultFetchGroup = "false")
+    private byte[] inlineContent;
+
+    public Blob(final String id, final long activeVersion, final int chunkSize, final int maxChunkSize)
     {
         this.id = id;
         this.activeVersion = activeVersion;
+        this.chunkSize = chunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.deleted = Boolean.FALSE;
+    }
+
+    /**
+     * Get a blob which exists and is not deleted.
+     *
+     * @param pm the PersistenceManager to get the blob with.
+     * @param id the id of the blob.
+     * @return the blob.
+     * @throws JDOObjectNotFoundException if there is no such blob or it is deleted.
+     */
+    public static Blob getExisting(final PersistenceManager pm, final String id)
+    {
+        final Blob blob = pm.getObjectById(Blob.class, id);
+        if (blob.isDeleted()) {
+            throw new JDOObjectNotFoundException("Blob [" + id + "] is deleted");
+        }
+        return blob;
+    }
+
+    /**
+     * Get a blob which exists and is not deleted along with it's inline content.
+     *
+     * @param pm the PersistenceManager to get the blob with.
+     * @param id the id of the blob.
+     * @return the blob with the inline content loaded.
+     * @throws JDOObjectNotFoundException if there is no such blob or it is deleted.
+     */
+    public static Blob getExistingWithContent(final PersistenceManager pm, final String id)
+    {
+        final FetchPlan plan = pm.getFetchPlan();
+        plan.addGroup(INLINE_CONTENT);
+        try {
+            final Blob blob = getExisting(pm, id);
+            // The blob may already have been read without the content, if so it is fetched now.
+            pm.retrieve(blob, true);
+            return blob;
+        } finally {
+            plan.removeGroup(INLINE_CONTENT);
+        }
     }
 
     /**
@@ -61,4 +154,84 @@ class Blob
     {
         return id;
     }
+
+    /** @return the hashes of the content addressed chunks or null if the chunks are not content addressed. */
+    public List<String> getChunkHashes()
+    {
+        return this.chunkHashes;
+    }
+
+    /** @return the size of the first chunk or null if the blob uses the legacy fixed chunk size. */
+    public Integer getChunkSize()
+    {
+        return this.chunkSize;
+    }
+
+    /** @return the size of the largest chunks or null if all chunks have the same size. */
+    public Integer getMaxChunkSize()
+    {
+        return this.maxChunkSize;
+    }
+
+    /** @return the number of bytes in the blob or null if it was not recorded. */
+    public Long getLength()
+    {
+        return this.length;
+    }
+
+    /** @return the number of chunks in the blob or null if it was not recorded. */
+    public Integer getChunkCount()
+    {
+        return this.chunkCount;
+    }
+
+    /** @return the hex encoded SHA-256 digest of the blob content or null if it was not recorded. */
+    public String getDigest()
+    {
+        return this.digest;
+    }
+
+    /**
+     * Record what is known about the content once all of it has been saved.
+     *
+     * @param length the number of bytes in the blob.
+     * @param chunkCount the number of chunks in the blob.
+     * @param digest the hex encoded SHA-256 digest of the blob content.
+     */
+    public void setContentInfo(final long length, final int chunkCount, final String digest)
+    {
+        this.length = length;
+        this.chunkCount = chunkCount;
+        this.digest = digest;
+    }
+
+    /** @return the content of the blob if it is stored in the Blob row, otherwise null. */
+    public byte[] getInlineContent()
+    {
+        return this.inlineContent;
+    }
+
+    /** @param inlineContent the whole content of the blob, it will have no chunks. */
+    public void setInlineContent(final byte[] inlineContent)
+    {
+        this.inlineContent = inlineContent;
+    }
+
+    /** @return true if the blob is deleted and only waiting for it's chunks to be removed. */
+    public boolean isDeleted()
+    {
+        return Boolean.TRUE.equals(this.deleted);
+    }
+
+    /** Mark the blob deleted, from now on it is treated as if it did not exist. */
+    public void markDeleted()
+    {
+        this.deleted = Boolean.TRUE;
+    }
+
+    /** @param chunkHashes the hashes of the content addressed chunks in order. */
+    public void setChunkHashes(final List<String> chunkHashes)
+    {
+        this.chunkHashes = chunkHashes;
+    }
 }
@@ -26,6 +26,12 @@ import javax.jdo.annotations.PersistenceCapable;
 @PersistenceCapable(table = "BlobChunk")
 class BlobChunk
 {
+    /**
+     * The number of bytes in each chunk of blobs which do not record their chunk size, 1<<20 == 1 megabyte.
+     * This is also the size up to which a blob of known length is stored in a single chunk.
+     */
+    static final int SIZE = 1<<20;
+
     /**
      * The primary key.
      * This is constructed of the blob id followed by the chunk index, starting with zero.
@@ -39,9 +45,18 @@ class BlobChunk
     @Index
     private long version;
 
-    /** The content of the blob chunk. */
+    /** The content of the blob chunk, encoded with the codec. */
     private byte[] content;
 
+    /** The id of the {@link ChunkCodec} used to encode the content, null if it is stored as is. */
+    private Integer codec;
+
+    /**
+     * The time when the chunk was written in milliseconds since the epoch, null for chunks
+     * written before it was recorded.
+     */
+    private Long created;
+
     public BlobChunk(final String blobId,
                      final long version,
                      final int chunkIndex)
@@ -49,6 +64,7 @@ class BlobChunk
         this.id = makeId(blobId, version, chunkIndex);
         this.blobId = blobId;
         this.version = version;
+        this.created = System.currentTimeMillis();
     }
 
     public byte[] getContent()
@@ -61,6 +77,16 @@ class BlobChunk
         this.content = content;
     }
 
+    public ChunkCodec getCodec()
+    {
+        return ChunkCodec.forId(this.codec);
+    }
+
+    public void setCodec(final ChunkCodec codec)
+    {
+        this.codec = (codec == ChunkCodec.NONE) ? null : codec.getId();
+    }
+
     public static Object[] makeId(final String blobId,
                                   final long version,
                                   final int chunkIndex)
@@ -0,0 +1,148 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jdo.PersistenceManager;
+
+/**
+ * An InputStream which fetches the chunks of a blob one by one as they are read.
+ * Only the chunk being read is held in memory, it must be used in the transaction it was opened in.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobChunkInputStream extends InputStream
+{
+    /** The PersistenceManager to fetch chunks with, null if the content is inline. */
+    private final PersistenceManager pm;
+
+    /** The layout of the blob, null if the content is inline. */
+    private final BlobLayout layout;
+
+    /** The index of the next chunk to fetch. */
+    private int nextChunk;
+
+    /** The content of the chunk being read, null before the first chunk is fetched. */
+    private byte[] chunk;
+
+    /** The position in the chunk of the next byte to read. */
+    private int position;
+
+    /** True once there are no more chunks to fetch. */
+    private boolean ended;
+
+    /**
+     * Read a blob from it's chunks.
+     *
+     * @param pm the PersistenceManager to fetch chunks with.
+     * @param layout the layout of the blob.
+     */
+    BlobChunkInputStream(final PersistenceManager pm, final BlobLayout layout)
+    {
+        this.pm = pm;
+        this.layout = layout;
+    }
+
+    /**
+     * Read a blob which is stored in the Blob row.
+     *
+     * @param inlineContent the content of the blob.
+     */
+    BlobChunkInputStream(final byte[] inlineContent)
+    {
+        this.pm = null;
+        this.layout = null;
+        this.chunk = inlineContent;
+        this.ended = true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!this.fill()) {
+            return -1;
+        }
+        return this.chunk[this.position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buff, final int off, final int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!this.fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, this.chunk.length - this.position);
+        System.arraycopy(this.chunk, this.position, buff, off, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        if (n <= 0 || !this.fill()) {
+            return 0;
+        }
+        final int count = (int) Math.min(n, this.chunk.length - this.position);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return (this.chunk == null) ? 0 : this.chunk.length - this.position;
+    }
+
+    /**
+     * Fetch chunks until there is something to read.
+     *
+     * @return false if the end of the blob is reached.
+     * @throws IOException if fetching a chunk fails.
+     */
+    private boolean fill() throws IOException
+    {
+        while (this.chunk == null || this.position >= this.chunk.length) {
+            if (this.ended) {
+                return false;
+            }
+            if (this.layout.getChunkCount() >= 0 && this.nextChunk >= this.layout.getChunkCount()) {
+                // The number of chunks is known, don't look for chunks past the end.
+                this.ended = true;
+                this.chunk = null;
+                return false;
+            }
+            // The previous chunk is dropped here so it can be collected.
+            this.chunk = this.layout.fetchChunk(this.pm, this.nextChunk++);
+            this.position = 0;
+            if (this.chunk == null) {
+                this.ended = true;
+                return false;
+            }
+        }
+        return true;
+    }
+}
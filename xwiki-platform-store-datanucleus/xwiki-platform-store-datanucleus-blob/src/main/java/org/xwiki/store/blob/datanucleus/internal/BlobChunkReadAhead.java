@@ -0,0 +1,203 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+/**
+ * Fetches the chunks of a blob ahead of the reader, keeping a bounded window of fetches in flight.
+ * Each fetch runs on the given executor with a PersistenceManager of its own because
+ * PersistenceManagers are not thread safe, the chunks of a given version are never modified once
+ * written so reading them outside of the caller's transaction is safe.
+ * At most window chunks are held in memory at once.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobChunkReadAhead
+{
+    /** The factory from which to get the PersistenceManagers used by the fetching threads. */
+    private final PersistenceManagerFactory factory;
+
+    /** The executor which runs the fetches. */
+    private final ExecutorService executor;
+
+    /** The layout of the blob to fetch chunks from. */
+    private final BlobLayout layout;
+
+    /** The index of the chunk after the last one to fetch. */
+    private final int endChunk;
+
+    /** The maximum number of fetches to have in flight at once. */
+    private final int window;
+
+    /** The ClassLoader of the reading thread, needed by the fetching threads to resolve classes. */
+    private final ClassLoader contextClassLoader;
+
+    /** Fetches which have been submitted, in chunk order. */
+    private final Queue<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+
+    /** PersistenceManagers which are not being used by any fetch, guarded by itself. */
+    private final Queue<PersistenceManager> idleManagers = new LinkedList<PersistenceManager>();
+
+    /** The index of the next chunk to submit a fetch for. */
+    private int nextIndex;
+
+    /** True after a fetch has found that there are no more chunks or the read-ahead is closed. */
+    private boolean finished;
+
+    /** True after close() has been called, guarded by idleManagers. */
+    private boolean closed;
+
+    /**
+     * The Constructor.
+     *
+     * @param factory the factory to get PersistenceManagers from.
+     * @param executor the executor to run fetches on.
+     * @param layout the layout of the blob to read.
+     * @param firstChunk the index of the first chunk to read.
+     * @param endChunk the index of the chunk after the last one to read.
+     * @param window the maximum number of fetches to have in flight at once.
+     */
+    BlobChunkReadAhead(final PersistenceManagerFactory factory,
+                       final ExecutorService executor,
+                       final BlobLayout layout,
+                       final int firstChunk,
+                       final int endChunk,
+                       final int window)
+    {
+        this.factory = factory;
+        this.executor = executor;
+        this.layout = layout;
+        this.nextIndex = firstChunk;
+        this.endChunk = endChunk;
+        this.window = window;
+        this.contextClassLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    /**
+     * Get the content of the next chunk, waiting for it's fetch to complete if needed.
+     *
+     * @return the content of the next chunk or null if there are no more chunks.
+     * @throws IOException if fetching the chunk fails or the thread is interrupted.
+     */
+    byte[] next() throws IOException
+    {
+        if (this.finished) {
+            return null;
+        }
+        while (this.inFlight.size() < this.window && this.nextIndex < this.endChunk) {
+            this.inFlight.add(this.executor.submit(new ChunkFetch(this.nextIndex++)));
+        }
+        final Future<byte[]> fetch = this.inFlight.poll();
+        if (fetch == null) {
+            this.finished = true;
+            return null;
+        }
+        final byte[] content;
+        try {
+            content = fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading blob ["
+                                             + this.layout.getBlobId() + "]");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Failed to load chunk of blob [" + this.layout.getBlobId() + "]", e.getCause());
+        }
+        if (content == null) {
+            // Fetches past the end are still in flight, there is nothing left to read.
+            this.finished = true;
+        }
+        return content;
+    }
+
+    /** Cancel any remaining fetches and close the PersistenceManagers. */
+    void close()
+    {
+        this.finished = true;
+        for (final Future<byte[]> f : this.inFlight) {
+            f.cancel(false);
+        }
+        this.inFlight.clear();
+        synchronized (this.idleManagers) {
+            this.closed = true;
+            for (final PersistenceManager pm : this.idleManagers) {
+                pm.close();
+            }
+            this.idleManagers.clear();
+        }
+    }
+
+    /** Fetch of a single chunk, returns null if the chunk does not exist. */
+    private class ChunkFetch implements Callable<byte[]>
+    {
+        /** The index of the chunk to fetch. */
+        private final int index;
+
+        /**
+         * The Constructor.
+         *
+         * @param index the index of the chunk to fetch.
+         */
+        ChunkFetch(final int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public byte[] call() throws IOException
+        {
+            PersistenceManager pm;
+            synchronized (idleManagers) {
+                pm = idleManagers.poll();
+            }
+            if (pm == null) {
+                pm = factory.getPersistenceManager();
+            }
+            final ClassLoader oldClassLoader = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+            try {
+                return layout.fetchChunk(pm, this.index);
+            } finally {
+                Thread.currentThread().setContextClassLoader(oldClassLoader);
+                synchronized (idleManagers) {
+                    if (closed) {
+                        pm.close();
+                    } else {
+                        idleManagers.add(pm);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.datanucleus.internal.ObjectLookup;
+
+/**
+ * Delete many blobs at once by marking them deleted.
+ * The blobs are looked up by id and the tombstones written with one flush, the blobs are invisible
+ * from then on. Their chunks are removed later by the {@link BlobPurger}.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobDeleteAllTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final Collection<String> blobIds;
+
+    public BlobDeleteAllTransactionRunnable(final Collection<String> blobIds)
+    {
+        this.blobIds = new ArrayList<String>(blobIds);
+    }
+
+    @Override
+    protected void onRun()
+    {
+        if (this.blobIds.isEmpty()) {
+            return;
+        }
+        final PersistenceManager pm = this.getContext();
+        for (final Blob blob : ObjectLookup.getExisting(pm, Blob.class, this.blobIds)) {
+            DeletedBlob.record(pm, blob);
+        }
+        pm.flush();
+    }
+}
@@ -19,6 +19,7 @@
  */
 package org.xwiki.store.blob.datanucleus.internal;
 
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import org.xwiki.store.TransactionRunnable;
 
@@ -35,6 +36,15 @@ class BlobDeleteTransactionRunnable extends TransactionRunnable<PersistenceManag
     protected void onRun()
     {
         final PersistenceManager pm = this.getContext();
+        try {
+            final Blob b = pm.getObjectById(Blob.class, this.blobId);
+            if (b.getChunkHashes() != null) {
+                HashedBlobChunkReference.release(pm, b.getChunkHashes(),
+                                                 HashedBlobChunkReference.blobOwner(this.blobId, b.getActiveVersion()));
+            }
+        } catch (JDOObjectNotFoundException e) {
+            // Nothing but maybe stray chunks to delete.
+        }
         pm.newQuery(BlobChunk.class, "WHERE blobId == ?").deletePersistentAll(new Object[] { this.blobId });
         pm.newQuery(Blob.class, "WHERE id == ?").deletePersistentAll(new Object[] { this.blobId });
     }
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A bounded cache of blob content in files on the local disk.
+ * Entries are evicted least recently used first once the total size exceeds the maximum.
+ * The index is only kept in memory so the directory is emptied when the cache is created.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobDiskCache
+{
+    /** The directory holding the cached files. */
+    private final File directory;
+
+    /** The maximum total size of the cached files in bytes. */
+    private final long maxSize;
+
+    /** The cached files by key, in access order. */
+    private final LinkedHashMap<String, File> entries = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+    /** The total size of the cached files in bytes. */
+    private long size;
+
+    /**
+     * The Constructor.
+     *
+     * @param directory the directory to hold the cached files, any content is removed.
+     * @param maxSize the maximum total size of the cached files in bytes.
+     * @throws IOException if the directory cannot be created or emptied.
+     */
+    BlobDiskCache(final File directory, final long maxSize) throws IOException
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        FileUtils.forceMkdir(directory);
+        FileUtils.cleanDirectory(directory);
+    }
+
+    /**
+     * @param key the key of the entry.
+     * @return the cached file or null if there is none, the file may be removed by an eviction at any time.
+     */
+    synchronized File get(final String key)
+    {
+        return this.entries.get(key);
+    }
+
+    /**
+     * @return a new empty file in the cache directory to be filled and then passed to
+     *         {@link #put(String, File)} or deleted.
+     * @throws IOException if the file cannot be created.
+     */
+    File newTempFile() throws IOException
+    {
+        return File.createTempFile("blob-", ".tmp", this.directory);
+    }
+
+    /**
+     * Add an entry, evicting older entries to make room.
+     * If the key is already cached, the new file is deleted.
+     *
+     * @param key the key of the entry.
+     * @param file a file from {@link #newTempFile()} containing the content, the cache takes ownership.
+     */
+    synchronized void put(final String key, final File file)
+    {
+        final long length = file.length();
+        if (this.entries.containsKey(key) || length > this.maxSize) {
+            FileUtils.deleteQuietly(file);
+            return;
+        }
+        this.entries.put(key, file);
+        this.size += length;
+        final Iterator<Map.Entry<String, File>> it = this.entries.entrySet().iterator();
+        while (this.size > this.maxSize && it.hasNext()) {
+            final File evicted = it.next().getValue();
+            it.remove();
+            this.size -= evicted.length();
+            FileUtils.deleteQuietly(evicted);
+        }
+    }
+}
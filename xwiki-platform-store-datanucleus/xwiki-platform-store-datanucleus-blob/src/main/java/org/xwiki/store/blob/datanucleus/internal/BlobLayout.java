@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+
+/**
+ * An immutable snapshot of where the chunks of a blob are stored and how large they are.
+ * Unlike the {@link Blob} it is taken from, it is not attached to any PersistenceManager
+ * so it can be used to fetch chunks from any thread.
+ * Chunk n is min(chunkSize * 2^n, maxChunkSize) bytes long, except the last chunk which may be shorter.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobLayout
+{
+    /** The smallest chunk size which is chosen for a blob. */
+    static final int MIN_CHUNK_SIZE = 1 << 12;
+
+    /** The size of the first chunk of a blob of unknown length, chunks grow from there. */
+    static final int GROWING_CHUNK_SIZE = 1 << 16;
+
+    /** Blobs of known length larger than a single chunk are split into about this many chunks. */
+    private static final int TARGET_CHUNK_COUNT = 64;
+
+    /** The id of the blob. */
+    private final String blobId;
+
+    /** The active version of the blob. */
+    private final long version;
+
+    /** The hashes of the chunks if they are content addressed, otherwise null. */
+    private final List<String> chunkHashes;
+
+    /** The size of the first chunk. */
+    private final int chunkSize;
+
+    /** The size of the largest chunks. */
+    private final int maxChunkSize;
+
+    /** The number of chunks in the blob, -1 if it is not known. */
+    private final int chunkCount;
+
+    /**
+     * The Constructor.
+     *
+     * @param blob the blob metadata to take the layout from.
+     */
+    BlobLayout(final Blob blob)
+    {
+        this.blobId = blob.getId();
+        this.version = blob.getActiveVersion();
+        this.chunkHashes = (blob.getChunkHashes() == null)
+            ? null : new ArrayList<String>(blob.getChunkHashes());
+        this.chunkSize = (blob.getChunkSize() == null) ? BlobChunk.SIZE : blob.getChunkSize();
+        this.maxChunkSize = (blob.getMaxChunkSize() == null) ? this.chunkSize : blob.getMaxChunkSize();
+        if (blob.getChunkCount() != null) {
+            this.chunkCount = blob.getChunkCount();
+        } else if (this.chunkHashes != null) {
+            this.chunkCount = this.chunkHashes.size();
+        } else if (blob.getLength() != null) {
+            this.chunkCount = (blob.getLength() == 0) ? 0 : this.chunkIndexAt(blob.getLength() - 1) + 1;
+        } else {
+            this.chunkCount = -1;
+        }
+    }
+
+    /**
+     * Choose the size of the first chunk for a new blob.
+     * If the length is known, a small blob is stored in a single chunk of about it's own size and a
+     * large blob in about TARGET_CHUNK_COUNT chunks of equal size. If the length is unknown, chunks
+     * start small and grow geometrically up to maxChunkSize as the stream continues.
+     *
+     * @param expectedLength the expected length of the blob or a negative number if unknown.
+     * @param maxChunkSize the largest chunk allowed.
+     * @return the size of the first chunk, if it is equal to maxChunkSize then all chunks are that size.
+     */
+    static int chooseChunkSize(final long expectedLength, final int maxChunkSize)
+    {
+        if (expectedLength < 0) {
+            return Math.min(GROWING_CHUNK_SIZE, maxChunkSize);
+        }
+        final long target = (expectedLength <= BlobChunk.SIZE)
+            ? expectedLength : Math.max(BlobChunk.SIZE, expectedLength / TARGET_CHUNK_COUNT);
+        final long powerOfTwo = (target <= 1) ? 1 : Long.highestOneBit(target - 1) << 1;
+        return (int) Math.min(maxChunkSize, Math.max(MIN_CHUNK_SIZE, powerOfTwo));
+    }
+
+    /**
+     * @param chunkSize the size of the first chunk.
+     * @param maxChunkSize the size of the largest chunks.
+     * @param index the index of a chunk.
+     * @return the size of the chunk at the given index, unless it is the last chunk which may be shorter.
+     */
+    static int chunkLength(final int chunkSize, final int maxChunkSize, final int index)
+    {
+        return (index >= 32) ? maxChunkSize : (int) Math.min(((long) chunkSize) << index, maxChunkSize);
+    }
+
+    /**
+     * @param index the index of a chunk.
+     * @return the number of bytes from the beginning of the blob to the beginning of the chunk.
+     */
+    long chunkOffset(final int index)
+    {
+        long offset = 0;
+        long size = this.chunkSize;
+        int i = 0;
+        for (; i < index && size < this.maxChunkSize; i++) {
+            offset += size;
+            size <<= 1;
+        }
+        return offset + ((long) (index - i)) * this.maxChunkSize;
+    }
+
+    /**
+     * @param offset a number of bytes from the beginning of the blob.
+     * @return the index of the chunk which contains the byte at that offset.
+     */
+    int chunkIndexAt(final long offset)
+    {
+        long start = 0;
+        long size = this.chunkSize;
+        int i = 0;
+        for (; size < this.maxChunkSize; i++) {
+            if (offset < start + size) {
+                return i;
+            }
+            start += size;
+            size <<= 1;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, i + (offset - start) / this.maxChunkSize);
+    }
+
+    /**
+     * Fetch the content of a chunk and decode it.
+     *
+     * @param pm the PersistenceManager to fetch with.
+     * @param index the index of the chunk within the blob.
+     * @return the decoded content of the chunk or null if there is no such chunk.
+     * @throws IOException if the chunk cannot be decoded.
+     */
+    byte[] fetchChunk(final PersistenceManager pm, final int index) throws IOException
+    {
+        if (this.chunkCount >= 0 && index >= this.chunkCount) {
+            return null;
+        }
+        final int maxLength = chunkLength(this.chunkSize, this.maxChunkSize, index);
+        final byte[] content;
+        final ChunkCodec codec;
+        try {
+            if (this.chunkHashes != null) {
+                final HashedBlobChunk hbc = pm.getObjectById(HashedBlobChunk.class, this.chunkHashes.get(index));
+                content = hbc.getContent();
+                codec = hbc.getCodec();
+                pm.evict(hbc);
+            } else {
+                final BlobChunk bc =
+                    pm.getObjectById(BlobChunk.class, BlobChunk.makeId(this.blobId, this.version, index));
+                content = bc.getContent();
+                codec = bc.getCodec();
+                pm.evict(bc);
+            }
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        }
+        return codec.decode(content, maxLength);
+    }
+
+    /**
+     * @return the number of chunks in the blob or -1 if it is not known, in which case chunks
+     *         must be fetched until one is not found.
+     */
+    int getChunkCount()
+    {
+        return this.chunkCount;
+    }
+
+    /** @return the id of the blob. */
+    String getBlobId()
+    {
+        return this.blobId;
+    }
+}
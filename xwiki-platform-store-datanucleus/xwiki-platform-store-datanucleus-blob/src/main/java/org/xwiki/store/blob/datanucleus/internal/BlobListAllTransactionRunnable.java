@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Collection;
 
 import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
 import org.xwiki.store.TransactionRunnable;
 
 class BlobListAllTransactionRunnable extends TransactionRunnable<PersistenceManager>
@@ -37,9 +38,12 @@ class BlobListAllTransactionRunnable extends TransactionRunnable<PersistenceMana
     @Override
     protected void onRun()
     {
-        final Collection<Blob> blobs = (Collection<Blob>) this.getContext().newQuery(Blob.class).execute();
-        for (final Blob b : blobs) {
-            this.outputList.add(b.getId());
+        final Query query = this.getContext().newQuery(Blob.class, BlobListTransactionRunnable.NOT_DELETED);
+        query.setResult("id");
+        try {
+            this.outputList.addAll((Collection<String>) query.execute());
+        } finally {
+            query.closeAll();
         }
     }
 }
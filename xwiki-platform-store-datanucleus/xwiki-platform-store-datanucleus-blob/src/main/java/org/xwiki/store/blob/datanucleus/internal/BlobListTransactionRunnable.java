@@ -0,0 +1,92 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.List;
+import java.util.TreeSet;
+
+import javax.jdo.Extent;
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * List one page of blob ids in ascending order.
+ * The next page is found by starting after the last id of this one.
+ * The data store would evaluate an ordering and a range in memory over the ids of every blob, so instead
+ * the Blob table is walked with an extent and only the lowest ids after the resume key are kept,
+ * a page uses memory for no more than the limit whatever the number of blobs.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobListTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    /** A filter which excludes blobs which are deleted and waiting for the collector. */
+    static final String NOT_DELETED = "(deleted == null || deleted == false)";
+
+    private final String prefix;
+
+    private final String after;
+
+    private final int limit;
+
+    private final List<String> outputList;
+
+    public BlobListTransactionRunnable(final String prefix,
+                                       final String after,
+                                       final int limit,
+                                       final List<String> outputList)
+    {
+        if (limit < 1) {
+            throw new IllegalArgumentException("The limit of a blob listing must be positive, got [" + limit + "]");
+        }
+        this.prefix = prefix;
+        this.after = after;
+        this.limit = limit;
+        this.outputList = outputList;
+    }
+
+    @Override
+    protected void onRun()
+    {
+        final TreeSet<String> page = new TreeSet<String>();
+        final Extent<Blob> extent = this.getContext().getExtent(Blob.class, false);
+        try {
+            for (final Blob blob : extent) {
+                final String id = blob.getId();
+                if (blob.isDeleted()
+                    || (this.prefix != null && !id.startsWith(this.prefix))
+                    || (this.after != null && id.compareTo(this.after) <= 0))
+                {
+                    continue;
+                }
+                if (page.size() < this.limit) {
+                    page.add(id);
+                } else if (id.compareTo(page.last()) < 0) {
+                    page.pollLast();
+                    page.add(id);
+                }
+            }
+        } finally {
+            extent.closeAll();
+        }
+        this.outputList.addAll(page);
+    }
+}
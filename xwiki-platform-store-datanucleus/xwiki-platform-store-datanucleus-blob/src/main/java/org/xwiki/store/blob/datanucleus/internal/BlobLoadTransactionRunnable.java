@@ -19,15 +19,14 @@
  */
 package org.xwiki.store.blob.datanucleus.internal;
 
-import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
 
-import javax.jdo.annotations.Index;
-import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
-import javax.jdo.Query;
-import org.apache.commons.io.IOUtils;
 import org.xwiki.store.TransactionRunnable;
 
 class BlobLoadTransactionRunnable extends TransactionRunnable<PersistenceManager>
@@ -35,27 +34,161 @@ class BlobLoadTransactionRunnable extends TransactionRunnable<PersistenceManager
     private final String blobId;
     private final OutputStream writeTo;
 
+    /** The channel to write to, null if writing to an OutputStream. */
+    private final WritableByteChannel channelTo;
+
+    /** The number of bytes from the beginning of the blob to start writing from. */
+    private final long offset;
+
+    /** The maximum number of bytes to write. */
+    private final long length;
+
+    /** The executor to fetch chunks ahead on, null if read-ahead is not used. */
+    private final ExecutorService readAheadExecutor;
+
+    /** The number of chunk fetches to keep in flight, 1 or less means chunks are fetched one by one. */
+    private final int readAheadWindow;
+
     public BlobLoadTransactionRunnable(final String blobId, final OutputStream writeTo)
     {
+        this(blobId, 0, Long.MAX_VALUE, writeTo, null, 1);
+    }
+
+    public BlobLoadTransactionRunnable(final String blobId,
+                                       final long offset,
+                                       final long length,
+                                       final OutputStream writeTo,
+                                       final ExecutorService readAheadExecutor,
+                                       final int readAheadWindow)
+    {
+        this(blobId, offset, length, writeTo, null, readAheadExecutor, readAheadWindow);
+    }
+
+    public BlobLoadTransactionRunnable(final String blobId,
+                                       final long offset,
+                                       final long length,
+                                       final WritableByteChannel channelTo,
+                                       final ExecutorService readAheadExecutor,
+                                       final int readAheadWindow)
+    {
+        this(blobId, offset, length, null, channelTo, readAheadExecutor, readAheadWindow);
+    }
+
+    private BlobLoadTransactionRunnable(final String blobId,
+                                        final long offset,
+                                        final long length,
+                                        final OutputStream writeTo,
+                                        final WritableByteChannel channelTo,
+                                        final ExecutorService readAheadExecutor,
+                                        final int readAheadWindow)
+    {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Negative offset [" + offset + "] or length ["
+                                               + length + "] when loading blob [" + blobId + "]");
+        }
+        if (channelTo instanceof SelectableChannel && !((SelectableChannel) channelTo).isBlocking()) {
+            // A non-blocking channel would make the writing loop spin.
+            throw new IllegalArgumentException("The channel to load blob [" + blobId + "] to must be blocking");
+        }
         this.blobId = blobId;
+        this.offset = offset;
+        this.length = length;
         this.writeTo = writeTo;
+        this.channelTo = channelTo;
+        this.readAheadExecutor = readAheadExecutor;
+        this.readAheadWindow = readAheadWindow;
     }
 
     @Override
     protected void onRun() throws IOException
     {
         final PersistenceManager pm = this.getContext();
-        final Blob b = pm.getObjectById(Blob.class, this.blobId);
-        long version = b.getActiveVersion();
+        final Blob blob = Blob.getExistingWithContent(pm, this.blobId);
+        if (blob.getInlineContent() != null) {
+            this.writeInline(blob.getInlineContent());
+            return;
+        }
+        final BlobLayout layout = new BlobLayout(blob);
+
+        // Only the chunks which contain part of the requested range are fetched.
+        final int firstChunk = layout.chunkIndexAt(this.offset);
+        int endChunk;
+        if (this.length > Long.MAX_VALUE - this.offset) {
+            endChunk = Integer.MAX_VALUE;
+        } else {
+            endChunk = (int) Math.min(Integer.MAX_VALUE, layout.chunkIndexAt(this.offset + this.length - 1) + 1L);
+        }
+        if (layout.getChunkCount() >= 0) {
+            // The number of chunks is known, don't look for chunks past the end.
+            endChunk = Math.min(endChunk, layout.getChunkCount());
+        }
+
+        // Never keep more fetches in flight than there are chunks to read.
+        final int window = (int) Math.min(this.readAheadWindow, (long) endChunk - firstChunk);
+        final BlobChunkReadAhead readAhead;
+        if (this.readAheadExecutor != null && window > 1) {
+            readAhead = new BlobChunkReadAhead(pm.getPersistenceManagerFactory(), this.readAheadExecutor,
+                                               layout, firstChunk, endChunk, window);
+        } else {
+            readAhead = null;
+        }
+
+        long skip = this.offset - layout.chunkOffset(firstChunk);
+        long remaining = this.length;
         try {
-            for (int i = 0;; i++) {
-                final Object chunkId = BlobChunk.makeId(this.blobId, version, i);
-                final BlobChunk bc = pm.getObjectById(BlobChunk.class, chunkId);
-                IOUtils.write(bc.getContent(), this.writeTo);
-                pm.evict(bc);
+            for (int i = firstChunk; i < endChunk && remaining > 0; i++) {
+                final byte[] content = (readAhead != null) ? readAhead.next() : layout.fetchChunk(pm, i);
+                if (content == null) {
+                    // No more chunks to get.
+                    break;
+                }
+                final int count = (int) Math.min(content.length - skip, remaining);
+                if (count > 0) {
+                    this.write(content, (int) skip, count);
+                    remaining -= count;
+                }
+                skip = 0;
             }
-        } catch (JDOObjectNotFoundException e) {
-            // No more chunks to get.
+        } finally {
+            if (readAhead != null) {
+                readAhead.close();
+            }
+        }
+    }
+
+    /**
+     * Write the requested range of a blob which is stored in the Blob row.
+     *
+     * @param content the whole content of the blob.
+     * @throws IOException if writing fails.
+     */
+    private void writeInline(final byte[] content) throws IOException
+    {
+        final int start = (int) Math.min(this.offset, content.length);
+        final int count = (int) Math.min(this.length, content.length - start);
+        if (count > 0) {
+            this.write(content, start, count);
+        }
+    }
+
+    /**
+     * Write part of a chunk to the output.
+     * A channel is given the chunk content itself, there is no intermediate copy.
+     *
+     * @param content the decoded content of the chunk.
+     * @param off the offset in the content to write from.
+     * @param len the number of bytes to write.
+     * @throws IOException if writing fails.
+     */
+    private void write(final byte[] content, final int off, final int len) throws IOException
+    {
+        if (this.writeTo != null) {
+            this.writeTo.write(content, off, len);
+            return;
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(content, off, len);
+        while (bb.hasRemaining()) {
+            this.channelTo.write(bb);
         }
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.List;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Removes the chunks of the blobs which were marked deleted, then the blobs themselves.
+ * Deletes only write a tombstone and a {@link DeletedBlob} record, the purger walks those records in batches,
+ * each batch in it's own transaction, with a pause between batches. It runs whether or not the
+ * {@link BlobVersionCollector} is enabled.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobPurger implements Runnable
+{
+    /** For reporting failed runs, the executor would otherwise swallow them. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobPurger.class);
+
+    /** The provider of the transactions to purge in. */
+    private final TransactionProvider<PersistenceManager> provider;
+
+    /** The configuration of the store. */
+    private final BlobStoreSettings settings;
+
+    /**
+     * The Constructor.
+     *
+     * @param provider the provider of the transactions to purge in.
+     * @param settings the configuration of the store.
+     */
+    BlobPurger(final TransactionProvider<PersistenceManager> provider, final BlobStoreSettings settings)
+    {
+        this.provider = provider;
+        this.settings = settings;
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            this.purgeDeleted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to purge deleted blobs, will try again at the next run", e);
+        }
+    }
+
+    /**
+     * Remove the blobs which are marked deleted, one batch per transaction.
+     *
+     * @throws Exception if a transaction fails or the purger is interrupted.
+     */
+    private void purgeDeleted() throws Exception
+    {
+        final int batchSize = this.settings.getCollectorBatchSize();
+        for (;;) {
+            final int[] count = new int[1];
+            final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+            new PurgeDeletedRunnable(batchSize, count).runIn(transaction);
+            transaction.start();
+            if (count[0] < batchSize) {
+                return;
+            }
+            Thread.sleep(this.settings.getCollectorPause());
+        }
+    }
+
+    /**
+     * Remove a blob and all of it's chunks up to it's active version.
+     * Chunks of later versions belong to a save which is in progress and are left alone.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param blob the blob to remove.
+     */
+    static void purge(final PersistenceManager pm, final Blob blob)
+    {
+        if (blob.getChunkHashes() != null) {
+            HashedBlobChunkReference.release(pm, blob.getChunkHashes(),
+                                             HashedBlobChunkReference.blobOwner(blob.getId(), blob.getActiveVersion()));
+        }
+        pm.newQuery(BlobChunk.class, "WHERE blobId == ? && version <= ?")
+            .deletePersistentAll(new Object[] { blob.getId(), blob.getActiveVersion() });
+        pm.deletePersistent(blob);
+    }
+
+    /** Remove one batch of deleted blobs. */
+    private static class PurgeDeletedRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** The maximum number of blobs to remove. */
+        private final int limit;
+
+        /** The number of records which were examined. */
+        private final int[] outputCount;
+
+        /**
+         * The Constructor.
+         *
+         * @param limit the maximum number of blobs to remove.
+         * @param outputCount an array of 1 which will be set to the number of records examined.
+         */
+        PurgeDeletedRunnable(final int limit, final int[] outputCount)
+        {
+            this.limit = limit;
+            this.outputCount = outputCount;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final PersistenceManager pm = this.getContext();
+            final List<DeletedBlob> records = BlobVersionCollector.take(pm, DeletedBlob.class, this.limit);
+            this.outputCount[0] = records.size();
+            for (final DeletedBlob record : records) {
+                try {
+                    final Blob blob = pm.getObjectById(Blob.class, record.getBlobId());
+                    // The blob may have been saved again since it was deleted.
+                    if (blob.isDeleted()) {
+                        purge(pm, blob);
+                    }
+                } catch (JDOObjectNotFoundException e) {
+                    // Already purged.
+                }
+            }
+            pm.deletePersistentAll(records);
+        }
+    }
+}
@@ -21,6 +21,13 @@ package org.xwiki.store.blob.datanucleus.internal;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import javax.jdo.JDOObjectNotFoundException;
@@ -32,37 +39,85 @@ import org.xwiki.store.TransactionRunnable;
 
 class BlobSaveTransactionRunnable extends TransactionRunnable<PersistenceManager>
 {
-    /** The number of bytes in each chunk of the blob, 1<<20 == 1 megabyte. */
-    private static final int CHUNK_SIZE = 1<<20;
-
     /** The key to save under. */
     private final String key;
 
-    /** The source of data to copy from. */
+    /** The source of data to copy from, null if copying from a channel. */
     private final InputStream copyFrom;
 
+    /** The channel to copy from, null if copying from an InputStream. */
+    private final ReadableByteChannel channelFrom;
+
     /** A java.util.Random used to increment the version. */
     private final Random random;
 
+    /** The expected length of the blob or -1 if unknown. */
+    private final long expectedLength;
+
+    /** The configuration of the store. */
+    private final BlobStoreSettings settings;
+
+    /** The pool to take chunk buffers from. */
+    private final ChunkBufferPool bufferPool;
+
     /** The blob metadata which will be saved after all blob chunks are saved. */
     private Blob blob;
 
+    /** The hashes of the content addressed chunks of the version being replaced, if any. */
+    private List<String> previousChunkHashes;
+
+    /** The version being replaced, null if the blob is new. */
+    private Long previousVersion;
+
     public BlobSaveTransactionRunnable(final String key,
                                        final InputStream copyFrom,
-                                       final Random random)
+                                       final long expectedLength,
+                                       final Random random,
+                                       final BlobStoreSettings settings,
+                                       final ChunkBufferPool bufferPool)
     {
+        this(key, copyFrom, null, expectedLength, random, settings, bufferPool);
+    }
+
+    public BlobSaveTransactionRunnable(final String key,
+                                       final ReadableByteChannel channelFrom,
+                                       final long expectedLength,
+                                       final Random random,
+                                       final BlobStoreSettings settings,
+                                       final ChunkBufferPool bufferPool)
+    {
+        this(key, null, channelFrom, expectedLength, random, settings, bufferPool);
+    }
+
+    private BlobSaveTransactionRunnable(final String key,
+                                        final InputStream copyFrom,
+                                        final ReadableByteChannel channelFrom,
+                                        final long expectedLength,
+                                        final Random random,
+                                        final BlobStoreSettings settings,
+                                        final ChunkBufferPool bufferPool)
+    {
+        if (channelFrom instanceof SelectableChannel && !((SelectableChannel) channelFrom).isBlocking()) {
+            // A non-blocking channel would make the reading loop spin.
+            throw new IllegalArgumentException("The channel to save blob [" + key + "] from must be blocking");
+        }
         this.key = key;
         this.copyFrom = copyFrom;
+        this.channelFrom = channelFrom;
+        this.expectedLength = expectedLength;
         this.random = random;
+        this.settings = settings;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     protected void onPreRun()
     {
-        final PersistenceManager pm = this.getContext();
         final long versionNumber = this.getNextVersionNumber();
-        this.deleteOldEntries(versionNumber);
-        this.blob = new Blob(this.key, versionNumber);
+        final int chunkSize = BlobLayout.chooseChunkSize(this.expectedLength, this.settings.getMaxChunkSize());
+        // Chunks only grow when the length is unknown.
+        final int maxChunkSize = (this.expectedLength < 0) ? this.settings.getMaxChunkSize() : chunkSize;
+        this.blob = new Blob(this.key, versionNumber, chunkSize, maxChunkSize);
     }
 
     @Override
@@ -70,30 +125,150 @@ class BlobSaveTransactionRunnable extends TransactionRunnable<PersistenceManager
     {
         final long version = this.blob.getActiveVersion();
         final PersistenceManager pm = this.getContext();
-        final byte[] chunkBuff = new byte[CHUNK_SIZE];
+        final int chunkSize = this.blob.getChunkSize();
+        final int maxChunkSize = this.blob.getMaxChunkSize();
+        final List<String> chunkHashes = (this.settings.isDeduplicate()) ? new ArrayList<String>() : null;
+        final String owner = HashedBlobChunkReference.blobOwner(this.key, version);
+        if (chunkHashes == null && this.settings.isCollectorEnabled()) {
+            // If this save never completes, the collector finds it's chunks from this record.
+            UncollectedBlobVersion.record(pm, this.key, version);
+        }
+        final int batchSize = this.settings.getSaveBatchSize();
+
+        // Chunks which have not yet been made persistent.
+        final List<BlobChunk> batch = new ArrayList<BlobChunk>(batchSize);
+        final MessageDigest digest = HashedBlobChunk.newDigest();
         long totalLength = 0;
+        int chunkCount = 0;
+        boolean inline = false;
         for (int i = 0;; i++) {
-            int length = IOUtils.read(this.copyFrom, chunkBuff);
-            final BlobChunk bc = new BlobChunk(this.key, version, i);
+            final int chunkLength = BlobLayout.chunkLength(chunkSize, maxChunkSize, i);
+            final byte[] chunkBuff = this.bufferPool.take(chunkLength);
+            int length = this.fill(chunkBuff);
+            if (i == 0 && length < chunkLength && length < this.settings.getInlineThreshold()) {
+                // The whole blob fits in the first chunk and is small enough to be kept in the Blob row.
+                this.blob.setInlineContent(Arrays.copyOf(chunkBuff, length));
+                inline = true;
+                totalLength = length;
+                digest.update(chunkBuff, 0, length);
+                this.bufferPool.give(chunkBuff);
+                break;
+            }
             if (length > 0) {
                 totalLength += length;
-                if (length < CHUNK_SIZE) {
-                    // The last (incomplete) chunk needs to have a shorter array.
-                    byte[] smallBuff = new byte[length];
-                    System.arraycopy(chunkBuff, 0, smallBuff, 0, length);
-                    bc.setContent(smallBuff);
-                } else {
-                    bc.setContent(chunkBuff);
+                chunkCount++;
+                digest.update(chunkBuff, 0, length);
+            }
+            // A buffer which became the content of a chunk belongs to the chunk, it never goes back to the pool.
+            boolean owned = false;
+            if (length > 0 && chunkHashes != null) {
+                // Content addressed chunks are copied when stored.
+                chunkHashes.add(HashedBlobChunk.store(pm, chunkBuff, length, this.settings.getCodec(), owner));
+                if (chunkCount % batchSize == 0) {
+                    pm.flush();
+                }
+            } else if (length > 0) {
+                owned = this.addChunk(batch, version, i, chunkBuff, length);
+                if (batch.size() >= batchSize) {
+                    this.persist(pm, batch);
                 }
-                pm.makePersistent(bc);
-                pm.flush();
             }
-            if (length < CHUNK_SIZE) {
+            if (!owned) {
+                this.bufferPool.give(chunkBuff);
+            }
+            if (length < chunkLength) {
                 break;
             }
         }
+        this.persist(pm, batch);
+        if (!inline) {
+            // The content is in chunks, inline content left by a previous version must not survive.
+            this.blob.setInlineContent(null);
+        }
+        this.blob.setChunkHashes(chunkHashes);
+        this.blob.setContentInfo(totalLength, chunkCount, HashedBlobChunk.toHex(digest.digest()));
         pm.makePersistent(this.blob);
-        this.deleteOldEntries(version);
+        if (!this.settings.isCollectorEnabled()) {
+            // Without the collector, nothing else will remove the chunks of the replaced version.
+            this.deleteOldEntries(version);
+        } else if (this.previousVersion != null) {
+            UncollectedBlobVersion.record(pm, this.key, this.previousVersion);
+        }
+        if (this.previousChunkHashes != null) {
+            HashedBlobChunkReference.release(pm, this.previousChunkHashes,
+                                             HashedBlobChunkReference.blobOwner(this.key, this.previousVersion));
+        }
+    }
+
+    /**
+     * Read from the source until the buffer is full or the source is exhausted.
+     * A channel reads straight into the chunk buffer, there is no intermediate copy.
+     *
+     * @param chunkBuff the buffer to fill.
+     * @return the number of bytes read, less than the length of the buffer only at the end of the source.
+     * @throws IOException if reading from the source fails.
+     */
+    private int fill(final byte[] chunkBuff) throws IOException
+    {
+        if (this.copyFrom != null) {
+            return IOUtils.read(this.copyFrom, chunkBuff);
+        }
+        final ByteBuffer bb = ByteBuffer.wrap(chunkBuff);
+        while (bb.hasRemaining() && this.channelFrom.read(bb) >= 0) {
+            // Keep reading until the buffer is full or the channel ends.
+        }
+        return bb.position();
+    }
+
+    /**
+     * Make a chunk and add it to the batch of chunks to make persistent.
+     * A full buffer whose content is stored as is becomes the content of the chunk and the chunk then owns it,
+     * otherwise the chunk holds encoded or copied content and the buffer can be reused at once.
+     *
+     * @param batch the chunks which have not yet been made persistent.
+     * @param version the version of the blob which the chunk is part of.
+     * @param index the index of the chunk within the blob.
+     * @param chunkBuff the buffer containing the chunk content.
+     * @param length the number of bytes in the buffer which are part of the chunk.
+     * @return true if the chunk holds the buffer itself, it must then not be reused.
+     */
+    private boolean addChunk(final List<BlobChunk> batch,
+                             final long version,
+                             final int index,
+                             final byte[] chunkBuff,
+                             final int length)
+    {
+        final BlobChunk bc = new BlobChunk(this.key, version, index);
+        batch.add(bc);
+        final byte[] encoded = this.settings.getCodec().encode(chunkBuff, length);
+        if (encoded != null) {
+            bc.setContent(encoded);
+            bc.setCodec(this.settings.getCodec());
+            return false;
+        }
+        if (length < chunkBuff.length) {
+            // The last (incomplete) chunk needs to have a shorter array.
+            bc.setContent(Arrays.copyOf(chunkBuff, length));
+            return false;
+        }
+        bc.setContent(chunkBuff);
+        return true;
+    }
+
+    /**
+     * Write a batch of chunks to the data store and empty the batch.
+     *
+     * @param pm the PersistenceManager to store with.
+     * @param batch the chunks which have not yet been made persistent.
+     */
+    private void persist(final PersistenceManager pm, final List<BlobChunk> batch)
+    {
+        if (batch.isEmpty()) {
+            return;
+        }
+        pm.makePersistentAll(batch);
+        pm.flush();
+        batch.clear();
     }
 
     /**
@@ -121,6 +296,10 @@ class BlobSaveTransactionRunnable extends TransactionRunnable<PersistenceManager
         try {
             final Blob b = pm.getObjectById(Blob.class, this.key);
             versionNumber = b.getActiveVersion();
+            this.previousVersion = versionNumber;
+            if (b.getChunkHashes() != null) {
+                this.previousChunkHashes = new ArrayList<String>(b.getChunkHashes());
+            }
         } catch (JDOObjectNotFoundException e) {
             // No older version, just start at 0.
         }
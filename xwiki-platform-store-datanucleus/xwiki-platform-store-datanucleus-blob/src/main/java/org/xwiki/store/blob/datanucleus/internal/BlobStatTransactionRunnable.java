@@ -0,0 +1,62 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobInfo;
+
+/**
+ * Populate a {@link BlobInfo} from the blob metadata, no chunks are read.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobStatTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final String blobId;
+
+    private final BlobInfo outputInfo;
+
+    public BlobStatTransactionRunnable(final String blobId, final BlobInfo outputInfo)
+    {
+        this.blobId = blobId;
+        this.outputInfo = outputInfo;
+    }
+
+    @Override
+    protected void onRun()
+    {
+        final PersistenceManager pm = this.getContext();
+        final Blob b;
+        try {
+            b = Blob.getExisting(pm, this.blobId);
+        } catch (JDOObjectNotFoundException e) {
+            this.outputInfo.setExists(false);
+            return;
+        }
+        this.outputInfo.setExists(true);
+        if (b.getLength() != null) {
+            this.outputInfo.setLength(b.getLength());
+        }
+        this.outputInfo.setDigest(b.getDigest());
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.Locale;
+
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * The configuration of the DataNucleus blob store, read once when the store is initialized.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobStoreSettings
+{
+    /**
+     * If true, chunks are stored content addressed so that identical chunks in different blobs or
+     * versions are only stored once. Content addressed chunks which are no longer referenced are
+     * only removed by the collector so the collector must be enabled.
+     */
+    private static final String DEDUPLICATE_PROPERTY = "store.blob.datanucleus.deduplicate";
+
+    /**
+     * The number of chunk fetches which a load keeps in flight at once.
+     * Memory used by a load is bounded by this number times the chunk size,
+     * 1 means chunks are fetched one at a time in the loading thread.
+     */
+    private static final String READ_AHEAD_WINDOW_PROPERTY = "store.blob.datanucleus.readAheadWindow";
+
+    /** The number of threads shared by all loads for fetching chunks ahead. */
+    private static final String READ_AHEAD_THREADS_PROPERTY = "store.blob.datanucleus.readAheadThreads";
+
+    /**
+     * The largest chunk which will be written, in bytes.
+     * This must stay below the maximum message size of the underlying data store.
+     */
+    private static final String MAX_CHUNK_SIZE_PROPERTY = "store.blob.datanucleus.maxChunkSize";
+
+    /**
+     * The codec used to compress chunks of new blobs, "none" or "deflate".
+     * Chunks which do not compress are stored as is whatever the codec.
+     */
+    private static final String COMPRESSION_PROPERTY = "store.blob.datanucleus.compression";
+
+    /**
+     * The number of chunks which a save writes to the data store at once.
+     * A save holds this number of chunk buffers in memory.
+     */
+    private static final String SAVE_BATCH_SIZE_PROPERTY = "store.blob.datanucleus.saveBatchSize";
+
+    /** The number of bytes of idle chunk buffers which are kept for reuse by later saves. */
+    private static final String BUFFER_POOL_SIZE_PROPERTY = "store.blob.datanucleus.bufferPoolSize";
+
+    /**
+     * The number of seconds between runs of the collector which removes chunks of superseded
+     * versions, 0 (the default) disables the collector and superseded chunks are then removed by each save.
+     * Content addressed chunks which are no longer referenced are only removed by the collector,
+     * deduplication and staged uploads require it.
+     */
+    private static final String COLLECTOR_INTERVAL_PROPERTY = "store.blob.datanucleus.collector.interval";
+
+    /**
+     * The number of seconds the chunks of a superseded version are kept, so that loads which are still
+     * reading the version can finish. Versions which were never committed are kept for the upload expiry.
+     */
+    private static final String COLLECTOR_GRACE_PERIOD_PROPERTY = "store.blob.datanucleus.collector.gracePeriod";
+
+    /**
+     * The number of seconds between runs of the purger which removes the chunks of deleted blobs.
+     * The purger runs whether or not the collector is enabled, it uses the batch size and pause of the collector.
+     */
+    private static final String PURGE_INTERVAL_PROPERTY = "store.blob.datanucleus.purge.interval";
+
+    /** The number of blobs which the collector examines in one transaction. */
+    private static final String COLLECTOR_BATCH_SIZE_PROPERTY = "store.blob.datanucleus.collector.batchSize";
+
+    /** The number of milliseconds the collector pauses between two batches. */
+    private static final String COLLECTOR_PAUSE_PROPERTY = "store.blob.datanucleus.collector.pause";
+
+    /** The number of seconds after the last part is written when the collector removes an unfinished upload. */
+    private static final String UPLOAD_EXPIRY_PROPERTY = "store.blob.datanucleus.collector.uploadExpiry";
+
+    /** The maximum number of bytes in the local disk cache of the caching store, 0 disables it. */
+    private static final String CACHE_SIZE_PROPERTY = "store.blob.datanucleus.cache.size";
+
+    /** The largest blob which the caching store keeps on the local disk, in bytes. */
+    private static final String CACHE_MAX_ENTRY_SIZE_PROPERTY = "store.blob.datanucleus.cache.maxEntrySize";
+
+    /**
+     * Blobs smaller than this number of bytes are stored in the Blob row rather than in chunks
+     * so that they are loaded with a single read, 0 disables inline storage.
+     */
+    private static final String INLINE_THRESHOLD_PROPERTY = "store.blob.datanucleus.inlineThreshold";
+
+    /**
+     * The number of threads which run operations of the asynchronous store.
+     * Operations block their thread for the whole transfer, this is the greatest number of concurrent transfers.
+     */
+    private static final String ASYNC_THREADS_PROPERTY = "store.blob.datanucleus.async.threads";
+
+    /** The number of operations of the asynchronous store which may wait for a thread. */
+    private static final String ASYNC_QUEUE_SIZE_PROPERTY = "store.blob.datanucleus.async.queueSize";
+
+    /** True if new blobs are saved with content addressed chunks. */
+    private final boolean deduplicate;
+
+    /** Blobs smaller than this are stored inline. */
+    private final int inlineThreshold;
+
+    /** The maximum number of bytes in the local disk cache. */
+    private final long cacheSize;
+
+    /** The largest blob which is cached. */
+    private final long cacheMaxEntrySize;
+
+    /** The number of seconds between collector runs, 0 if disabled. */
+    private final long collectorInterval;
+
+    /** The number of milliseconds the chunks of a superseded version are kept. */
+    private final long collectorGracePeriod;
+
+    /** The number of seconds between purger runs. */
+    private final long purgeInterval;
+
+    /** The number of blobs examined in one collector transaction. */
+    private final int collectorBatchSize;
+
+    /** The number of milliseconds to pause between collector batches. */
+    private final long collectorPause;
+
+    /** The number of milliseconds after which an unfinished upload is removed. */
+    private final long uploadExpiry;
+
+    /** The number of chunks which a save writes at once. */
+    private final int saveBatchSize;
+
+    /** The number of bytes of idle chunk buffers to keep. */
+    private final long bufferPoolSize;
+
+    /** The codec used to compress chunks of new blobs. */
+    private final ChunkCodec codec;
+
+    /** The number of chunk fetches a load keeps in flight. */
+    private final int readAheadWindow;
+
+    /** The number of threads fetching chunks ahead. */
+    private final int readAheadThreads;
+
+    /** The largest chunk which will be written. */
+    private final int maxChunkSize;
+
+    /** The number of threads which run operations of the asynchronous store. */
+    private final int asyncThreads;
+
+    /** The number of operations of the asynchronous store which may wait for a thread. */
+    private final int asyncQueueSize;
+
+    /**
+     * The Constructor.
+     *
+     * @param configuration the source of the configuration.
+     */
+    BlobStoreSettings(final ConfigurationSource configuration)
+    {
+        this.deduplicate = configuration.getProperty(DEDUPLICATE_PROPERTY, false);
+        this.inlineThreshold = configuration.getProperty(INLINE_THRESHOLD_PROPERTY, 64 << 10);
+        this.saveBatchSize = Math.max(1, configuration.getProperty(SAVE_BATCH_SIZE_PROPERTY, 4));
+        this.bufferPoolSize = configuration.getProperty(BUFFER_POOL_SIZE_PROPERTY, 32L << 20);
+        final String compression = configuration.getProperty(COMPRESSION_PROPERTY, "none");
+        this.codec = ChunkCodec.valueOf(compression.toUpperCase(Locale.ROOT));
+        this.readAheadWindow = configuration.getProperty(READ_AHEAD_WINDOW_PROPERTY, 1);
+        this.readAheadThreads = configuration.getProperty(READ_AHEAD_THREADS_PROPERTY, 16);
+        this.maxChunkSize = configuration.getProperty(MAX_CHUNK_SIZE_PROPERTY, 8 << 20);
+        this.collectorInterval = configuration.getProperty(COLLECTOR_INTERVAL_PROPERTY, 0L);
+        this.collectorGracePeriod = configuration.getProperty(COLLECTOR_GRACE_PERIOD_PROPERTY, 3600L) * 1000;
+        this.purgeInterval = Math.max(1, configuration.getProperty(PURGE_INTERVAL_PROPERTY, 10L));
+        this.collectorBatchSize = Math.max(1, configuration.getProperty(COLLECTOR_BATCH_SIZE_PROPERTY, 100));
+        this.collectorPause = configuration.getProperty(COLLECTOR_PAUSE_PROPERTY, 1000L);
+        this.uploadExpiry = configuration.getProperty(UPLOAD_EXPIRY_PROPERTY, 86400L) * 1000;
+        this.cacheSize = configuration.getProperty(CACHE_SIZE_PROPERTY, 256L << 20);
+        this.cacheMaxEntrySize = configuration.getProperty(CACHE_MAX_ENTRY_SIZE_PROPERTY, 16L << 20);
+        this.asyncThreads = Math.max(1, configuration.getProperty(ASYNC_THREADS_PROPERTY, 32));
+        this.asyncQueueSize = Math.max(1, configuration.getProperty(ASYNC_QUEUE_SIZE_PROPERTY, 1000));
+    }
+
+    /** @return true if new blobs are saved with content addressed chunks. */
+    boolean isDeduplicate()
+    {
+        return this.deduplicate;
+    }
+
+    /** @return the size below which blobs are stored in the Blob row, 0 if inline storage is disabled. */
+    int getInlineThreshold()
+    {
+        return this.inlineThreshold;
+    }
+
+    /** @return the codec used to compress chunks of new blobs. */
+    ChunkCodec getCodec()
+    {
+        return this.codec;
+    }
+
+    /** @return the number of chunks which a save writes at once. */
+    int getSaveBatchSize()
+    {
+        return this.saveBatchSize;
+    }
+
+    /** @return the number of bytes of idle chunk buffers to keep. */
+    long getBufferPoolSize()
+    {
+        return this.bufferPoolSize;
+    }
+
+    /** @return the number of chunk fetches a load keeps in flight. */
+    int getReadAheadWindow()
+    {
+        return this.readAheadWindow;
+    }
+
+    /** @return the number of threads fetching chunks ahead. */
+    int getReadAheadThreads()
+    {
+        return this.readAheadThreads;
+    }
+
+    /** @return the largest chunk which will be written. */
+    int getMaxChunkSize()
+    {
+        return this.maxChunkSize;
+    }
+
+    /** @return true if superseded chunks are removed in the background rather than by each save. */
+    boolean isCollectorEnabled()
+    {
+        return this.collectorInterval > 0;
+    }
+
+    /** @return the number of seconds between collector runs. */
+    long getCollectorInterval()
+    {
+        return this.collectorInterval;
+    }
+
+    /** @return the number of milliseconds the chunks of a superseded version are kept. */
+    long getCollectorGracePeriod()
+    {
+        return this.collectorGracePeriod;
+    }
+
+    /** @return the number of seconds between purger runs. */
+    long getPurgeInterval()
+    {
+        return this.purgeInterval;
+    }
+
+    /** @return the number of blobs examined in one collector transaction. */
+    int getCollectorBatchSize()
+    {
+        return this.collectorBatchSize;
+    }
+
+    /** @return the number of milliseconds to pause between collector batches. */
+    long getCollectorPause()
+    {
+        return this.collectorPause;
+    }
+
+    /** @return the number of milliseconds after the last part is written when an unfinished upload is removed. */
+    long getUploadExpiry()
+    {
+        return this.uploadExpiry;
+    }
+
+    /** @return the maximum number of bytes in the local disk cache, 0 if it is disabled. */
+    long getCacheSize()
+    {
+        return this.cacheSize;
+    }
+
+    /** @return the largest blob which is kept in the local disk cache. */
+    long getCacheMaxEntrySize()
+    {
+        return this.cacheMaxEntrySize;
+    }
+
+    /** @return the number of threads which run operations of the asynchronous store. */
+    int getAsyncThreads()
+    {
+        return this.asyncThreads;
+    }
+
+    /** @return the number of operations of the asynchronous store which may wait for a thread. */
+    int getAsyncQueueSize()
+    {
+        return this.asyncQueueSize;
+    }
+}
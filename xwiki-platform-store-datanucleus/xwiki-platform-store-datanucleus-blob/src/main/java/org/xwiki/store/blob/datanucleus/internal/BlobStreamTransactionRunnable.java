@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.IOException;
+
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobStreamHandler;
+
+/**
+ * Give the content of a blob to a handler as an InputStream which fetches chunks as they are read.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobStreamTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final String blobId;
+
+    private final BlobStreamHandler handler;
+
+    public BlobStreamTransactionRunnable(final String blobId, final BlobStreamHandler handler)
+    {
+        this.blobId = blobId;
+        this.handler = handler;
+    }
+
+    @Override
+    protected void onRun() throws IOException
+    {
+        final PersistenceManager pm = this.getContext();
+        final Blob blob = Blob.getExistingWithContent(pm, this.blobId);
+        if (blob.getInlineContent() != null) {
+            this.handler.handle(new BlobChunkInputStream(blob.getInlineContent()));
+        } else {
+            this.handler.handle(new BlobChunkInputStream(pm, new BlobLayout(blob)));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * A staged upload of a blob which is in progress.
+ * The parts of the upload are {@link BlobUploadPart}s, the blob is not changed until the upload is completed.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "BlobUpload")
+class BlobUpload
+{
+    /**
+     * The size of every chunk of an uploaded blob.
+     * Parts are split into chunks independently so every part but the last must be a multiple of this.
+     */
+    static final int CHUNK_SIZE = BlobChunk.SIZE;
+
+    @PrimaryKey
+    private String uploadId;
+
+    /** The id of the blob which will be replaced when the upload is completed. */
+    private String blobId;
+
+    /** The time when a part was last written, in milliseconds since the epoch. */
+    @Index
+    private long updated;
+
+    public BlobUpload(final String uploadId, final String blobId)
+    {
+        this.uploadId = uploadId;
+        this.blobId = blobId;
+        this.touch();
+    }
+
+    public String getUploadId()
+    {
+        return this.uploadId;
+    }
+
+    public String getBlobId()
+    {
+        return this.blobId;
+    }
+
+    /** Record that the upload is still alive so that it is not expired. */
+    public void touch()
+    {
+        this.updated = System.currentTimeMillis();
+    }
+}
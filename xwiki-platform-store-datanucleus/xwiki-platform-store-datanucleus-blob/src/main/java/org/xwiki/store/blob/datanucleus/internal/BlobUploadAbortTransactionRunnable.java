@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.Collection;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Abort a staged upload, removing the parts which were written.
+ * The blob is left as it was.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobUploadAbortTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final String uploadId;
+
+    public BlobUploadAbortTransactionRunnable(final String uploadId)
+    {
+        this.uploadId = uploadId;
+    }
+
+    @Override
+    protected void onRun()
+    {
+        abort(this.getContext(), this.uploadId);
+    }
+
+    /**
+     * Remove an upload and release it's references to the chunks of it's parts.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param uploadId the id of the upload.
+     */
+    static void abort(final PersistenceManager pm, final String uploadId)
+    {
+        final Query query = pm.newQuery(BlobUploadPart.class, "uploadId == :uploadId");
+        final Collection<BlobUploadPart> parts = (Collection<BlobUploadPart>) query.execute(uploadId);
+        for (final BlobUploadPart part : parts) {
+            HashedBlobChunkReference.release(pm, part.getChunkHashes(),
+                                             HashedBlobChunkReference.partOwner(uploadId, part.getPartNumber()));
+        }
+        pm.deletePersistentAll(parts);
+        query.closeAll();
+        try {
+            pm.deletePersistent(pm.getObjectById(BlobUpload.class, uploadId));
+        } catch (JDOObjectNotFoundException e) {
+            // Already gone.
+        }
+    }
+}
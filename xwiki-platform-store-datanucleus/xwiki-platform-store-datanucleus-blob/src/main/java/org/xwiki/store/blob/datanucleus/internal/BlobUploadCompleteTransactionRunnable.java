@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Complete a staged upload by replacing the blob with the concatenation of the parts.
+ * Only metadata is written, the chunks written with the parts become the chunks of the blob.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobUploadCompleteTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final String uploadId;
+
+    /** The number of parts which the client uploaded. */
+    private final int partCount;
+
+    /** A java.util.Random used to increment the version. */
+    private final Random random;
+
+    /** True if the collector removes the chunks of the replaced version, otherwise they are removed here. */
+    private final boolean collectorEnabled;
+
+    public BlobUploadCompleteTransactionRunnable(final String uploadId,
+                                                 final int partCount,
+                                                 final Random random,
+                                                 final boolean collectorEnabled)
+    {
+        if (partCount < 0) {
+            throw new IllegalArgumentException("Negative part count [" + partCount + "] for upload ["
+                                               + uploadId + "]");
+        }
+        this.uploadId = uploadId;
+        this.partCount = partCount;
+        this.random = random;
+        this.collectorEnabled = collectorEnabled;
+    }
+
+    @Override
+    protected void onRun()
+    {
+        final PersistenceManager pm = this.getContext();
+        final BlobUpload upload = pm.getObjectById(BlobUpload.class, this.uploadId);
+        final String blobId = upload.getBlobId();
+
+        final Query query = pm.newQuery(BlobUploadPart.class, "uploadId == :uploadId");
+        query.setOrdering("partNumber ascending");
+        final List<BlobUploadPart> parts =
+            new ArrayList<BlobUploadPart>((Collection<BlobUploadPart>) query.execute(this.uploadId));
+        query.closeAll();
+
+        final List<String> chunkHashes = new ArrayList<String>();
+        long length = 0;
+        if (parts.size() != this.partCount) {
+            throw new IllegalStateException("Upload [" + this.uploadId + "] has [" + parts.size()
+                                            + "] parts but [" + this.partCount + "] were uploaded");
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            final BlobUploadPart part = parts.get(i);
+            if (part.getPartNumber() != i) {
+                throw new IllegalStateException("Part [" + i + "] of upload [" + this.uploadId + "] is missing");
+            }
+            if (i < parts.size() - 1 && part.getLength() % BlobUpload.CHUNK_SIZE != 0) {
+                throw new IllegalStateException("Part [" + part.getPartNumber() + "] of upload ["
+                                                + this.uploadId + "] is [" + part.getLength()
+                                                + "] bytes long, every part but the last must be a "
+                                                + "multiple of [" + BlobUpload.CHUNK_SIZE + "] bytes");
+            }
+            chunkHashes.addAll(part.getChunkHashes());
+            length += part.getLength();
+        }
+
+        Blob previous = null;
+        try {
+            previous = pm.getObjectById(Blob.class, blobId);
+        } catch (JDOObjectNotFoundException e) {
+            // New blob.
+        }
+        final long version = (previous == null) ? 0 : previous.getActiveVersion();
+        final List<String> previousHashes = (previous == null || previous.getChunkHashes() == null)
+            ? null : new ArrayList<String>(previous.getChunkHashes());
+
+        final Blob blob = new Blob(blobId, version + this.random.nextInt(Integer.MAX_VALUE),
+                                   BlobUpload.CHUNK_SIZE, BlobUpload.CHUNK_SIZE);
+
+        // The new version references the chunks of the parts before the parts release them.
+        final String owner = HashedBlobChunkReference.blobOwner(blobId, blob.getActiveVersion());
+        for (final String hash : new LinkedHashSet<String>(chunkHashes)) {
+            HashedBlobChunkReference.add(pm, hash, owner);
+        }
+        for (final BlobUploadPart part : parts) {
+            HashedBlobChunkReference.release(pm, part.getChunkHashes(),
+                                             HashedBlobChunkReference.partOwner(this.uploadId, part.getPartNumber()));
+        }
+        blob.setChunkHashes(chunkHashes);
+        // The digest of the whole content would require reading it all again so it is not recorded.
+        blob.setContentInfo(length, chunkHashes.size(), null);
+        pm.makePersistent(blob);
+
+        if (previous != null) {
+            this.dropVersion(pm, blobId, version, previousHashes);
+        }
+        pm.deletePersistentAll(parts);
+        pm.deletePersistent(upload);
+    }
+
+    /**
+     * Drop the version which the completed upload replaced.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param blobId the id of the blob.
+     * @param version the replaced version.
+     * @param chunkHashes the hashes of the content addressed chunks of the replaced version, null if none.
+     */
+    private void dropVersion(final PersistenceManager pm,
+                             final String blobId,
+                             final long version,
+                             final List<String> chunkHashes)
+    {
+        if (chunkHashes != null) {
+            HashedBlobChunkReference.release(pm, chunkHashes, HashedBlobChunkReference.blobOwner(blobId, version));
+        } else if (this.collectorEnabled) {
+            UncollectedBlobVersion.record(pm, blobId, version);
+        } else {
+            pm.newQuery(BlobChunk.class, "WHERE blobId == ? && version == ?")
+                .deletePersistentAll(new Object[] { blobId, version });
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.jdo.Query;
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * List the numbers of the parts of a staged upload which have been written, so that an
+ * interrupted upload can be resumed.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobUploadListPartsTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final String uploadId;
+
+    private final List<Integer> outputList;
+
+    public BlobUploadListPartsTransactionRunnable(final String uploadId, final List<Integer> outputList)
+    {
+        this.uploadId = uploadId;
+        this.outputList = outputList;
+    }
+
+    @Override
+    protected void onRun()
+    {
+        final Query query = this.getContext().newQuery(BlobUploadPart.class, "uploadId == :uploadId");
+        query.setResult("partNumber");
+        query.setOrdering("partNumber ascending");
+        try {
+            this.outputList.addAll((Collection<Integer>) query.execute(this.uploadId));
+        } finally {
+            query.closeAll();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.List;
+
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * One part of a {@link BlobUpload}.
+ * The content is stored as content addressed {@link HashedBlobChunk}s so that completing the upload
+ * only has to concatenate the lists of chunk hashes of the parts, no content is copied.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "BlobUploadPart")
+class BlobUploadPart
+{
+    /** The primary key, the upload id followed by the part number. */
+    @PrimaryKey
+    private Object[] id;
+
+    @Index
+    private String uploadId;
+
+    private int partNumber;
+
+    /** The hashes of the chunks of the part in order. */
+    @Persistent(defaultFetchGroup = "true")
+    private List<String> chunkHashes;
+
+    /** The number of bytes in the part. */
+    private long length;
+
+    public BlobUploadPart(final String uploadId,
+                          final int partNumber,
+                          final List<String> chunkHashes,
+                          final long length)
+    {
+        this.id = makeId(uploadId, partNumber);
+        this.uploadId = uploadId;
+        this.partNumber = partNumber;
+        this.chunkHashes = chunkHashes;
+        this.length = length;
+    }
+
+    public int getPartNumber()
+    {
+        return this.partNumber;
+    }
+
+    public List<String> getChunkHashes()
+    {
+        return this.chunkHashes;
+    }
+
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    public static Object[] makeId(final String uploadId, final int partNumber)
+    {
+        return new Object[] { uploadId, partNumber };
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import org.apache.commons.io.IOUtils;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Write one part of a staged upload.
+ * A part which was already written, for example before a dropped connection, is replaced.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobUploadPartTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final String uploadId;
+
+    private final int partNumber;
+
+    private final InputStream copyFrom;
+
+    /** The configuration of the store. */
+    private final BlobStoreSettings settings;
+
+    /** The pool to take chunk buffers from. */
+    private final ChunkBufferPool bufferPool;
+
+    public BlobUploadPartTransactionRunnable(final String uploadId,
+                                             final int partNumber,
+                                             final InputStream copyFrom,
+                                             final BlobStoreSettings settings,
+                                             final ChunkBufferPool bufferPool)
+    {
+        if (partNumber < 0) {
+            throw new IllegalArgumentException("Negative part number [" + partNumber + "] for upload ["
+                                               + uploadId + "]");
+        }
+        this.uploadId = uploadId;
+        this.partNumber = partNumber;
+        this.copyFrom = copyFrom;
+        this.settings = settings;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    protected void onRun() throws IOException
+    {
+        final PersistenceManager pm = this.getContext();
+
+        // Fails if the upload was completed, aborted or expired.
+        pm.getObjectById(BlobUpload.class, this.uploadId).touch();
+
+        final String owner = HashedBlobChunkReference.partOwner(this.uploadId, this.partNumber);
+        final List<String> chunkHashes = new ArrayList<String>();
+        long length = 0;
+        final byte[] chunkBuff = this.bufferPool.take(BlobUpload.CHUNK_SIZE);
+        for (;;) {
+            final int read = IOUtils.read(this.copyFrom, chunkBuff);
+            if (read > 0) {
+                // Content addressed chunks are copied when stored so the buffer can be reused at once.
+                chunkHashes.add(HashedBlobChunk.store(pm, chunkBuff, read, this.settings.getCodec(), owner));
+                length += read;
+                if (chunkHashes.size() % this.settings.getSaveBatchSize() == 0) {
+                    pm.flush();
+                }
+            }
+            if (read < chunkBuff.length) {
+                break;
+            }
+        }
+        this.bufferPool.give(chunkBuff);
+
+        try {
+            final BlobUploadPart previous =
+                pm.getObjectById(BlobUploadPart.class, BlobUploadPart.makeId(this.uploadId, this.partNumber));
+            // The references of this part to chunks which it still contains were just revived.
+            final List<String> unused = new ArrayList<String>(previous.getChunkHashes());
+            unused.removeAll(chunkHashes);
+            HashedBlobChunkReference.release(pm, unused, owner);
+        } catch (JDOObjectNotFoundException e) {
+            // First time this part is written.
+        }
+        pm.makePersistent(new BlobUploadPart(this.uploadId, this.partNumber, chunkHashes, length));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.List;
+import java.util.UUID;
+
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Start a staged upload.
+ * The chunks of the parts are content addressed and only the collector removes them, as well as the
+ * uploads which are never completed, so uploads can not be started while the collector is disabled.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobUploadStartTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final String blobId;
+
+    private final List<String> outputUploadId;
+
+    /** True if the collector is enabled, uploads require it. */
+    private final boolean collectorEnabled;
+
+    public BlobUploadStartTransactionRunnable(final String blobId,
+                                              final List<String> outputUploadId,
+                                              final boolean collectorEnabled)
+    {
+        this.blobId = blobId;
+        this.outputUploadId = outputUploadId;
+        this.collectorEnabled = collectorEnabled;
+    }
+
+    @Override
+    protected void onPreRun()
+    {
+        if (!this.collectorEnabled) {
+            throw new IllegalStateException("Staged uploads require the collector, "
+                                            + "set store.blob.datanucleus.collector.interval to use them");
+        }
+    }
+
+    @Override
+    protected void onRun()
+    {
+        final String uploadId = UUID.randomUUID().toString();
+        this.getContext().makePersistent(new BlobUpload(uploadId, this.blobId));
+        this.outputUploadId.add(uploadId);
+    }
+}
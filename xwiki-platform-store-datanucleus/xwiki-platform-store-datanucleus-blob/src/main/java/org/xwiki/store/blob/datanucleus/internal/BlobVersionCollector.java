@@ -0,0 +1,326 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jdo.Extent;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * Removes the chunks of superseded blob versions and the chunks of saves which never completed.
+ * Saves record the versions whose chunks may need removing as {@link UncollectedBlobVersion}s, each run
+ * examines those records in batches, each batch in it's own transaction, with a pause between batches
+ * so that the collector does not compete with users for the data store. The chunk table is never walked.
+ * The active version of a blob is never removed. A superseded version is kept for the grace period so
+ * that loads which are still reading it can finish. A version above the active one has not been
+ * committed, it's save may be in progress so it is only removed once it is older than the upload expiry.
+ * Staged uploads which have not been written to for longer than the upload expiry are aborted.
+ * Blobs which were marked deleted are removed by the {@link BlobPurger}, not by the collector.
+ * Finally the content addressed chunks which lost a reference, recorded as {@link ReleasedHashedBlobChunk}s,
+ * are removed if no reference to them remains, nothing else removes content addressed chunks.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class BlobVersionCollector implements Runnable
+{
+    /** For reporting failed runs, the executor would otherwise swallow them. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobVersionCollector.class);
+
+    /** The provider of the transactions to collect in. */
+    private final TransactionProvider<PersistenceManager> provider;
+
+    /** The configuration of the store. */
+    private final BlobStoreSettings settings;
+
+    /**
+     * The Constructor.
+     *
+     * @param provider the provider of the transactions to collect in.
+     * @param settings the configuration of the store.
+     */
+    BlobVersionCollector(final TransactionProvider<PersistenceManager> provider,
+                         final BlobStoreSettings settings)
+    {
+        this.provider = provider;
+        this.settings = settings;
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            this.collect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to collect superseded blob chunks, will try again at the next run", e);
+        }
+    }
+
+    /**
+     * Read the first records of a table by walking it's extent, the records are read before any is removed.
+     *
+     * @param <T> the type of the records.
+     * @param pm the PersistenceManager to use.
+     * @param type the class of the records.
+     * @param limit the maximum number of records to read.
+     * @return up to limit records.
+     */
+    static <T> List<T> take(final PersistenceManager pm, final Class<T> type, final int limit)
+    {
+        final List<T> out = new ArrayList<T>(limit);
+        final Extent<T> extent = pm.getExtent(type, false);
+        try {
+            final Iterator<T> it = extent.iterator();
+            while (out.size() < limit && it.hasNext()) {
+                out.add(it.next());
+            }
+        } finally {
+            extent.closeAll();
+        }
+        return out;
+    }
+
+    /**
+     * Abort the staged uploads which have expired, one batch per transaction.
+     *
+     * @throws Exception if a transaction fails or the collector is interrupted.
+     */
+    private void expireUploads() throws Exception
+    {
+        final long updatedBefore = System.currentTimeMillis() - this.settings.getUploadExpiry();
+        final int batchSize = this.settings.getCollectorBatchSize();
+        for (;;) {
+            final List<String> uploadIds = new ArrayList<String>(batchSize);
+            final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+            new ExpireUploadsRunnable(batchSize, updatedBefore, uploadIds).runIn(transaction);
+            transaction.start();
+            if (uploadIds.size() < batchSize) {
+                return;
+            }
+            Thread.sleep(this.settings.getCollectorPause());
+        }
+    }
+
+    /**
+     * Remove the released content addressed chunks which are left unreferenced, one batch per transaction.
+     *
+     * @throws Exception if a transaction fails or the collector is interrupted.
+     */
+    private void collectHashedChunks() throws Exception
+    {
+        final int batchSize = this.settings.getCollectorBatchSize();
+        for (;;) {
+            final List<String> hashes = new ArrayList<String>(batchSize);
+            final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+            new CollectHashedChunksRunnable(batchSize, hashes).runIn(transaction);
+            transaction.start();
+            if (hashes.size() < batchSize) {
+                return;
+            }
+            Thread.sleep(this.settings.getCollectorPause());
+        }
+    }
+
+    /**
+     * Expire abandoned uploads, collect unreferenced content addressed chunks,
+     * then remove the chunks of the recorded versions which are no longer used.
+     *
+     * @throws Exception if a transaction fails or the collector is interrupted.
+     */
+    private void collect() throws Exception
+    {
+        this.expireUploads();
+        this.collectHashedChunks();
+
+        final long now = System.currentTimeMillis();
+        final long supersededBefore = now - this.settings.getCollectorGracePeriod();
+        final long abandonedBefore = now - this.settings.getUploadExpiry();
+        final int batchSize = this.settings.getCollectorBatchSize();
+        for (;;) {
+            final int[] counts = new int[2];
+            final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+            new CollectVersionsRunnable(batchSize, supersededBefore, abandonedBefore, counts).runIn(transaction);
+            transaction.start();
+            // Records which are too young are found again by every batch, stop once nothing more can be removed.
+            if (counts[0] < batchSize || counts[1] == 0) {
+                return;
+            }
+            Thread.sleep(this.settings.getCollectorPause());
+        }
+    }
+
+    /** Examine one batch of released content addressed chunks and remove those which are left unreferenced. */
+    private static class CollectHashedChunksRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** The maximum number of chunks to examine. */
+        private final int limit;
+
+        /** The hashes of the examined chunks. */
+        private final List<String> outputHashes;
+
+        /**
+         * The Constructor.
+         *
+         * @param limit the maximum number of chunks to examine.
+         * @param outputHashes a list which will be populated with the hashes of the examined chunks.
+         */
+        CollectHashedChunksRunnable(final int limit, final List<String> outputHashes)
+        {
+            this.limit = limit;
+            this.outputHashes = outputHashes;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final PersistenceManager pm = this.getContext();
+            final List<ReleasedHashedBlobChunk> released = take(pm, ReleasedHashedBlobChunk.class, this.limit);
+            for (final ReleasedHashedBlobChunk record : released) {
+                this.outputHashes.add(record.getHash());
+            }
+            pm.deletePersistentAll(released);
+            for (final String hash : this.outputHashes) {
+                HashedBlobChunk.removeIfUnreferenced(pm, hash);
+            }
+        }
+    }
+
+    /** Abort one batch of expired uploads. */
+    private static class ExpireUploadsRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** The maximum number of uploads to abort. */
+        private final int limit;
+
+        /** Uploads which were last written to before this time are aborted. */
+        private final long updatedBefore;
+
+        /** The ids of the uploads which were aborted. */
+        private final List<String> outputIds;
+
+        /**
+         * The Constructor.
+         *
+         * @param limit the maximum number of uploads to abort.
+         * @param updatedBefore uploads which were last written to before this time are aborted.
+         * @param outputIds a list which will be populated with the ids of the aborted uploads.
+         */
+        ExpireUploadsRunnable(final int limit, final long updatedBefore, final List<String> outputIds)
+        {
+            this.limit = limit;
+            this.updatedBefore = updatedBefore;
+            this.outputIds = outputIds;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final PersistenceManager pm = this.getContext();
+            final Query query = pm.newQuery(BlobUpload.class, "updated < :updatedBefore");
+            query.setResult("uploadId");
+            query.setRange(0, this.limit);
+            this.outputIds.addAll((Collection<String>) query.execute(this.updatedBefore));
+            query.closeAll();
+            for (final String uploadId : this.outputIds) {
+                BlobUploadAbortTransactionRunnable.abort(pm, uploadId);
+            }
+        }
+    }
+
+    /** Examine one batch of recorded versions and remove the chunks of those which are no longer used. */
+    private static class CollectVersionsRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** The maximum number of versions to examine. */
+        private final int limit;
+
+        /** Superseded versions recorded before this time are removed. */
+        private final long supersededBefore;
+
+        /** Versions which never became active and were recorded before this time are removed. */
+        private final long abandonedBefore;
+
+        /** The number of versions examined and the number removed, in that order. */
+        private final int[] outputCounts;
+
+        /**
+         * The Constructor.
+         *
+         * @param limit the maximum number of versions to examine.
+         * @param supersededBefore superseded versions recorded before this time are removed.
+         * @param abandonedBefore versions which never became active and were recorded before this time are removed.
+         * @param outputCounts an array of 2 which will be set to the number of versions examined and removed.
+         */
+        CollectVersionsRunnable(final int limit,
+                                final long supersededBefore,
+                                final long abandonedBefore,
+                                final int[] outputCounts)
+        {
+            this.limit = limit;
+            this.supersededBefore = supersededBefore;
+            this.abandonedBefore = abandonedBefore;
+            this.outputCounts = outputCounts;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final PersistenceManager pm = this.getContext();
+            final List<UncollectedBlobVersion> records = take(pm, UncollectedBlobVersion.class, this.limit);
+            this.outputCounts[0] = records.size();
+
+            for (final UncollectedBlobVersion record : records) {
+                Blob blob = null;
+                try {
+                    blob = pm.getObjectById(Blob.class, record.getBlobId());
+                } catch (JDOObjectNotFoundException e) {
+                    // The blob was purged or it's first save never completed.
+                }
+                final long version = record.getVersion();
+                if (blob != null && !blob.isDeleted() && blob.getActiveVersion() == version) {
+                    // The version is in use, the save which replaces it will record it again.
+                    pm.deletePersistent(record);
+                    this.outputCounts[1]++;
+                    continue;
+                }
+                // Versions are only ever increased so a version above the active one has not been committed,
+                // it's save may still be in progress.
+                final boolean superseded = blob != null && !blob.isDeleted() && version < blob.getActiveVersion();
+                if (record.getCreated() < (superseded ? this.supersededBefore : this.abandonedBefore)) {
+                    pm.newQuery(BlobChunk.class, "WHERE blobId == ? && version == ?")
+                        .deletePersistentAll(new Object[] { record.getBlobId(), version });
+                    pm.deletePersistent(record);
+                    this.outputCounts[1]++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.jdo.PersistenceManager;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.store.blob.BlobStreamHandler;
+
+/**
+ * Load a blob from the disk cache if it is there, otherwise from the underlying store.
+ * When a whole blob is loaded from the underlying store, it is copied to the cache on the way.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class CachingBlobLoadTransactionRunnable extends TransactionRunnable<PersistenceManager>
+{
+    private final BlobStore<PersistenceManager> store;
+
+    private final BlobDiskCache cache;
+
+    /** The largest blob which is cached in bytes. */
+    private final long maxEntrySize;
+
+    private final String blobId;
+
+    private final long offset;
+
+    private final long length;
+
+    /** The stream to write to, null if writing to a channel. */
+    private final OutputStream writeTo;
+
+    /** The channel to write to, null if writing to an OutputStream. */
+    private final WritableByteChannel channelTo;
+
+    /** The handler to give the content to, null if writing the content out. */
+    private final BlobStreamHandler handler;
+
+    public CachingBlobLoadTransactionRunnable(final BlobStore<PersistenceManager> store,
+                                              final BlobDiskCache cache,
+                                              final long maxEntrySize,
+                                              final String blobId,
+                                              final long offset,
+                                              final long length,
+                                              final OutputStream writeTo)
+    {
+        this(store, cache, maxEntrySize, blobId, offset, length, writeTo, null, null);
+    }
+
+    public CachingBlobLoadTransactionRunnable(final BlobStore<PersistenceManager> store,
+                                              final BlobDiskCache cache,
+                                              final long maxEntrySize,
+                                              final String blobId,
+                                              final long offset,
+                                              final long length,
+                                              final WritableByteChannel channelTo)
+    {
+        this(store, cache, maxEntrySize, blobId, offset, length, null, channelTo, null);
+    }
+
+    public CachingBlobLoadTransactionRunnable(final BlobStore<PersistenceManager> store,
+                                              final BlobDiskCache cache,
+                                              final long maxEntrySize,
+                                              final String blobId,
+                                              final BlobStreamHandler handler)
+    {
+        this(store, cache, maxEntrySize, blobId, 0, Long.MAX_VALUE, null, null, handler);
+    }
+
+    private CachingBlobLoadTransactionRunnable(final BlobStore<PersistenceManager> store,
+                                               final BlobDiskCache cache,
+                                               final long maxEntrySize,
+                                               final String blobId,
+                                               final long offset,
+                                               final long length,
+                                               final OutputStream writeTo,
+                                               final WritableByteChannel channelTo,
+                                               final BlobStreamHandler handler)
+    {
+        this.store = store;
+        this.cache = cache;
+        this.maxEntrySize = maxEntrySize;
+        this.blobId = blobId;
+        this.offset = offset;
+        this.length = length;
+        this.writeTo = writeTo;
+        this.channelTo = channelTo;
+        this.handler = handler;
+    }
+
+    @Override
+    protected void onRun() throws IOException, TransactionException
+    {
+        final Blob blob = Blob.getExisting(this.getContext(), this.blobId);
+        final String key = this.blobId + '\u0000' + blob.getActiveVersion();
+
+        final File cached = this.cache.get(key);
+        if (cached != null && this.transferFrom(cached)) {
+            return;
+        }
+
+        final boolean whole = this.offset == 0 && this.length == Long.MAX_VALUE;
+        if (!whole || blob.getLength() == null || blob.getLength() > this.maxEntrySize) {
+            if (this.handler != null) {
+                this.runInCurrent(this.store.getLoadRunnable(this.blobId, this.handler));
+            } else if (this.writeTo != null) {
+                this.runInCurrent(this.store.getLoadRunnable(this.blobId, this.offset, this.length, this.writeTo));
+            } else {
+                this.runInCurrent(this.store.getLoadRunnable(this.blobId, this.offset, this.length, this.channelTo));
+            }
+            return;
+        }
+
+        final File temp = this.cache.newTempFile();
+        final FileOutputStream fileOut = new FileOutputStream(temp);
+        boolean filled = false;
+        try {
+            if (this.handler != null) {
+                this.runInCurrent(this.store.getLoadRunnable(this.blobId, new BlobStreamHandler() {
+                    @Override
+                    public void handle(final InputStream content) throws IOException
+                    {
+                        CachingBlobLoadTransactionRunnable.this.handler.handle(
+                            new TeeInputStream(content, fileOut));
+                    }
+                }));
+            } else if (this.writeTo != null) {
+                this.runInCurrent(this.store.getLoadRunnable(this.blobId, new TeeOutputStream(this.writeTo, fileOut)));
+            } else {
+                this.runInCurrent(this.store.getLoadRunnable(this.blobId, 0, Long.MAX_VALUE,
+                                                             new TeeChannel(this.channelTo, fileOut.getChannel())));
+            }
+            fileOut.close();
+            // A handler may stop reading before the end, only a complete copy can be cached.
+            filled = temp.length() == blob.getLength();
+        } finally {
+            IOUtils.closeQuietly(fileOut);
+            if (filled) {
+                this.cache.put(key, temp);
+            } else {
+                FileUtils.deleteQuietly(temp);
+            }
+        }
+    }
+
+    /**
+     * Write the requested range of a cached file, or give the whole file to the handler.
+     * The transfer is done by the operating system when the target allows it.
+     *
+     * @param cached the cached file.
+     * @return false if the file was evicted before it could be opened.
+     * @throws IOException if reading the file or writing the output fails.
+     */
+    private boolean transferFrom(final File cached) throws IOException
+    {
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(cached);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            if (this.handler != null) {
+                this.handler.handle(in);
+                return true;
+            }
+            final FileChannel channel = in.getChannel();
+            final WritableByteChannel target =
+                (this.channelTo != null) ? this.channelTo : Channels.newChannel(this.writeTo);
+            final long end = (this.length > channel.size() - this.offset)
+                ? channel.size() : this.offset + this.length;
+            long position = this.offset;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, target);
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Run a runnable of the underlying store in the PersistenceManager of this transaction.
+     *
+     * @param runnable the runnable to run.
+     * @throws TransactionException if the runnable fails.
+     */
+    private void runInCurrent(final TransactionRunnable<PersistenceManager> runnable)
+        throws TransactionException
+    {
+        final PersistenceManager pm = this.getContext();
+        final StartableTransactionRunnable<PersistenceManager> inCurrent =
+            new StartableTransactionRunnable<PersistenceManager>() {
+                @Override
+                protected PersistenceManager getProvidedContext()
+                {
+                    return pm;
+                }
+            };
+        runnable.runIn(inCurrent);
+        inCurrent.start();
+    }
+
+    /** A channel which writes everything to a target channel and a copy to a file. */
+    private static class TeeChannel implements WritableByteChannel
+    {
+        private final WritableByteChannel target;
+
+        private final FileChannel copy;
+
+        TeeChannel(final WritableByteChannel target, final FileChannel copy)
+        {
+            this.target = target;
+            this.copy = copy;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException
+        {
+            final ByteBuffer toCopy = src.duplicate();
+            final int written = this.target.write(src);
+            toCopy.limit(toCopy.position() + written);
+            while (toCopy.hasRemaining()) {
+                this.copy.write(toCopy);
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return this.target.isOpen();
+        }
+
+        @Override
+        public void close()
+        {
+            // The target belongs to the caller and the copy to the load.
+        }
+    }
+}
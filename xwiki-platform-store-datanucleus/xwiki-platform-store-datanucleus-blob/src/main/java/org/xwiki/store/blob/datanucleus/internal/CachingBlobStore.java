@@ -0,0 +1,224 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.jdo.PersistenceManager;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+import org.xwiki.store.blob.BlobInfo;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.store.blob.BlobStreamHandler;
+import org.xwiki.store.TransactionRunnable;
+
+/**
+ * A DataNucleus blob store which keeps recently loaded blobs in files on the local disk.
+ * Cached content is keyed by the blob id and active version so a save or a delete makes the
+ * cached copy unreachable without any invalidation, it is then evicted in due course.
+ * Everything except loads is passed straight to the underlying store.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@Component
+@Named("datanucleus-cached")
+@Singleton
+public class CachingBlobStore implements BlobStore<PersistenceManager>, Initializable
+{
+    /** The underlying store. */
+    @Inject
+    @Named("datanucleus")
+    private BlobStore<PersistenceManager> store;
+
+    /** The source of the configuration for the store. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Used to find the temporary directory to put the cache in. */
+    @Inject
+    private Environment environment;
+
+    /** The largest blob which is cached in bytes. */
+    private long maxEntrySize;
+
+    /** The cache, null if caching is disabled. */
+    private BlobDiskCache cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        final BlobStoreSettings settings = new BlobStoreSettings(this.configuration);
+        this.maxEntrySize = settings.getCacheMaxEntrySize();
+        if (settings.getCacheSize() > 0) {
+            final File dir = new File(this.environment.getTemporaryDirectory(), "datanucleus-blob-cache");
+            try {
+                this.cache = new BlobDiskCache(dir, settings.getCacheSize());
+            } catch (IOException e) {
+                throw new InitializationException("Failed to set up the blob cache in [" + dir + "]", e);
+            }
+        }
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getSaveRunnable(final String id, final InputStream readFrom)
+    {
+        return this.store.getSaveRunnable(id, readFrom);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getSaveRunnable(final String id,
+                                                                   final InputStream readFrom,
+                                                                   final long expectedLength)
+    {
+        return this.store.getSaveRunnable(id, readFrom, expectedLength);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getSaveRunnable(final String id,
+                                                                   final ReadableByteChannel readFrom,
+                                                                   final long expectedLength)
+    {
+        return this.store.getSaveRunnable(id, readFrom, expectedLength);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id, final OutputStream writeTo)
+    {
+        return this.getLoadRunnable(id, 0, Long.MAX_VALUE, writeTo);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id,
+                                                                   final long offset,
+                                                                   final long length,
+                                                                   final OutputStream writeTo)
+    {
+        if (this.cache == null) {
+            return this.store.getLoadRunnable(id, offset, length, writeTo);
+        }
+        return new CachingBlobLoadTransactionRunnable(this.store, this.cache, this.maxEntrySize,
+                                                      id, offset, length, writeTo);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id,
+                                                                   final long offset,
+                                                                   final long length,
+                                                                   final WritableByteChannel writeTo)
+    {
+        if (this.cache == null) {
+            return this.store.getLoadRunnable(id, offset, length, writeTo);
+        }
+        return new CachingBlobLoadTransactionRunnable(this.store, this.cache, this.maxEntrySize,
+                                                      id, offset, length, writeTo);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id, final BlobStreamHandler handler)
+    {
+        if (this.cache == null) {
+            return this.store.getLoadRunnable(id, handler);
+        }
+        return new CachingBlobLoadTransactionRunnable(this.store, this.cache, this.maxEntrySize, id, handler);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getStatRunnable(final String id, final BlobInfo outputInfo)
+    {
+        return this.store.getStatRunnable(id, outputInfo);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getDeleteRunnable(final String id)
+    {
+        return this.store.getDeleteRunnable(id);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getDeleteAllRunnable(final Collection<String> ids)
+    {
+        return this.store.getDeleteAllRunnable(ids);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getListAllRunnable(final List<String> outputList)
+    {
+        return this.store.getListAllRunnable(outputList);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getListRunnable(final String prefix,
+                                                                   final String after,
+                                                                   final int limit,
+                                                                   final List<String> outputList)
+    {
+        return this.store.getListRunnable(prefix, after, limit, outputList);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getStartUploadRunnable(final String id,
+                                                                          final List<String> outputUploadId)
+    {
+        return this.store.getStartUploadRunnable(id, outputUploadId);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getUploadPartRunnable(final String uploadId,
+                                                                         final int partNumber,
+                                                                         final InputStream readFrom)
+    {
+        return this.store.getUploadPartRunnable(uploadId, partNumber, readFrom);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getListUploadPartsRunnable(final String uploadId,
+                                                                              final List<Integer> outputList)
+    {
+        return this.store.getListUploadPartsRunnable(uploadId, outputList);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getCompleteUploadRunnable(final String uploadId,
+                                                                             final int partCount)
+    {
+        return this.store.getCompleteUploadRunnable(uploadId, partCount);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAbortUploadRunnable(final String uploadId)
+    {
+        return this.store.getAbortUploadRunnable(uploadId);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A bounded pool of chunk buffers shared by all saves.
+ * Buffers are pooled by their exact length because the length of a buffer decides the length
+ * of the chunk read into it. When the pool is full, returned buffers are left to the garbage collector.
+ * A buffer which a save stores as the content of a chunk belongs to the chunk and is never returned,
+ * buffers come back from chunks which are compressed, content addressed or shorter than the buffer.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class ChunkBufferPool
+{
+    /** Idle buffers by length. */
+    private final Map<Integer, LinkedList<byte[]>> buffersByLength = new HashMap<Integer, LinkedList<byte[]>>();
+
+    /** The maximum number of bytes of idle buffers to keep. */
+    private final long maxPooledBytes;
+
+    /** The number of bytes of idle buffers currently kept. */
+    private long pooledBytes;
+
+    /**
+     * The Constructor.
+     *
+     * @param maxPooledBytes the maximum number of bytes of idle buffers to keep.
+     */
+    ChunkBufferPool(final long maxPooledBytes)
+    {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Take a buffer from the pool or allocate one if there is none of the right length.
+     *
+     * @param length the length of the buffer.
+     * @return a buffer of the given length, the content is undefined.
+     */
+    synchronized byte[] take(final int length)
+    {
+        final LinkedList<byte[]> buffers = this.buffersByLength.get(length);
+        if (buffers == null || buffers.isEmpty()) {
+            return new byte[length];
+        }
+        this.pooledBytes -= length;
+        return buffers.removeLast();
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * The caller must not use the buffer, nor anything else keep a reference to it, afterward.
+     *
+     * @param buffer the buffer to return.
+     */
+    synchronized void give(final byte[] buffer)
+    {
+        if (this.pooledBytes + buffer.length > this.maxPooledBytes) {
+            return;
+        }
+        LinkedList<byte[]> buffers = this.buffersByLength.get(buffer.length);
+        if (buffers == null) {
+            buffers = new LinkedList<byte[]>();
+            this.buffersByLength.put(buffer.length, buffers);
+        }
+        buffers.add(buffer);
+        this.pooledBytes += buffer.length;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The encodings which a chunk of blob content can be stored in.
+ * The id of the codec is stored with each chunk so chunks stored with different codecs,
+ * or before compression was enabled, can be read back.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+enum ChunkCodec
+{
+    /** The content is stored as is. */
+    NONE(0)
+    {
+        @Override
+        byte[] encode(final byte[] buff, final int length)
+        {
+            return null;
+        }
+
+        @Override
+        byte[] decode(final byte[] content, final int maxLength)
+        {
+            return content;
+        }
+    },
+
+    /** The content is compressed with the deflate algorithm. */
+    DEFLATE(1)
+    {
+        @Override
+        byte[] encode(final byte[] buff, final int length)
+        {
+            if (length < MIN_COMPRESSIBLE_LENGTH || !isCompressible(buff, length)) {
+                return null;
+            }
+            // If the output does not fit in less than the input, it is not worth storing compressed.
+            return deflate(buff, 0, length, Deflater.DEFAULT_COMPRESSION, length - 1);
+        }
+
+        @Override
+        byte[] decode(final byte[] content, final int maxLength) throws IOException
+        {
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(content);
+                final byte[] out = new byte[maxLength];
+                int length = 0;
+                while (!inflater.finished() && length < out.length) {
+                    final int count = inflater.inflate(out, length, out.length - length);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Compressed chunk is truncated");
+                    }
+                    length += count;
+                }
+                if (!inflater.finished()) {
+                    throw new IOException("Compressed chunk is larger than [" + maxLength + "] bytes");
+                }
+                return (length == out.length) ? out : Arrays.copyOf(out, length);
+            } catch (DataFormatException e) {
+                throw new IOException("Compressed chunk is corrupt", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    /** Chunks smaller than this are not worth compressing. */
+    private static final int MIN_COMPRESSIBLE_LENGTH = 256;
+
+    /** The number of bytes at the beginning of a chunk which are compressed to probe it's compressibility. */
+    private static final int PROBE_LENGTH = 4096;
+
+    /** The probe must compress to less than this fraction of it's size for the chunk to be compressed. */
+    private static final double PROBE_MAX_RATIO = 0.9;
+
+    /** The id which is stored with the chunk. */
+    private final int id;
+
+    /**
+     * The Constructor.
+     *
+     * @param id the id which is stored with the chunk.
+     */
+    private ChunkCodec(final int id)
+    {
+        this.id = id;
+    }
+
+    /** @return the id which is stored with chunks encoded with this codec. */
+    int getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * Encode a chunk.
+     *
+     * @param buff the buffer containing the chunk content.
+     * @param length the number of bytes in the buffer which are part of the chunk.
+     * @return the encoded chunk or null if encoding does not make it smaller and it should be stored as is.
+     */
+    abstract byte[] encode(final byte[] buff, final int length);
+
+    /**
+     * Decode a chunk.
+     *
+     * @param content the chunk as stored.
+     * @param maxLength the maximum length of the decoded chunk.
+     * @return the decoded chunk content.
+     * @throws IOException if the chunk cannot be decoded.
+     */
+    abstract byte[] decode(final byte[] content, final int maxLength) throws IOException;
+
+    /**
+     * @param id the id stored with a chunk, null for chunks stored before codecs were recorded.
+     * @return the codec with that id.
+     */
+    static ChunkCodec forId(final Integer id)
+    {
+        if (id != null) {
+            for (final ChunkCodec codec : values()) {
+                if (codec.id == id) {
+                    return codec;
+                }
+            }
+            throw new IllegalArgumentException("Unknown chunk codec [" + id + "]");
+        }
+        return NONE;
+    }
+
+    /**
+     * Check whether the content is worth compressing by quickly compressing the beginning of it.
+     * Content which is already compressed (archives, images, video, office documents) does not shrink.
+     *
+     * @param buff the buffer containing the content.
+     * @param length the number of bytes in the buffer.
+     * @return true if the content is likely to compress.
+     */
+    private static boolean isCompressible(final byte[] buff, final int length)
+    {
+        final int probeLength = Math.min(PROBE_LENGTH, length);
+        final int maxOut = (int) (probeLength * PROBE_MAX_RATIO);
+        return deflate(buff, 0, probeLength, Deflater.BEST_SPEED, maxOut) != null;
+    }
+
+    /**
+     * Compress part of a buffer.
+     *
+     * @param buff the buffer to compress.
+     * @param offset the offset of the first byte to compress.
+     * @param length the number of bytes to compress.
+     * @param level the compression level.
+     * @param maxOut the maximum length of the output.
+     * @return the compressed bytes or null if they do not fit in maxOut bytes.
+     */
+    private static byte[] deflate(final byte[] buff,
+                                  final int offset,
+                                  final int length,
+                                  final int level,
+                                  final int maxOut)
+    {
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(buff, offset, length);
+            deflater.finish();
+            final byte[] out = new byte[maxOut];
+            int outLength = 0;
+            while (!deflater.finished() && outLength < out.length) {
+                outLength += deflater.deflate(out, outLength, out.length - outLength);
+            }
+            return (deflater.finished()) ? Arrays.copyOf(out, outLength) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+}
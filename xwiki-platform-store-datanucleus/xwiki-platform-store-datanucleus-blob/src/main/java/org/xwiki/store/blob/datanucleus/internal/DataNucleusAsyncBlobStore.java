@@ -0,0 +1,227 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.jdo.PersistenceManager;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.AsyncBlobStore;
+import org.xwiki.store.blob.BlobCallback;
+import org.xwiki.store.blob.BlobInfo;
+import org.xwiki.store.blob.BlobStore;
+
+/**
+ * Runs the operations of the DataNucleus blob store on a bounded pool of threads.
+ * Every operation is the runnable of the synchronous store started in a transaction of it's own,
+ * so it commits or rolls back exactly as it would on the caller's thread.
+ * <p>
+ * This is a plain offload executor. The runnables do blocking I/O, so each operation holds a pool
+ * thread until it's transfer is complete and the number of concurrent transfers is at most the
+ * number of threads, store.blob.datanucleus.async.threads should be sized for that.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@Component
+@Named("datanucleus")
+@Singleton
+public class DataNucleusAsyncBlobStore implements AsyncBlobStore, Initializable, Disposable
+{
+    /** The store which provides the runnables. */
+    @Inject
+    @Named("datanucleus")
+    private BlobStore<PersistenceManager> store;
+
+    /** The provider of the transactions which operations run in. */
+    @Inject
+    @Named("datanucleus")
+    private TransactionProvider<PersistenceManager> provider;
+
+    /** The source of the configuration for the store. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The executor which runs the operations. */
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void initialize()
+    {
+        final BlobStoreSettings settings = new BlobStoreSettings(this.configuration);
+        final int threads = settings.getAsyncThreads();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(settings.getAsyncQueueSize()), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "DataNucleusAsyncBlobStore");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        // Idle threads are not kept around when there are no transfers.
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public Future<Void> save(final String id,
+                             final ReadableByteChannel readFrom,
+                             final long expectedLength,
+                             final BlobCallback<Void> callback)
+    {
+        return this.submit(this.store.getSaveRunnable(id, readFrom, expectedLength), null, callback);
+    }
+
+    @Override
+    public Future<Void> load(final String id,
+                             final long offset,
+                             final long length,
+                             final WritableByteChannel writeTo,
+                             final BlobCallback<Void> callback)
+    {
+        return this.submit(this.store.getLoadRunnable(id, offset, length, writeTo), null, callback);
+    }
+
+    @Override
+    public Future<BlobInfo> stat(final String id, final BlobCallback<BlobInfo> callback)
+    {
+        final BlobInfo info = new BlobInfo();
+        return this.submit(this.store.getStatRunnable(id, info), info, callback);
+    }
+
+    @Override
+    public Future<Void> delete(final String id, final BlobCallback<Void> callback)
+    {
+        return this.submit(this.store.getDeleteRunnable(id), null, callback);
+    }
+
+    /**
+     * Queue a runnable to be started in a new transaction.
+     * If the queue is full the operation fails, the Future completes exceptionally and the callback
+     * is told, nothing is thrown to the caller.
+     *
+     * @param <V> the type of the result.
+     * @param runnable the runnable to run.
+     * @param result the result to complete with once the transaction has committed.
+     * @param callback told when the transaction has committed or failed, may be null.
+     * @return a Future of the result.
+     */
+    private <V> Future<V> submit(final TransactionRunnable<PersistenceManager> runnable,
+                                 final V result,
+                                 final BlobCallback<V> callback)
+    {
+        final OperationTask<V> task = new OperationTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception
+            {
+                final StartableTransactionRunnable<PersistenceManager> transaction =
+                    DataNucleusAsyncBlobStore.this.provider.get();
+                runnable.runIn(transaction);
+                transaction.start();
+                return result;
+            }
+        }, callback);
+        try {
+            this.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject(e);
+        }
+        return task;
+    }
+
+    /**
+     * An operation of the store which tells it's callback once it is done.
+     *
+     * @param <V> the type of the result.
+     */
+    private static class OperationTask<V> extends FutureTask<V>
+    {
+        /** Told when the operation has committed or failed, may be null. */
+        private final BlobCallback<V> callback;
+
+        /**
+         * The Constructor.
+         *
+         * @param callable the operation.
+         * @param callback told when the operation has committed or failed, may be null.
+         */
+        OperationTask(final Callable<V> callable, final BlobCallback<V> callback)
+        {
+            super(callable);
+            this.callback = callback;
+        }
+
+        /**
+         * Fail the operation without running it.
+         *
+         * @param cause the reason why it was not run.
+         */
+        void reject(final Throwable cause)
+        {
+            this.setException(cause);
+        }
+
+        @Override
+        protected void done()
+        {
+            if (this.callback == null) {
+                return;
+            }
+            try {
+                this.callback.onSuccess(this.get());
+            } catch (ExecutionException e) {
+                this.callback.onFailure(e.getCause());
+            } catch (CancellationException e) {
+                this.callback.onFailure(e);
+            } catch (InterruptedException e) {
+                // Not possible once the task is done.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -21,31 +21,193 @@ package org.xwiki.store.blob.datanucleus.internal;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Singleton;
 import javax.jdo.PersistenceManager;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.store.blob.BlobInfo;
 import org.xwiki.store.blob.BlobStore;
+import org.xwiki.store.blob.BlobStreamHandler;
+import org.xwiki.store.TransactionProvider;
 import org.xwiki.store.TransactionRunnable;
 
 @Component
 @Named("datanucleus")
-public class DataNucleusBlobStore implements BlobStore<PersistenceManager>
+@Singleton
+public class DataNucleusBlobStore implements BlobStore<PersistenceManager>, Initializable, Disposable
 {
+    /** The size to expect when the size of the content to save is not known. */
+    private static final long UNKNOWN_LENGTH = -1;
+
     private final Random random = new Random();
 
+    /** The source of the configuration for the store. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The configuration of the store. */
+    private BlobStoreSettings settings;
+
+    /** The pool of chunk buffers shared by all saves. */
+    private ChunkBufferPool bufferPool;
+
+    /** The executor which fetches chunks ahead, null if read-ahead is disabled. */
+    private ExecutorService readAheadExecutor;
+
+    /** The provider of the transactions which the collector runs in. */
+    @Inject
+    @Named("datanucleus")
+    private TransactionProvider<PersistenceManager> provider;
+
+    /** The executor which runs the collector of superseded chunks, null if the collector is disabled. */
+    private ScheduledExecutorService collectorExecutor;
+
+    /** The executor which runs the purger of deleted blobs. */
+    private ScheduledExecutorService purgeExecutor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.settings = new BlobStoreSettings(this.configuration);
+        if (this.settings.isDeduplicate() && !this.settings.isCollectorEnabled()) {
+            throw new InitializationException("Deduplicated blob chunks are only removed by the collector, "
+                                              + "store.blob.datanucleus.deduplicate requires "
+                                              + "store.blob.datanucleus.collector.interval to be set");
+        }
+        this.bufferPool = new ChunkBufferPool(this.settings.getBufferPoolSize());
+        if (this.settings.getReadAheadWindow() > 1) {
+            final int threads = this.settings.getReadAheadThreads();
+            this.readAheadExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "DataNucleusBlobStore read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        this.purgeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r, "DataNucleusBlobStore purger");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        final long purgeInterval = this.settings.getPurgeInterval();
+        this.purgeExecutor.scheduleWithFixedDelay(new BlobPurger(this.provider, this.settings),
+                                                  purgeInterval, purgeInterval, TimeUnit.SECONDS);
+        if (this.settings.isCollectorEnabled()) {
+            this.collectorExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "DataNucleusBlobStore collector");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            final long interval = this.settings.getCollectorInterval();
+            this.collectorExecutor.scheduleWithFixedDelay(new BlobVersionCollector(this.provider, this.settings),
+                                                          interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.purgeExecutor != null) {
+            this.purgeExecutor.shutdownNow();
+        }
+        if (this.collectorExecutor != null) {
+            this.collectorExecutor.shutdownNow();
+        }
+        if (this.readAheadExecutor != null) {
+            this.readAheadExecutor.shutdownNow();
+        }
+    }
+
     @Override
     public TransactionRunnable<PersistenceManager> getSaveRunnable(final String id, final InputStream readFrom)
     {
-        return new BlobSaveTransactionRunnable(id, readFrom, this.random);
+        return this.getSaveRunnable(id, readFrom, UNKNOWN_LENGTH);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getSaveRunnable(final String id,
+                                                                   final InputStream readFrom,
+                                                                   final long expectedLength)
+    {
+        return new BlobSaveTransactionRunnable(id, readFrom, expectedLength, this.random,
+                                               this.settings, this.bufferPool);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getSaveRunnable(final String id,
+                                                                   final ReadableByteChannel readFrom,
+                                                                   final long expectedLength)
+    {
+        return new BlobSaveTransactionRunnable(id, readFrom, expectedLength, this.random,
+                                               this.settings, this.bufferPool);
     }
 
     @Override
     public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id, final OutputStream writeTo)
     {
-        return new BlobLoadTransactionRunnable(id, writeTo);
+        return this.getLoadRunnable(id, 0, Long.MAX_VALUE, writeTo);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id,
+                                                                   final long offset,
+                                                                   final long length,
+                                                                   final OutputStream writeTo)
+    {
+        return new BlobLoadTransactionRunnable(id, offset, length, writeTo,
+                                               this.readAheadExecutor, this.settings.getReadAheadWindow());
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id,
+                                                                   final long offset,
+                                                                   final long length,
+                                                                   final WritableByteChannel writeTo)
+    {
+        return new BlobLoadTransactionRunnable(id, offset, length, writeTo,
+                                               this.readAheadExecutor, this.settings.getReadAheadWindow());
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getLoadRunnable(final String id, final BlobStreamHandler handler)
+    {
+        return new BlobStreamTransactionRunnable(id, handler);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getStatRunnable(final String id, final BlobInfo outputInfo)
+    {
+        return new BlobStatTransactionRunnable(id, outputInfo);
     }
 
     @Override
@@ -54,9 +216,61 @@ public class DataNucleusBlobStore implements BlobStore<PersistenceManager>
         return new BlobDeleteTransactionRunnable(id);
     }
 
+    @Override
+    public TransactionRunnable<PersistenceManager> getDeleteAllRunnable(final Collection<String> ids)
+    {
+        return new BlobDeleteAllTransactionRunnable(ids);
+    }
+
     @Override
     public TransactionRunnable<PersistenceManager> getListAllRunnable(final List<String> outputList)
     {
         return new BlobListAllTransactionRunnable(outputList);
     }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getListRunnable(final String prefix,
+                                                                   final String after,
+                                                                   final int limit,
+                                                                   final List<String> outputList)
+    {
+        return new BlobListTransactionRunnable(prefix, after, limit, outputList);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getStartUploadRunnable(final String id,
+                                                                          final List<String> outputUploadId)
+    {
+        return new BlobUploadStartTransactionRunnable(id, outputUploadId, this.settings.isCollectorEnabled());
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getUploadPartRunnable(final String uploadId,
+                                                                         final int partNumber,
+                                                                         final InputStream readFrom)
+    {
+        return new BlobUploadPartTransactionRunnable(uploadId, partNumber, readFrom,
+                                                     this.settings, this.bufferPool);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getListUploadPartsRunnable(final String uploadId,
+                                                                              final List<Integer> outputList)
+    {
+        return new BlobUploadListPartsTransactionRunnable(uploadId, outputList);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getCompleteUploadRunnable(final String uploadId,
+                                                                             final int partCount)
+    {
+        return new BlobUploadCompleteTransactionRunnable(uploadId, partCount, this.random,
+                                                         this.settings.isCollectorEnabled());
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAbortUploadRunnable(final String uploadId)
+    {
+        return new BlobUploadAbortTransactionRunnable(uploadId);
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * A blob which was marked deleted and whose chunks the {@link BlobPurger} has yet to remove.
+ * The purger walks these records so it never looks for deleted blobs in the Blob table.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "DeletedBlob")
+class DeletedBlob
+{
+    /** The id of the deleted blob. */
+    @PrimaryKey
+    private String blobId;
+
+    public DeletedBlob(final String blobId)
+    {
+        this.blobId = blobId;
+    }
+
+    public String getBlobId()
+    {
+        return this.blobId;
+    }
+
+    /**
+     * Mark a blob deleted and record it for the purger.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param blob the blob to delete.
+     */
+    static void record(final PersistenceManager pm, final Blob blob)
+    {
+        blob.markDeleted();
+        try {
+            pm.getObjectById(DeletedBlob.class, blob.getId());
+        } catch (JDOObjectNotFoundException e) {
+            pm.makePersistent(new DeletedBlob(blob.getId()));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+import org.xwiki.store.UnexpectedException;
+
+/**
+ * A content addressed chunk of blob content.
+ * Identical chunks are stored only once and shared by every blob which contains them.
+ * Each user of a chunk writes a {@link HashedBlobChunkReference} of it's own rather than updating a
+ * count, the data store has no isolation so a read-modify-write of a count would lose references.
+ * Chunks are only removed by the collector, once no live reference to them remains.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "HashedBlobChunk")
+class HashedBlobChunk
+{
+    /** The algorithm used to address the chunks. */
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    /** The hex encoded hash of the content. */
+    @PrimaryKey
+    private String hash;
+
+    /** The content of the blob chunk, encoded with the codec. */
+    private byte[] content;
+
+    /** The id of the {@link ChunkCodec} used to encode the content, null if it is stored as is. */
+    private Integer codec;
+
+    public HashedBlobChunk(final String hash, final byte[] content, final ChunkCodec codec)
+    {
+        this.hash = hash;
+        this.content = content;
+        this.codec = (codec == ChunkCodec.NONE) ? null : codec.getId();
+    }
+
+    public byte[] getContent()
+    {
+        return this.content;
+    }
+
+    public ChunkCodec getCodec()
+    {
+        return ChunkCodec.forId(this.codec);
+    }
+
+    /**
+     * Store a chunk of content, if an identical chunk is already stored then only a reference to it
+     * is written. The chunk is addressed by the hash of the content before it is encoded.
+     * The reference is written before the chunk is looked up so that the collector, which checks for
+     * references again after removing a chunk, either sees the reference or the chunk is found missing here.
+     *
+     * @param pm the PersistenceManager to store with.
+     * @param buff the buffer containing the content.
+     * @param length the number of bytes in the buffer which are part of the chunk.
+     * @param codec the codec to try encoding a new chunk with.
+     * @param owner the owner of the reference, see {@link HashedBlobChunkReference}.
+     * @return the hash which addresses the chunk.
+     */
+    public static String store(final PersistenceManager pm,
+                               final byte[] buff,
+                               final int length,
+                               final ChunkCodec codec,
+                               final String owner)
+    {
+        final String hash = hash(buff, length);
+        HashedBlobChunkReference.add(pm, hash, owner);
+        try {
+            pm.getObjectById(HashedBlobChunk.class, hash);
+        } catch (JDOObjectNotFoundException e) {
+            final byte[] encoded = codec.encode(buff, length);
+            if (encoded != null) {
+                pm.makePersistent(new HashedBlobChunk(hash, encoded, codec));
+            } else {
+                pm.makePersistent(new HashedBlobChunk(hash, Arrays.copyOf(buff, length), ChunkCodec.NONE));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Remove a chunk if no live reference to it remains, only the collector calls this.
+     * A save may reference the chunk between the check and the removal so the references are checked
+     * again afterwards and the chunk is put back if one appeared.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param hash the hash which addresses the chunk.
+     */
+    static void removeIfUnreferenced(final PersistenceManager pm, final String hash)
+    {
+        if (HashedBlobChunkReference.isReferenced(pm, hash)) {
+            return;
+        }
+        final HashedBlobChunk chunk;
+        try {
+            chunk = pm.getObjectById(HashedBlobChunk.class, hash);
+        } catch (JDOObjectNotFoundException e) {
+            // Already gone.
+            return;
+        }
+        final byte[] content = chunk.getContent();
+        final ChunkCodec codec = chunk.getCodec();
+        pm.deletePersistent(chunk);
+        pm.flush();
+        if (HashedBlobChunkReference.isReferenced(pm, hash)) {
+            pm.makePersistent(new HashedBlobChunk(hash, content, codec));
+        }
+    }
+
+    /**
+     * @param buff the buffer containing the content.
+     * @param length the number of bytes in the buffer to hash.
+     * @return the hex encoded hash of the content.
+     */
+    private static String hash(final byte[] buff, final int length)
+    {
+        final MessageDigest md = newDigest();
+        md.update(buff, 0, length);
+        return toHex(md.digest());
+    }
+
+    /** @return a new MessageDigest of the algorithm which chunks and blobs are hashed with. */
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnexpectedException("No " + HASH_ALGORITHM + " support in this JVM", e);
+        }
+    }
+
+    /**
+     * @param digest the output of a MessageDigest.
+     * @return the digest hex encoded.
+     */
+    static String toHex(final byte[] digest)
+    {
+        final StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (final byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * A reference from a blob version or an upload part to a {@link HashedBlobChunk}.
+ * References are only ever added or removed by their own owner, never counted, so that concurrent saves
+ * which share a chunk cannot lose each other's references. Every stored reference is live so checking whether
+ * a chunk is still used is a single read of the hash index, when an owner removes it's reference the hash is
+ * recorded as a {@link ReleasedHashedBlobChunk} and the collector removes the chunk if no reference remains.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "HashedBlobChunkReference")
+class HashedBlobChunkReference
+{
+    /** The primary key, the hash of the chunk followed by the owner of the reference. */
+    @PrimaryKey
+    private Object[] id;
+
+    @Index
+    private String hash;
+
+    /** What holds the reference, see {@link #blobOwner(String, long)} and {@link #partOwner(String, int)}. */
+    private String owner;
+
+    public HashedBlobChunkReference(final String hash, final String owner)
+    {
+        this.id = makeId(hash, owner);
+        this.hash = hash;
+        this.owner = owner;
+    }
+
+    public String getHash()
+    {
+        return this.hash;
+    }
+
+    public static Object[] makeId(final String hash, final String owner)
+    {
+        return new Object[] { hash, owner };
+    }
+
+    /**
+     * @param blobId the id of a blob.
+     * @param version a version of the blob.
+     * @return the owner of the references held by that version of the blob.
+     */
+    static String blobOwner(final String blobId, final long version)
+    {
+        return "blob/" + version + "/" + blobId;
+    }
+
+    /**
+     * @param uploadId the id of a staged upload.
+     * @param partNumber the number of a part of the upload.
+     * @return the owner of the references held by that part.
+     */
+    static String partOwner(final String uploadId, final int partNumber)
+    {
+        return "part/" + partNumber + "/" + uploadId;
+    }
+
+    /**
+     * Record that the owner uses a chunk.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param hash the hash which addresses the chunk.
+     * @param owner the owner of the reference.
+     */
+    static void add(final PersistenceManager pm, final String hash, final String owner)
+    {
+        try {
+            pm.getObjectById(HashedBlobChunkReference.class, makeId(hash, owner));
+        } catch (JDOObjectNotFoundException e) {
+            pm.makePersistent(new HashedBlobChunkReference(hash, owner));
+        }
+    }
+
+    /**
+     * Remove the references of an owner and record the chunks for the collector, which removes those
+     * which are left unreferenced.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param hashes the hashes of the chunks which the owner no longer uses, may contain duplicates.
+     * @param owner the owner of the references.
+     */
+    static void release(final PersistenceManager pm, final Collection<String> hashes, final String owner)
+    {
+        for (final String hash : new LinkedHashSet<String>(hashes)) {
+            try {
+                pm.deletePersistent(pm.getObjectById(HashedBlobChunkReference.class, makeId(hash, owner)));
+            } catch (JDOObjectNotFoundException e) {
+                // Never stored or already released.
+                continue;
+            }
+            ReleasedHashedBlobChunk.record(pm, hash);
+        }
+    }
+
+    /**
+     * @param pm the PersistenceManager to use.
+     * @param hash the hash which addresses a chunk.
+     * @return true if any owner holds a reference to the chunk.
+     */
+    static boolean isReferenced(final PersistenceManager pm, final String hash)
+    {
+        final Query query = pm.newQuery(HashedBlobChunkReference.class, "hash == :hash");
+        query.setResult("owner");
+        query.setRange(0, 1);
+        try {
+            return !((Collection<?>) query.execute(hash)).isEmpty();
+        } finally {
+            query.closeAll();
+        }
+    }
+}
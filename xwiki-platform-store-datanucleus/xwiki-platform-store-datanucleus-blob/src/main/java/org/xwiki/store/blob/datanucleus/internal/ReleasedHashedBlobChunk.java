@@ -0,0 +1,66 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * A {@link HashedBlobChunk} which lost a reference and which the collector has yet to consider.
+ * The collector walks these records rather than the references, once it has checked the chunk for
+ * remaining references it removes the record.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "ReleasedHashedBlobChunk")
+class ReleasedHashedBlobChunk
+{
+    /** The hash which addresses the chunk. */
+    @PrimaryKey
+    private String hash;
+
+    public ReleasedHashedBlobChunk(final String hash)
+    {
+        this.hash = hash;
+    }
+
+    public String getHash()
+    {
+        return this.hash;
+    }
+
+    /**
+     * Record that a chunk lost a reference, if it is not already recorded.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param hash the hash which addresses the chunk.
+     */
+    static void record(final PersistenceManager pm, final String hash)
+    {
+        try {
+            pm.getObjectById(ReleasedHashedBlobChunk.class, hash);
+        } catch (JDOObjectNotFoundException e) {
+            pm.makePersistent(new ReleasedHashedBlobChunk(hash));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * A version of a blob whose {@link BlobChunk}s the collector has yet to consider.
+ * When the collector is enabled, a save records it's own version before writing any chunk, in case
+ * the save never completes, and records the version it replaces once it has completed.
+ * The collector walks these records so it never walks the chunk table.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "UncollectedBlobVersion")
+class UncollectedBlobVersion
+{
+    /** The primary key, the blob id followed by the version. */
+    @PrimaryKey
+    private Object[] id;
+
+    private String blobId;
+
+    private long version;
+
+    /** The time when the version was recorded, in milliseconds since the epoch. */
+    private long created;
+
+    public UncollectedBlobVersion(final String blobId, final long version)
+    {
+        this.id = new Object[] { blobId, version };
+        this.blobId = blobId;
+        this.version = version;
+        this.created = System.currentTimeMillis();
+    }
+
+    public String getBlobId()
+    {
+        return this.blobId;
+    }
+
+    public long getVersion()
+    {
+        return this.version;
+    }
+
+    public long getCreated()
+    {
+        return this.created;
+    }
+
+    /**
+     * Record a version of a blob for the collector, or restart the grace period of an existing record.
+     *
+     * @param pm the PersistenceManager to use.
+     * @param blobId the id of the blob.
+     * @param version the version of the blob.
+     */
+    static void record(final PersistenceManager pm, final String blobId, final long version)
+    {
+        try {
+            pm.getObjectById(UncollectedBlobVersion.class, new Object[] { blobId, version }).created =
+                System.currentTimeMillis();
+        } catch (JDOObjectNotFoundException e) {
+            pm.makePersistent(new UncollectedBlobVersion(blobId, version));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.Random;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobInfo;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.test.MockConfigurationSource;
+import org.xwiki.test.XWikiComponentInitializer;
+
+/**
+ * The setup and helpers shared by the tests which run the blob store against the embedded Cassandra
+ * of the documents module. The store is configured by {@link #configure(MockConfigurationSource)}
+ * before it is looked up.
+ */
+abstract class AbstractBlobStoreTest
+{
+    protected XWikiComponentInitializer initializer;
+
+    protected TransactionProvider<PersistenceManager> provider;
+
+    protected BlobStore<PersistenceManager> store;
+
+    protected final Random random = new Random();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.initializer = new XWikiComponentInitializer();
+        this.initializer.initializeConfigurationSource();
+        this.configure(this.initializer.getConfigurationSource());
+        this.initializer.initializeExecution();
+        this.provider = this.initializer.getComponentManager().getInstance(
+            new DefaultParameterizedType(null, TransactionProvider.class, PersistenceManager.class), "datanucleus");
+        this.store = this.initializer.getComponentManager().getInstance(
+            new DefaultParameterizedType(null, BlobStore.class, PersistenceManager.class), "datanucleus");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.initializer.shutdown();
+    }
+
+    /**
+     * Set the configuration of the store under test.
+     *
+     * @param configuration the configuration source which the store reads when it is initialized.
+     */
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        // The defaults.
+    }
+
+    /** @return the settings which the store under test was initialized with. */
+    protected BlobStoreSettings settings()
+    {
+        return new BlobStoreSettings(this.initializer.getConfigurationSource());
+    }
+
+    protected String newBlobId()
+    {
+        return this.getClass().getSimpleName() + '-' + this.random.nextLong();
+    }
+
+    protected byte[] content(final int length)
+    {
+        final byte[] content = new byte[length];
+        this.random.nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Save a blob without telling the store it's length, the chunks then grow from the smallest size.
+     *
+     * @param blobId the id of the blob.
+     * @param content the content to save.
+     * @throws Exception if the save fails.
+     */
+    protected void save(final String blobId, final byte[] content) throws Exception
+    {
+        this.run(this.store.getSaveRunnable(blobId, new ByteArrayInputStream(content)));
+    }
+
+    protected byte[] load(final String blobId) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.run(this.store.getLoadRunnable(blobId, out));
+        return out.toByteArray();
+    }
+
+    protected byte[] load(final String blobId, final long offset, final long length) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.run(this.store.getLoadRunnable(blobId, offset, length, out));
+        return out.toByteArray();
+    }
+
+    protected BlobInfo stat(final String blobId) throws Exception
+    {
+        final BlobInfo info = new BlobInfo();
+        this.run(this.store.getStatRunnable(blobId, info));
+        return info;
+    }
+
+    /**
+     * @param blobId the id of a blob.
+     * @return the number of chunk rows of all versions of the blob.
+     * @throws Exception if the chunks could not be counted.
+     */
+    protected int countChunks(final String blobId) throws Exception
+    {
+        final int[] count = new int[1];
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                final Query query = this.getContext().newQuery(BlobChunk.class, "blobId == :blobId");
+                count[0] = ((Collection<?>) query.execute(blobId)).size();
+                query.closeAll();
+            }
+        });
+        return count[0];
+    }
+
+    /** Remove the blobs which are marked deleted, as the store does in the background. */
+    protected void purge()
+    {
+        new BlobPurger(this.provider, this.settings()).run();
+    }
+
+    /** Run the collector of superseded and unreferenced chunks, as the store does in the background. */
+    protected void collect()
+    {
+        new BlobVersionCollector(this.provider, this.settings()).run();
+    }
+
+    protected void run(final TransactionRunnable<PersistenceManager> runnable) throws Exception
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        runnable.runIn(transaction);
+        transaction.start();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Chunks compressed with the deflate codec.
+ */
+public class BlobCompressionTest extends AbstractBlobStoreTest
+{
+    @Override
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        configuration.setProperty("store.blob.datanucleus.compression", "deflate");
+        configuration.setProperty("store.blob.datanucleus.inlineThreshold", 0);
+    }
+
+    @Test
+    public void testCompressibleContent() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.compressible(200 << 10);
+        this.save(blobId, content);
+
+        Assert.assertEquals(new HashSet<ChunkCodec>(Arrays.asList(ChunkCodec.DEFLATE)), this.getCodecs(blobId));
+        Assert.assertTrue(this.getStoredSize(blobId) < content.length / 2);
+        Assert.assertArrayEquals(content, this.load(blobId));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 60000, 70000), this.load(blobId, 60000, 10000));
+    }
+
+    @Test
+    public void testIncompressibleContentIsStoredAsIs() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(100 << 10);
+        this.save(blobId, content);
+
+        Assert.assertEquals(new HashSet<ChunkCodec>(Arrays.asList(ChunkCodec.NONE)), this.getCodecs(blobId));
+        Assert.assertArrayEquals(content, this.load(blobId));
+    }
+
+    /**
+     * @param length the number of bytes.
+     * @return content made of repeated text.
+     */
+    private byte[] compressible(final int length)
+    {
+        final byte[] text = "The quick brown fox jumps over the lazy dog. ".getBytes();
+        final byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = text[i % text.length];
+        }
+        return content;
+    }
+
+    private Set<ChunkCodec> getCodecs(final String blobId) throws Exception
+    {
+        final Set<ChunkCodec> out = new HashSet<ChunkCodec>();
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                final Query query = this.getContext().newQuery(BlobChunk.class, "blobId == :blobId");
+                for (final BlobChunk chunk : (Collection<BlobChunk>) query.execute(blobId)) {
+                    out.add(chunk.getCodec());
+                }
+                query.closeAll();
+            }
+        });
+        return out;
+    }
+
+    /**
+     * @param blobId the id of a blob.
+     * @return the number of bytes in the chunks as they are stored.
+     * @throws Exception if the chunks could not be read.
+     */
+    private long getStoredSize(final String blobId) throws Exception
+    {
+        final long[] out = new long[1];
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                final Query query = this.getContext().newQuery(BlobChunk.class, "blobId == :blobId");
+                for (final BlobChunk chunk : (Collection<BlobChunk>) query.execute(blobId)) {
+                    out[0] += chunk.getContent().length;
+                }
+                query.closeAll();
+            }
+        });
+        return out[0];
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Content addressed chunks which are shared between blobs.
+ */
+public class BlobDeduplicationTest extends AbstractBlobStoreTest
+{
+    @Override
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        configuration.setProperty("store.blob.datanucleus.deduplicate", true);
+        // Deduplication requires the collector, the test runs it when needed.
+        configuration.setProperty("store.blob.datanucleus.collector.interval", 3600L);
+        configuration.setProperty("store.blob.datanucleus.collector.pause", 0L);
+        configuration.setProperty("store.blob.datanucleus.inlineThreshold", 0);
+    }
+
+    @Test
+    public void testIdenticalBlobsShareChunks() throws Exception
+    {
+        final byte[] content = this.content(200 << 10);
+        final String first = this.newBlobId();
+        final String second = this.newBlobId();
+        this.save(first, content);
+        this.save(second, content);
+
+        Assert.assertArrayEquals(content, this.load(first));
+        Assert.assertArrayEquals(content, this.load(second));
+        final List<String> hashes = this.getChunkHashes(first);
+        Assert.assertEquals(3, hashes.size());
+        Assert.assertEquals(hashes, this.getChunkHashes(second));
+        // Nothing is written as plain chunks.
+        Assert.assertEquals(0, this.countChunks(first));
+    }
+
+    @Test
+    public void testSharedChunksOutliveOneBlob() throws Exception
+    {
+        final byte[] content = this.content(200 << 10);
+        final String first = this.newBlobId();
+        final String second = this.newBlobId();
+        this.save(first, content);
+        this.save(second, content);
+        final List<String> hashes = this.getChunkHashes(first);
+
+        this.run(this.store.getDeleteRunnable(first));
+        this.purge();
+        this.collect();
+        Assert.assertArrayEquals(content, this.load(second));
+        for (final String hash : hashes) {
+            Assert.assertTrue(this.hashedChunkExists(hash));
+        }
+
+        this.run(this.store.getDeleteRunnable(second));
+        this.purge();
+        this.collect();
+        for (final String hash : hashes) {
+            Assert.assertFalse(this.hashedChunkExists(hash));
+        }
+    }
+
+    @Test
+    public void testReplacedContentIsReleased() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(100 << 10));
+        final List<String> oldHashes = this.getChunkHashes(blobId);
+        final byte[] content = this.content(100 << 10);
+        this.save(blobId, content);
+
+        this.collect();
+        Assert.assertArrayEquals(content, this.load(blobId));
+        for (final String hash : oldHashes) {
+            Assert.assertFalse(this.hashedChunkExists(hash));
+        }
+        for (final String hash : this.getChunkHashes(blobId)) {
+            Assert.assertTrue(this.hashedChunkExists(hash));
+        }
+    }
+
+    private List<String> getChunkHashes(final String blobId) throws Exception
+    {
+        final List<String> out = new ArrayList<String>();
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                out.addAll(Blob.getExisting(this.getContext(), blobId).getChunkHashes());
+            }
+        });
+        return out;
+    }
+
+    private boolean hashedChunkExists(final String hash) throws Exception
+    {
+        final boolean[] out = new boolean[1];
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                try {
+                    this.getContext().getObjectById(HashedBlobChunk.class, hash);
+                    out[0] = true;
+                } catch (JDOObjectNotFoundException e) {
+                    out[0] = false;
+                }
+            }
+        });
+        return out[0];
+    }
+}
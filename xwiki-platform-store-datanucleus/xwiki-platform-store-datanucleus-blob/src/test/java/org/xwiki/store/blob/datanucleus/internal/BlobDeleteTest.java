@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.store.TransactionException;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Deletion of blobs with tombstones which the purger removes later.
+ */
+public class BlobDeleteTest extends AbstractBlobStoreTest
+{
+    @Override
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        // The purger does not get to run by itself during the test.
+        configuration.setProperty("store.blob.datanucleus.purge.interval", 3600L);
+        configuration.setProperty("store.blob.datanucleus.collector.pause", 0L);
+        configuration.setProperty("store.blob.datanucleus.inlineThreshold", 0);
+    }
+
+    @Test
+    public void testDeleteAll() throws Exception
+    {
+        final String prefix = this.newBlobId() + '-';
+        final byte[] content = this.content(1000);
+        for (final String name : Arrays.asList("a", "b", "c")) {
+            this.save(prefix + name, content);
+        }
+
+        // Ids of blobs which don't exist are ignored.
+        this.run(this.store.getDeleteAllRunnable(Arrays.asList(prefix + "a", prefix + "b", prefix + "missing")));
+        Assert.assertFalse(this.stat(prefix + "a").exists());
+        Assert.assertFalse(this.stat(prefix + "b").exists());
+        Assert.assertTrue(this.stat(prefix + "c").exists());
+        Assert.assertEquals(Arrays.asList(prefix + "c"), this.list(prefix));
+        this.assertLoadFails(prefix + "a");
+        Assert.assertArrayEquals(content, this.load(prefix + "c"));
+    }
+
+    @Test
+    public void testPurgeRemovesChunks() throws Exception
+    {
+        final String deleted = this.newBlobId();
+        final String kept = this.newBlobId();
+        final byte[] content = this.content(1000);
+        this.save(deleted, content);
+        this.save(kept, content);
+
+        this.run(this.store.getDeleteAllRunnable(Arrays.asList(deleted)));
+        // The delete only writes a tombstone, the chunks are left for the purger.
+        Assert.assertEquals(1, this.countChunks(deleted));
+
+        this.purge();
+        Assert.assertEquals(0, this.countChunks(deleted));
+        Assert.assertFalse(this.stat(deleted).exists());
+        Assert.assertArrayEquals(content, this.load(kept));
+    }
+
+    @Test
+    public void testSaveAfterDelete() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(1000));
+        this.run(this.store.getDeleteRunnable(blobId));
+
+        // Saved again before the purger ran, the purger must leave the new content alone.
+        final byte[] content = this.content(500);
+        this.save(blobId, content);
+        this.purge();
+        Assert.assertTrue(this.stat(blobId).exists());
+        Assert.assertArrayEquals(content, this.load(blobId));
+    }
+
+    private List<String> list(final String prefix) throws Exception
+    {
+        final List<String> out = new ArrayList<String>();
+        this.run(this.store.getListRunnable(prefix, null, 100, out));
+        return out;
+    }
+
+    private void assertLoadFails(final String blobId) throws Exception
+    {
+        try {
+            this.load(blobId);
+            Assert.fail("Deleted blob [" + blobId + "] was loaded");
+        } catch (TransactionException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.util.Arrays;
+
+import javax.jdo.PersistenceManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Small blobs which are stored in the Blob row rather than in chunks.
+ */
+public class BlobInlineTest extends AbstractBlobStoreTest
+{
+    /** Blobs smaller than this are inline in the test. */
+    private static final int THRESHOLD = 1000;
+
+    @Override
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        configuration.setProperty("store.blob.datanucleus.inlineThreshold", THRESHOLD);
+    }
+
+    @Test
+    public void testSmallBlobIsInline() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(THRESHOLD - 1);
+        this.save(blobId, content);
+
+        Assert.assertArrayEquals(content, this.getInlineContent(blobId));
+        Assert.assertEquals(0, this.countChunks(blobId));
+        Assert.assertArrayEquals(content, this.load(blobId));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 10, 20), this.load(blobId, 10, 10));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 900, content.length), this.load(blobId, 900, 500));
+        Assert.assertEquals(0, this.load(blobId, THRESHOLD, 10).length);
+        Assert.assertEquals(content.length, this.stat(blobId).getLength());
+    }
+
+    @Test
+    public void testBlobAtThresholdIsChunked() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(THRESHOLD);
+        this.save(blobId, content);
+
+        Assert.assertNull(this.getInlineContent(blobId));
+        Assert.assertEquals(1, this.countChunks(blobId));
+        Assert.assertArrayEquals(content, this.load(blobId));
+    }
+
+    @Test
+    public void testSaveSwitchesBetweenInlineAndChunks() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(100));
+
+        final byte[] large = this.content(THRESHOLD * 10);
+        this.save(blobId, large);
+        // Inline content of the previous version must not hide the chunks.
+        Assert.assertNull(this.getInlineContent(blobId));
+        Assert.assertArrayEquals(large, this.load(blobId));
+
+        final byte[] small = this.content(100);
+        this.save(blobId, small);
+        Assert.assertArrayEquals(small, this.getInlineContent(blobId));
+        // Without the collector, the save removes the chunks of the version it replaces.
+        Assert.assertEquals(0, this.countChunks(blobId));
+        Assert.assertArrayEquals(small, this.load(blobId));
+    }
+
+    /**
+     * @param blobId the id of a blob.
+     * @return the inline content of the blob or null if it is stored in chunks.
+     * @throws Exception if the blob could not be read.
+     */
+    private byte[] getInlineContent(final String blobId) throws Exception
+    {
+        final byte[][] out = new byte[1][];
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                out[0] = Blob.getExistingWithContent(this.getContext(), blobId).getInlineContent();
+            }
+        });
+        return out[0];
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BlobLayoutTest
+{
+    @Test
+    public void testChooseChunkSize()
+    {
+        final int max = 8 << 20;
+        Assert.assertEquals(BlobLayout.GROWING_CHUNK_SIZE, BlobLayout.chooseChunkSize(-1, max));
+        Assert.assertEquals(BlobLayout.MIN_CHUNK_SIZE, BlobLayout.chooseChunkSize(0, max));
+        Assert.assertEquals(BlobLayout.MIN_CHUNK_SIZE, BlobLayout.chooseChunkSize(100, max));
+        Assert.assertEquals(1 << 14, BlobLayout.chooseChunkSize(10000, max));
+        Assert.assertEquals(1 << 20, BlobLayout.chooseChunkSize(1 << 20, max));
+        Assert.assertEquals(2 << 20, BlobLayout.chooseChunkSize(100L << 20, max));
+        Assert.assertEquals(max, BlobLayout.chooseChunkSize(4L << 30, max));
+    }
+
+    @Test
+    public void testFixedChunks()
+    {
+        final BlobLayout layout = new BlobLayout(new Blob("test", 0, 1000, 1000));
+        Assert.assertEquals(0, layout.chunkOffset(0));
+        Assert.assertEquals(5000, layout.chunkOffset(5));
+        Assert.assertEquals(0, layout.chunkIndexAt(0));
+        Assert.assertEquals(0, layout.chunkIndexAt(999));
+        Assert.assertEquals(1, layout.chunkIndexAt(1000));
+        Assert.assertEquals(1000, BlobLayout.chunkLength(1000, 1000, 40));
+    }
+
+    @Test
+    public void testGrowingChunks()
+    {
+        // 100, 200, 400, 800, 1000, 1000...
+        final BlobLayout layout = new BlobLayout(new Blob("test", 0, 100, 1000));
+        Assert.assertEquals(800, BlobLayout.chunkLength(100, 1000, 3));
+        Assert.assertEquals(1000, BlobLayout.chunkLength(100, 1000, 4));
+        Assert.assertEquals(0, layout.chunkOffset(0));
+        Assert.assertEquals(300, layout.chunkOffset(2));
+        Assert.assertEquals(1500, layout.chunkOffset(4));
+        Assert.assertEquals(3500, layout.chunkOffset(6));
+        Assert.assertEquals(0, layout.chunkIndexAt(99));
+        Assert.assertEquals(1, layout.chunkIndexAt(100));
+        Assert.assertEquals(3, layout.chunkIndexAt(1499));
+        Assert.assertEquals(4, layout.chunkIndexAt(1500));
+        Assert.assertEquals(6, layout.chunkIndexAt(3500));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, layout.chunkIndexAt(layout.chunkOffset(i)));
+        }
+    }
+}
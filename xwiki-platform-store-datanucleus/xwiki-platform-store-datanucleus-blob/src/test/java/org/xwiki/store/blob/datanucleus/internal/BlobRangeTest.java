@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Loads of a byte range of a blob.
+ */
+public class BlobRangeTest extends AbstractBlobStoreTest
+{
+    @Override
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        // Keep the small blob in chunks too.
+        configuration.setProperty("store.blob.datanucleus.inlineThreshold", 0);
+    }
+
+    @Test
+    public void testRangeAcrossChunks() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        // Saved with an unknown length, the chunks are 64KB, 128KB then 256KB.
+        final byte[] content = this.content(300 << 10);
+        this.save(blobId, content);
+
+        this.assertRange(content, blobId, 0, 10);
+        this.assertRange(content, blobId, (64 << 10) - 5, 10);
+        this.assertRange(content, blobId, 1000, (192 << 10));
+        this.assertRange(content, blobId, content.length - 1, 1);
+    }
+
+    @Test
+    public void testRangePastTheEnd() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(5000);
+        this.save(blobId, content);
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 4000, 5000), this.load(blobId, 4000, 2000));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 4000, 5000), this.load(blobId, 4000, Long.MAX_VALUE));
+        Assert.assertEquals(0, this.load(blobId, 5000, 10).length);
+        Assert.assertEquals(0, this.load(blobId, 10000, 10).length);
+    }
+
+    @Test
+    public void testEmptyRange() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(5000));
+        Assert.assertEquals(0, this.load(blobId, 100, 0).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeOffset() throws Exception
+    {
+        this.store.getLoadRunnable(this.newBlobId(), -1, 10, new ByteArrayOutputStream());
+    }
+
+    private void assertRange(final byte[] content, final String blobId, final int offset, final int length)
+        throws Exception
+    {
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, offset, offset + length),
+                                 this.load(blobId, offset, length));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.store.blob.BlobInfo;
+
+/**
+ * The length and digest which are recorded when a blob is saved.
+ */
+public class BlobStatTest extends AbstractBlobStoreTest
+{
+    @Test
+    public void testStatChunkedBlob() throws Exception
+    {
+        this.assertStat(this.content(300 << 10));
+    }
+
+    @Test
+    public void testStatInlineBlob() throws Exception
+    {
+        this.assertStat(this.content(100));
+    }
+
+    @Test
+    public void testStatEmptyBlob() throws Exception
+    {
+        this.assertStat(new byte[0]);
+    }
+
+    @Test
+    public void testStatMissingBlob() throws Exception
+    {
+        final BlobInfo info = this.stat(this.newBlobId());
+        Assert.assertFalse(info.exists());
+        Assert.assertEquals(BlobInfo.UNKNOWN_LENGTH, info.getLength());
+        Assert.assertNull(info.getDigest());
+    }
+
+    @Test
+    public void testDigestChangesWithContent() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(1000));
+        final String before = this.stat(blobId).getDigest();
+        this.save(blobId, this.content(1000));
+        final BlobInfo after = this.stat(blobId);
+        Assert.assertEquals(1000, after.getLength());
+        Assert.assertFalse(before.equals(after.getDigest()));
+    }
+
+    private void assertStat(final byte[] content) throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, content);
+        final BlobInfo info = this.stat(blobId);
+        Assert.assertTrue(info.exists());
+        Assert.assertEquals(content.length, info.getLength());
+        Assert.assertEquals(sha256(content), info.getDigest());
+    }
+
+    /**
+     * @param content some bytes.
+     * @return the hex encoded SHA-256 digest of the bytes.
+     * @throws Exception if there is no SHA-256 support.
+     */
+    private static String sha256(final byte[] content) throws Exception
+    {
+        final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+        return String.format("%064x", new BigInteger(1, digest));
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.jdo.PersistenceManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.test.XWikiComponentInitializer;
+
+/**
+ * Staged uploads against the embedded Cassandra of the documents module.
+ */
+public class BlobUploadTest
+{
+    private XWikiComponentInitializer initializer;
+
+    private TransactionProvider<PersistenceManager> provider;
+
+    private BlobStore<PersistenceManager> store;
+
+    private final Random random = new Random();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.initializer = new XWikiComponentInitializer();
+        this.initializer.initializeConfigurationSource();
+        // Uploads require the collector, it does not get to run during the test.
+        this.initializer.getConfigurationSource().setProperty("store.blob.datanucleus.collector.interval", 3600L);
+        this.initializer.initializeExecution();
+        this.provider = this.initializer.getComponentManager().getInstance(
+            new DefaultParameterizedType(null, TransactionProvider.class, PersistenceManager.class), "datanucleus");
+        this.store = this.initializer.getComponentManager().getInstance(
+            new DefaultParameterizedType(null, BlobStore.class, PersistenceManager.class), "datanucleus");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.initializer.shutdown();
+    }
+
+    @Test
+    public void testUploadInParts() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] first = this.content(BlobUpload.CHUNK_SIZE);
+        final byte[] second = this.content(1000);
+        final String uploadId = this.start(blobId);
+        // Parts may arrive in any order.
+        this.uploadPart(uploadId, 1, second);
+        this.uploadPart(uploadId, 0, first);
+        Assert.assertEquals(Arrays.asList(0, 1), this.listParts(uploadId));
+
+        this.run(this.store.getCompleteUploadRunnable(uploadId, 2));
+        final byte[] expected = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        Assert.assertArrayEquals(expected, this.load(blobId));
+    }
+
+    @Test
+    public void testPartUploadedAgainIsReplaced() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] replacement = this.content(500);
+        final String uploadId = this.start(blobId);
+        this.uploadPart(uploadId, 0, this.content(700));
+        this.uploadPart(uploadId, 0, replacement);
+        Assert.assertEquals(Arrays.asList(0), this.listParts(uploadId));
+
+        this.run(this.store.getCompleteUploadRunnable(uploadId, 1));
+        Assert.assertArrayEquals(replacement, this.load(blobId));
+    }
+
+    @Test
+    public void testCompleteRejectsMissingPart() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] original = this.content(100);
+        this.run(this.store.getSaveRunnable(blobId, new ByteArrayInputStream(original), original.length));
+
+        final String uploadId = this.start(blobId);
+        this.uploadPart(uploadId, 0, this.content(BlobUpload.CHUNK_SIZE));
+        this.uploadPart(uploadId, 2, this.content(100));
+        this.assertCompleteFails(uploadId, 3);
+        // Not the parts the client believes it sent either.
+        this.assertCompleteFails(uploadId, 2);
+
+        // The blob is left as it was and the upload can still be finished.
+        Assert.assertArrayEquals(original, this.load(blobId));
+        Assert.assertEquals(Arrays.asList(0, 2), this.listParts(uploadId));
+    }
+
+    @Test
+    public void testCompleteRejectsWrongPartCount() throws Exception
+    {
+        final String uploadId = this.start(this.newBlobId());
+        this.uploadPart(uploadId, 0, this.content(BlobUpload.CHUNK_SIZE));
+        this.uploadPart(uploadId, 1, this.content(10));
+        this.assertCompleteFails(uploadId, 3);
+        this.assertCompleteFails(uploadId, 1);
+    }
+
+    @Test
+    public void testAbort() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] original = this.content(100);
+        this.run(this.store.getSaveRunnable(blobId, new ByteArrayInputStream(original), original.length));
+
+        final String uploadId = this.start(blobId);
+        this.uploadPart(uploadId, 0, this.content(200));
+        this.run(this.store.getAbortUploadRunnable(uploadId));
+
+        Assert.assertEquals(new ArrayList<Integer>(), this.listParts(uploadId));
+        Assert.assertArrayEquals(original, this.load(blobId));
+        try {
+            this.uploadPart(uploadId, 1, this.content(10));
+            Assert.fail("A part was added to an aborted upload");
+        } catch (TransactionException e) {
+            // Expected.
+        }
+    }
+
+    private void assertCompleteFails(final String uploadId, final int partCount) throws Exception
+    {
+        try {
+            this.run(this.store.getCompleteUploadRunnable(uploadId, partCount));
+            Assert.fail("Upload [" + uploadId + "] was completed with [" + partCount + "] parts");
+        } catch (TransactionException e) {
+            // Expected.
+        }
+    }
+
+    private String newBlobId()
+    {
+        return "BlobUploadTest-" + this.random.nextLong();
+    }
+
+    private byte[] content(final int length)
+    {
+        final byte[] content = new byte[length];
+        this.random.nextBytes(content);
+        return content;
+    }
+
+    private String start(final String blobId) throws Exception
+    {
+        final List<String> uploadId = new ArrayList<String>();
+        this.run(this.store.getStartUploadRunnable(blobId, uploadId));
+        Assert.assertEquals(1, uploadId.size());
+        return uploadId.get(0);
+    }
+
+    private void uploadPart(final String uploadId, final int partNumber, final byte[] content) throws Exception
+    {
+        this.run(this.store.getUploadPartRunnable(uploadId, partNumber, new ByteArrayInputStream(content)));
+    }
+
+    private List<Integer> listParts(final String uploadId) throws Exception
+    {
+        final List<Integer> parts = new ArrayList<Integer>();
+        this.run(this.store.getListUploadPartsRunnable(uploadId, parts));
+        return parts;
+    }
+
+    private byte[] load(final String blobId) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.run(this.store.getLoadRunnable(blobId, out));
+        return out.toByteArray();
+    }
+
+    private void run(final TransactionRunnable<PersistenceManager> runnable) throws Exception
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        runnable.runIn(transaction);
+        transaction.start();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import javax.jdo.PersistenceManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Removal of the chunks of superseded and abandoned blob versions by the collector.
+ */
+public class BlobVersionCollectorTest extends AbstractBlobStoreTest
+{
+    @Override
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        // The collector never runs by itself during the test.
+        configuration.setProperty("store.blob.datanucleus.collector.interval", 3600L);
+        configuration.setProperty("store.blob.datanucleus.collector.gracePeriod", 0L);
+        configuration.setProperty("store.blob.datanucleus.collector.pause", 0L);
+        configuration.setProperty("store.blob.datanucleus.inlineThreshold", 0);
+    }
+
+    @Test
+    public void testSupersededVersionIsCollected() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(1000));
+        final byte[] content = this.content(1000);
+        this.save(blobId, content);
+        // The save leaves the chunks of the replaced version for the collector.
+        Assert.assertEquals(2, this.countChunks(blobId));
+
+        Thread.sleep(10);
+        this.collect();
+        Assert.assertEquals(1, this.countChunks(blobId));
+        Assert.assertArrayEquals(content, this.load(blobId));
+    }
+
+    @Test
+    public void testSupersededVersionIsKeptForTheGracePeriod() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(1000));
+        final byte[] content = this.content(1000);
+        this.save(blobId, content);
+
+        final MockConfigurationSource configuration = new MockConfigurationSource();
+        configuration.setProperty("store.blob.datanucleus.collector.interval", 3600L);
+        configuration.setProperty("store.blob.datanucleus.collector.pause", 0L);
+        new BlobVersionCollector(this.provider, new BlobStoreSettings(configuration)).run();
+        Assert.assertEquals(2, this.countChunks(blobId));
+
+        // The version is still recorded, a collector without the grace period removes it.
+        Thread.sleep(10);
+        this.collect();
+        Assert.assertEquals(1, this.countChunks(blobId));
+        Assert.assertArrayEquals(content, this.load(blobId));
+    }
+
+    @Test
+    public void testAbandonedVersionIsCollectedAfterTheUploadExpiry() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(1000);
+        this.save(blobId, content);
+        // A save which wrote a chunk of a version above the active one and never completed.
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                final PersistenceManager pm = this.getContext();
+                final long version = Blob.getExisting(pm, blobId).getActiveVersion() + 1;
+                UncollectedBlobVersion.record(pm, blobId, version);
+                final BlobChunk chunk = new BlobChunk(blobId, version, 0);
+                chunk.setContent(new byte[] { 1, 2, 3 });
+                pm.makePersistent(chunk);
+            }
+        });
+
+        // The save may still be in progress until the upload expiry.
+        Thread.sleep(10);
+        this.collect();
+        Assert.assertEquals(2, this.countChunks(blobId));
+
+        final MockConfigurationSource configuration = new MockConfigurationSource();
+        configuration.setProperty("store.blob.datanucleus.collector.interval", 3600L);
+        configuration.setProperty("store.blob.datanucleus.collector.pause", 0L);
+        configuration.setProperty("store.blob.datanucleus.collector.uploadExpiry", 0L);
+        new BlobVersionCollector(this.provider, new BlobStoreSettings(configuration)).run();
+        Assert.assertEquals(1, this.countChunks(blobId));
+        Assert.assertArrayEquals(content, this.load(blobId));
+    }
+}
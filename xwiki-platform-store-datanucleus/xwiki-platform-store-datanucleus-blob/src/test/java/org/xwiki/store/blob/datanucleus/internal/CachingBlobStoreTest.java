@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.blob.datanucleus.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+import javax.jdo.PersistenceManager;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.environment.Environment;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * Loads through the local disk cache of {@link CachingBlobStore}.
+ */
+public class CachingBlobStoreTest extends AbstractBlobStoreTest
+{
+    /** The largest blob which is cached in the test. */
+    private static final int MAX_ENTRY_SIZE = 2000;
+
+    private File temporaryDirectory;
+
+    private BlobStore<PersistenceManager> cachingStore;
+
+    @Override
+    protected void configure(final MockConfigurationSource configuration)
+    {
+        configuration.setProperty("store.blob.datanucleus.cache.maxEntrySize", (long) MAX_ENTRY_SIZE);
+        configuration.setProperty("store.blob.datanucleus.inlineThreshold", 0);
+    }
+
+    @Before
+    public void setUpCache() throws Exception
+    {
+        this.temporaryDirectory = File.createTempFile("CachingBlobStoreTest", "");
+        FileUtils.forceDelete(this.temporaryDirectory);
+        FileUtils.forceMkdir(this.temporaryDirectory);
+        final DefaultComponentDescriptor<Environment> descriptor = new DefaultComponentDescriptor<Environment>();
+        descriptor.setRoleType(Environment.class);
+        this.initializer.getComponentManager().registerComponent(descriptor, new Environment()
+        {
+            @Override
+            public File getTemporaryDirectory()
+            {
+                return CachingBlobStoreTest.this.temporaryDirectory;
+            }
+
+            @Override
+            public File getPermanentDirectory()
+            {
+                return CachingBlobStoreTest.this.temporaryDirectory;
+            }
+
+            @Override
+            public URL getResource(final String resourceName)
+            {
+                return null;
+            }
+
+            @Override
+            public InputStream getResourceAsStream(final String resourceName)
+            {
+                return null;
+            }
+        });
+        this.cachingStore = this.initializer.getComponentManager().getInstance(
+            new DefaultParameterizedType(null, BlobStore.class, PersistenceManager.class), "datanucleus-cached");
+    }
+
+    @After
+    public void tearDownCache() throws Exception
+    {
+        FileUtils.deleteDirectory(this.temporaryDirectory);
+    }
+
+    @Test
+    public void testLoadIsServedFromTheCache() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(1000);
+        this.save(blobId, content);
+        Assert.assertArrayEquals(content, this.loadCached(blobId, 0, Long.MAX_VALUE));
+
+        // Only the cached copy is left.
+        this.deleteChunks(blobId);
+        Assert.assertArrayEquals(content, this.loadCached(blobId, 0, Long.MAX_VALUE));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 100, 300), this.loadCached(blobId, 100, 200));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 900, 1000), this.loadCached(blobId, 900, 500));
+    }
+
+    @Test
+    public void testSaveMakesTheCachedCopyUnreachable() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        this.save(blobId, this.content(1000));
+        this.loadCached(blobId, 0, Long.MAX_VALUE);
+
+        final byte[] content = this.content(1500);
+        this.save(blobId, content);
+        Assert.assertArrayEquals(content, this.loadCached(blobId, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testLargeBlobIsNotCached() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(MAX_ENTRY_SIZE + 1);
+        this.save(blobId, content);
+        Assert.assertArrayEquals(content, this.loadCached(blobId, 0, Long.MAX_VALUE));
+
+        this.deleteChunks(blobId);
+        Assert.assertEquals(0, this.loadCached(blobId, 0, Long.MAX_VALUE).length);
+    }
+
+    @Test
+    public void testRangeLoadIsNotCached() throws Exception
+    {
+        final String blobId = this.newBlobId();
+        final byte[] content = this.content(1000);
+        this.save(blobId, content);
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 0, 10), this.loadCached(blobId, 0, 10));
+
+        this.deleteChunks(blobId);
+        Assert.assertEquals(0, this.loadCached(blobId, 0, Long.MAX_VALUE).length);
+    }
+
+    private byte[] loadCached(final String blobId, final long offset, final long length) throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.run(this.cachingStore.getLoadRunnable(blobId, offset, length, out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Remove the chunks of a blob behind the back of the store, loads which are not served from the cache
+     * then find no content.
+     *
+     * @param blobId the id of the blob.
+     * @throws Exception if the chunks could not be removed.
+     */
+    private void deleteChunks(final String blobId) throws Exception
+    {
+        this.run(new TransactionRunnable<PersistenceManager>()
+        {
+            @Override
+            protected void onRun()
+            {
+                this.getContext().newQuery(BlobChunk.class, "WHERE blobId == ?")
+                    .deletePersistentAll(new Object[] { blobId });
+            }
+        });
+        Assert.assertEquals(0, this.countChunks(blobId));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.legacy.internal.datanucleus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import javax.jdo.PersistenceManager;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.UnexpectedException;
+import org.xwiki.store.attachments.newstore.internal.AttachmentContentStore;
+
+/**
+ * Fetches the content of the attachments of one loaded document when it is first read.
+ * When one attachment is read, the other small attachments of the document which have not been read
+ * are fetched in the same transaction, pages tend to show their small attachments together.
+ * Nothing is fetched for attachments which are never read.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class AttachmentContentBatch
+{
+    /** Attachments larger than this are only fetched when they are read themselves. */
+    private static final int SMALL_ATTACHMENT_SIZE = 64 << 10;
+
+    /** The most bytes of other attachments which are fetched along with the one being read. */
+    private static final int BATCH_SIZE = 1 << 20;
+
+    /** The store to load content from. */
+    private final AttachmentContentStore<PersistenceManager> contentStore;
+
+    /** The provider of the transaction to load in. */
+    private final TransactionProvider<PersistenceManager> provider;
+
+    /** The contents which have not yet been fetched, guarded by this. */
+    private final List<LazyAttachmentContent> pending = new ArrayList<LazyAttachmentContent>();
+
+    /** The contents which are being fetched, guarded by this. */
+    private final Set<LazyAttachmentContent> fetching =
+        Collections.newSetFromMap(new IdentityHashMap<LazyAttachmentContent, Boolean>());
+
+    /**
+     * The Constructor.
+     *
+     * @param contentStore the store to load content from.
+     * @param provider the provider of the transaction to load in.
+     */
+    AttachmentContentBatch(final AttachmentContentStore<PersistenceManager> contentStore,
+                           final TransactionProvider<PersistenceManager> provider)
+    {
+        this.contentStore = contentStore;
+        this.provider = provider;
+    }
+
+    /**
+     * Give an attachment content which is fetched when first read.
+     *
+     * @param attach an attachment of the document, it's content is replaced.
+     */
+    synchronized void add(final XWikiAttachment attach)
+    {
+        final LazyAttachmentContent content = new LazyAttachmentContent(attach, this);
+        attach.setAttachment_content(content);
+        this.pending.add(content);
+    }
+
+    /**
+     * Fetch a content, along with other small contents of the document, unless it is already loaded.
+     * The contents to fetch are picked under the lock of the batch and fetched outside of it, a thread
+     * which reads a content which another thread is fetching waits for that fetch.
+     *
+     * @param content the content which is being read.
+     */
+    void load(final LazyAttachmentContent content)
+    {
+        final List<LazyAttachmentContent> toLoad = this.pick(content);
+        if (toLoad == null) {
+            return;
+        }
+
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        for (final LazyAttachmentContent lazy : toLoad) {
+            this.contentStore.getAttachmentContentLoadRunnable(lazy.getAttachment()).runIn(transaction);
+        }
+        boolean fetched = false;
+        try {
+            transaction.start();
+            for (final LazyAttachmentContent lazy : toLoad) {
+                // The content is as stored, it does not need saving again.
+                // Setting the content marked it loaded, this also covers a fetch which set nothing.
+                lazy.markLoaded();
+                lazy.getAttachment().getAttachment_content().setContentDirty(false);
+            }
+            fetched = true;
+        } catch (TransactionException e) {
+            throw new UnexpectedException("Failed to load the content of attachment ["
+                                          + content.getAttachment().getFilename() + "]", e);
+        } finally {
+            this.done(toLoad, !fetched);
+        }
+    }
+
+    /**
+     * Pick the contents to fetch along with a content which is being read.
+     *
+     * @param content the content which is being read.
+     * @return the contents to fetch or null if the content was loaded, by this thread or another.
+     */
+    private synchronized List<LazyAttachmentContent> pick(final LazyAttachmentContent content)
+    {
+        while (!content.isLoaded()) {
+            if (!this.fetching.contains(content)) {
+                final List<LazyAttachmentContent> toLoad = new ArrayList<LazyAttachmentContent>();
+                toLoad.add(content);
+                this.pending.remove(content);
+                long batched = 0;
+                for (final Iterator<LazyAttachmentContent> it = this.pending.iterator(); it.hasNext();) {
+                    final LazyAttachmentContent other = it.next();
+                    final int size = other.getAttachment().getFilesize();
+                    if (other.isLoaded()) {
+                        it.remove();
+                    } else if (size <= SMALL_ATTACHMENT_SIZE && batched + size <= BATCH_SIZE) {
+                        toLoad.add(other);
+                        batched += size;
+                        it.remove();
+                    }
+                }
+                this.fetching.addAll(toLoad);
+                return toLoad;
+            }
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnexpectedException("Interrupted while waiting for the content of attachment ["
+                                              + content.getAttachment().getFilename() + "]", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finish a fetch and wake the threads which wait for it.
+     *
+     * @param fetched the contents which were fetched.
+     * @param failed true if the fetch failed, the contents which were not loaded are then put back so that
+     *        they can be tried again, including the content being read so that it is batched again if
+     *        another attachment is read first.
+     */
+    private synchronized void done(final List<LazyAttachmentContent> fetched, final boolean failed)
+    {
+        this.fetching.removeAll(fetched);
+        if (failed) {
+            for (final LazyAttachmentContent lazy : fetched) {
+                if (!lazy.isLoaded()) {
+                    this.pending.add(lazy);
+                }
+            }
+        }
+        this.notifyAll();
+    }
+}
@@ -22,6 +22,13 @@ package org.xwiki.store.legacy.internal.datanucleus;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
@@ -29,10 +36,20 @@ import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.store.attachments.datanucleus.internal.DigestingAttachmentContent;
+import org.xwiki.store.attachments.datanucleus.internal.StagingAttachmentContentStore;
 import org.xwiki.store.attachments.newstore.internal.AttachmentContentStore;
+import org.xwiki.store.attachments.newstore.internal.AttachmentStore;
 import org.xwiki.store.datanucleus.internal.DataNucleusPersistableObjectStore;
 import org.xwiki.store.legacy.internal.XWikiDocumentStore;
 import org.xwiki.store.objects.PersistableClass;
@@ -45,19 +62,76 @@ import org.xwiki.store.UnexpectedException;
 
 @Component
 @Named("datanucleus")
-public class DataNucleusXWikiDocumentStore implements XWikiDocumentStore
+public class DataNucleusXWikiDocumentStore implements XWikiDocumentStore, Initializable, Disposable
 {
+    /**
+     * The hint of the store to keep attachment content in, it must take part in DataNucleus transactions.
+     * "tiered" places each attachment in the blob store or on the filesystem depending on it's size.
+     */
+    private static final String ATTACHMENT_CONTENT_STORE_PROPERTY = "store.datanucleus.attachments.contentStore";
+
+    /**
+     * The number of attachment contents which one document save writes at once, when the content store
+     * can write content before the transaction which makes it visible. 1 writes them one after another.
+     */
+    private static final String ATTACHMENT_SAVE_THREADS_PROPERTY = "store.datanucleus.attachments.saveThreads";
+
     private final DataNucleusPersistableObjectStore objStore =
         new DataNucleusPersistableObjectStore();
 
+    /** The source of the configuration for the store. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
     @Inject
     @Named("datanucleus")
     private TransactionProvider<PersistenceManager> provider;
 
+    /** Used to look up the configured attachment content store. */
     @Inject
-    @Named("datanucleus")
+    private ComponentManager componentManager;
+
     private AttachmentContentStore attachContentStore;
 
+    /** The executor which stages attachment contents, null if they are written one after another. */
+    private ExecutorService stagingExecutor;
+
+    @Inject
+    @Named("datanucleus")
+    private AttachmentStore attachStore;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        final String hint = this.configuration.getProperty(ATTACHMENT_CONTENT_STORE_PROPERTY, "datanucleus");
+        try {
+            this.attachContentStore = this.componentManager.getInstance(AttachmentContentStore.class, hint);
+        } catch (ComponentLookupException e) {
+            throw new InitializationException("No attachment content store [" + hint + "]", e);
+        }
+        final int threads = this.configuration.getProperty(ATTACHMENT_SAVE_THREADS_PROPERTY, 8);
+        if (threads > 1 && this.attachContentStore instanceof StagingAttachmentContentStore) {
+            this.stagingExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "DataNucleusXWikiDocumentStore attachment staging");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.stagingExecutor != null) {
+            this.stagingExecutor.shutdownNow();
+        }
+    }
+
     public void saveXWikiDoc(final XWikiDocument doc, final XWikiContext context)
         throws XWikiException
     {
@@ -65,12 +139,9 @@ public class DataNucleusXWikiDocumentStore implements XWikiDocumentStore
 
         final PersistableXWikiDocument pxd = new PersistableXWikiDocument(doc);
 
-        final TransactionRunnable<PersistenceManager> storeRunnable =
-            this.objStore.getStoreTransactionRunnable(key, pxd);
-
-        // Conversion from XWikiDocument to PersistableXWikiDocument must be done
-        // after the thread context ClassLoader has been switched.
-        (new TransactionRunnable<PersistenceManager>() {
+        final TransactionRunnable<PersistenceManager> storeRunnable = new TransactionRunnable<PersistenceManager>() {
+            // Conversion from XWikiDocument to PersistableXWikiDocument must be done
+            // after the thread context ClassLoader has been switched.
             @Override
             protected void onPreRun()
             {
@@ -80,32 +151,193 @@ public class DataNucleusXWikiDocumentStore implements XWikiDocumentStore
             @Override
             protected void onRun()
             {
+                final PersistenceManager pm = this.getContext();
                 final PersistableClass dpc = pxd.getDefinedPersistableClass();
                 if (dpc != null) {
-                    this.getContext().makePersistent(dpc);
+                    pm.makePersistent(dpc);
+                }
+                PersistableXWikiDocument stored = null;
+                try {
+                    stored = pm.getObjectById(PersistableXWikiDocument.class, key);
+                } catch (JDOObjectNotFoundException e) {
+                    // A new document.
+                }
+                if (stored == null) {
+                    DataNucleusXWikiDocumentStore.this.objStore.store(pm, key, pxd);
+                } else {
+                    // New objects and attachments get their ids before they are added to the stored
+                    // document, then only what differs from the stored document is written.
+                    final DataNucleusPersistableObjectStore objStore = DataNucleusXWikiDocumentStore.this.objStore;
+                    final Set<PersistableClass> classes = objStore.setIds(key, pxd);
+                    pxd.mergeInto(stored, objStore);
+                    objStore.store(pm, stored, classes);
                 }
             }
-        }).runIn(storeRunnable);
+        };
 
         final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
         storeRunnable.runIn(transaction);
 
+        // The dirty attachment contents are written at the same time, where they are not visible, then
+        // made visible in the document's transaction so the document never refers to content which failed
+        // to save. Content which was not staged is written in the document's transaction.
+        final List<DigestingAttachmentContent> dirty = new ArrayList<DigestingAttachmentContent>();
         for (final XWikiAttachment attach : doc.getAttachmentList()) {
             if (attach.isContentDirty()) {
-                this.attachContentStore
-                    .getAttachmentContentSaveRunnable(attach.getAttachment_content())
-                        .runIn(transaction);
+                dirty.add(DigestingAttachmentContent.of(attach.getAttachment_content()));
+            }
+        }
+        final List<String> stageIds = this.stageAttachmentContents(doc, dirty);
+        for (int i = 0; i < dirty.size(); i++) {
+            if (stageIds.get(i) == null) {
+                this.attachContentStore.getAttachmentContentSaveRunnable(dirty.get(i)).runIn(transaction);
+            } else {
+                ((StagingAttachmentContentStore) this.attachContentStore)
+                    .getAttachmentContentPublishRunnable(dirty.get(i), stageIds.get(i)).runIn(transaction);
+            }
+        }
+
+        // Attachment metadata is also kept apart from the document so it can be listed on it's own.
+        // Only the rows of attachments which are new or changed are written.
+        final List<XWikiAttachment> changed = changedAttachments(doc);
+        if (!changed.isEmpty()) {
+            this.attachStore.getAttachmentSaveRunnable(changed).runIn(transaction);
+        }
+        final List<XWikiAttachment> removed = removedAttachments(doc);
+        if (!removed.isEmpty()) {
+            this.attachStore.getAttachmentDeleteRunnable(removed).runIn(transaction);
+            for (final XWikiAttachment attach : removed) {
+                this.attachContentStore.getAttachmentContentDeleteRunnable(attach).runIn(transaction);
             }
         }
 
         try {
             transaction.start();
         } catch (TransactionException e) {
+            this.unstage(stageIds);
             throw new UnexpectedException("Failed to store XWikiDocument [" + doc + "] with Transaction ["
                                           + transaction + "]", e);
         }
     }
 
+    /**
+     * Stage the dirty attachment contents of a document, each in transactions of it's own so that they are
+     * written at the same time. Returns when all are written.
+     *
+     * @param doc the document which is being saved.
+     * @param dirty the contents to stage.
+     * @return the id of each staged content, in the same order, null for the contents which were not staged.
+     */
+    private List<String> stageAttachmentContents(final XWikiDocument doc,
+                                                 final List<DigestingAttachmentContent> dirty)
+    {
+        final List<String> out = new ArrayList<String>(dirty.size());
+        if (this.stagingExecutor == null || dirty.size() < 2) {
+            for (int i = 0; i < dirty.size(); i++) {
+                out.add(null);
+            }
+            return out;
+        }
+        final StagingAttachmentContentStore store = (StagingAttachmentContentStore) this.attachContentStore;
+        final List<Future<String>> stages = new ArrayList<Future<String>>(dirty.size());
+        for (final DigestingAttachmentContent content : dirty) {
+            stages.add(this.stagingExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws TransactionException
+                {
+                    return store.stageAttachmentContent(content);
+                }
+            }));
+        }
+
+        Throwable failure = null;
+        for (final Future<String> stage : stages) {
+            try {
+                out.add(stage.get());
+            } catch (ExecutionException e) {
+                // Keep waiting so that nothing is still being staged when this returns.
+                failure = (failure == null) ? e.getCause() : failure;
+                out.add(null);
+            } catch (InterruptedException e) {
+                failure = (failure == null) ? e : failure;
+                Thread.currentThread().interrupt();
+                for (final Future<String> toCancel : stages) {
+                    toCancel.cancel(true);
+                }
+                out.add(null);
+            }
+        }
+        if (failure != null) {
+            this.unstage(out);
+            throw new UnexpectedException("Failed to store the attachments of XWikiDocument [" + doc + "]", failure);
+        }
+        return out;
+    }
+
+    /**
+     * Remove staged contents which will not be made visible.
+     * This is only tidying up, the store removes abandoned staged content in any case.
+     *
+     * @param stageIds the ids of the staged contents, null for contents which were not staged.
+     */
+    private void unstage(final List<String> stageIds)
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        boolean any = false;
+        for (final String stageId : stageIds) {
+            if (stageId != null) {
+                ((StagingAttachmentContentStore) this.attachContentStore)
+                    .getAttachmentContentUnstageRunnable(stageId).runIn(transaction);
+                any = true;
+            }
+        }
+        if (any) {
+            try {
+                transaction.start();
+            } catch (TransactionException e) {
+                // Left for the store to remove.
+            }
+        }
+    }
+
+    /**
+     * @param doc a document which is being saved.
+     * @return the attachments which the document did not have when it was loaded or whose metadata
+     *         or content changed since.
+     */
+    private static List<XWikiAttachment> changedAttachments(final XWikiDocument doc)
+    {
+        final List<XWikiAttachment> out = new ArrayList<XWikiAttachment>();
+        final XWikiDocument original = doc.getOriginalDocument();
+        for (final XWikiAttachment attach : doc.getAttachmentList()) {
+            if (attach.isMetaDataDirty() || attach.isContentDirty()
+                || original == null || original.getAttachment(attach.getFilename()) == null)
+            {
+                out.add(attach);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param doc a document which is being saved.
+     * @return the attachments which the document had when it was loaded and has no longer.
+     */
+    private static List<XWikiAttachment> removedAttachments(final XWikiDocument doc)
+    {
+        final List<XWikiAttachment> out = new ArrayList<XWikiAttachment>();
+        final XWikiDocument original = doc.getOriginalDocument();
+        if (original == null) {
+            return out;
+        }
+        for (final XWikiAttachment attach : original.getAttachmentList()) {
+            if (doc.getAttachment(attach.getFilename()) == null) {
+                out.add(attach);
+            }
+        }
+        return out;
+    }
+
     public void saveXWikiDoc(final XWikiDocument doc,
                              final XWikiContext context,
                              final boolean ignored)
@@ -132,7 +364,19 @@ public class DataNucleusXWikiDocumentStore implements XWikiDocumentStore
             throw new RuntimeException("Failed to load document " + Arrays.asList(key), e);
         }
 
-        return (out.size() == 0) ? doc : ((PersistableXWikiDocument) out.get(0)).toXWikiDocument(doc);
+        if (out.size() == 0) {
+            return doc;
+        }
+        final XWikiDocument loaded = ((PersistableXWikiDocument) out.get(0)).toXWikiDocument(doc);
+
+        // Attachment content is fetched when it is first read, listing attachments fetches nothing.
+        final AttachmentContentBatch batch = new AttachmentContentBatch(this.attachContentStore, this.provider);
+        for (final XWikiAttachment attach : loaded.getAttachmentList()) {
+            batch.add(attach);
+            // The attachment is as stored, it is only saved again if it is changed.
+            attach.setMetaDataDirty(false);
+        }
+        return loaded;
     }
 
     public boolean exists(final XWikiDocument doc, final XWikiContext unused) throws XWikiException
@@ -140,9 +384,48 @@ public class DataNucleusXWikiDocumentStore implements XWikiDocumentStore
         return !this.loadXWikiDoc(doc, null).isNew();
     }
 
+    /**
+     * Delete a document along with it's objects, the metadata of it's attachments and their content.
+     *
+     * @param doc the document to delete.
+     * @param context the XWikiContext, unused.
+     * @throws XWikiException never.
+     */
     public void deleteXWikiDoc(final XWikiDocument doc, final XWikiContext context)
         throws XWikiException
     {
-        throw new RuntimeException("not implemented");
+        final String key = PersistableXWikiDocument.keyGen(doc);
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+
+        (new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                final PersistenceManager pm = this.getContext();
+                try {
+                    // The objects and attachments of the document are dependent and go with it.
+                    pm.deletePersistent(pm.getObjectById(PersistableXWikiDocument.class, key));
+                } catch (JDOObjectNotFoundException e) {
+                    // Can't delete what isn't there.
+                }
+            }
+        }).runIn(transaction);
+
+        // Attachments removed since the document was loaded may not have been saved as removed.
+        final List<XWikiAttachment> attachments = new ArrayList<XWikiAttachment>(doc.getAttachmentList());
+        attachments.addAll(removedAttachments(doc));
+        if (!attachments.isEmpty()) {
+            this.attachStore.getAttachmentDeleteRunnable(attachments).runIn(transaction);
+            for (final XWikiAttachment attach : attachments) {
+                this.attachContentStore.getAttachmentContentDeleteRunnable(attach).runIn(transaction);
+            }
+        }
+
+        try {
+            transaction.start();
+        } catch (TransactionException e) {
+            throw new UnexpectedException("Failed to delete XWikiDocument [" + doc + "] with Transaction ["
+                                          + transaction + "]", e);
+        }
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.legacy.internal.datanucleus;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+
+/**
+ * The content of a loaded attachment which is only fetched from the store when it is first read.
+ * The size is known from the metadata so asking for it does not fetch the content.
+ * Setting new content replaces the content which would have been fetched, the content only counts
+ * as loaded once it has been set without error so a failed fetch is tried again.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class LazyAttachmentContent extends XWikiAttachmentContent
+{
+    /** The loader of the contents of the attachments of the same document. */
+    private final AttachmentContentBatch batch;
+
+    /** True once the content has been fetched or set, read without taking the lock of the batch. */
+    private volatile boolean loaded;
+
+    LazyAttachmentContent(final XWikiAttachment attachment, final AttachmentContentBatch batch)
+    {
+        super(attachment);
+        this.batch = batch;
+    }
+
+    @Override
+    public byte[] getContent()
+    {
+        this.batch.load(this);
+        return super.getContent();
+    }
+
+    @Override
+    public InputStream getContentInputStream()
+    {
+        this.batch.load(this);
+        return super.getContentInputStream();
+    }
+
+    @Override
+    public int getSize()
+    {
+        if (!this.isLoaded()) {
+            return this.getAttachment().getFilesize();
+        }
+        return super.getSize();
+    }
+
+    @Override
+    public void setContent(final byte[] content)
+    {
+        super.setContent(content);
+        this.markLoaded();
+    }
+
+    @Override
+    public void setContent(final InputStream is, final int len) throws IOException
+    {
+        super.setContent(is, len);
+        this.markLoaded();
+    }
+
+    @Override
+    public void setContent(final InputStream is) throws IOException
+    {
+        super.setContent(is);
+        this.markLoaded();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Cloning a document clones it's attachments, a content which has not been fetched is not fetched
+     * for that, the copy fetches it when it is read. It is not batched with the other attachments.
+     */
+    @Override
+    public XWikiAttachmentContent clone()
+    {
+        if (this.isLoaded()) {
+            return (XWikiAttachmentContent) super.clone();
+        }
+        // The caller attaches the copy to the copy of the attachment, which the content is then set on.
+        return new LazyAttachmentContent(this.getAttachment(), this.batch);
+    }
+
+    /** @return true once the content has been fetched or set. */
+    boolean isLoaded()
+    {
+        return this.loaded;
+    }
+
+    /** Record that the content no longer needs to be fetched. */
+    void markLoaded()
+    {
+        this.loaded = true;
+    }
+}
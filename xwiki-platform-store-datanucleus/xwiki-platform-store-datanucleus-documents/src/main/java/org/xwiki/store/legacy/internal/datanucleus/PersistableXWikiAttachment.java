@@ -55,6 +55,30 @@ public class PersistableXWikiAttachment extends PersistableObject
         this.comment = attach.getComment();
     }
 
+    /**
+     * Copy this attachment onto the persistent attachment it replaces, assigning only what changed.
+     *
+     * @param stored the attachment as it is in the store.
+     */
+    void mergeInto(final PersistableXWikiAttachment stored)
+    {
+        if (stored.fileSize != this.fileSize) {
+            stored.fileSize = this.fileSize;
+        }
+        if (PersistableXWikiDocument.changed(stored.date, this.date)) {
+            stored.date = this.date;
+        }
+        if (PersistableXWikiDocument.changed(stored.author, this.author)) {
+            stored.author = this.author;
+        }
+        if (PersistableXWikiDocument.changed(stored.version, this.version)) {
+            stored.version = this.version;
+        }
+        if (PersistableXWikiDocument.changed(stored.comment, this.comment)) {
+            stored.comment = this.comment;
+        }
+    }
+
     public XWikiAttachment toXWikiAttachment(final XWikiDocument containingDocument)
     {
         final XWikiAttachment out = new XWikiAttachment(containingDocument, this.fileName);
@@ -63,6 +87,8 @@ public class PersistableXWikiAttachment extends PersistableObject
         out.setAuthor(this.author);
         out.setVersion(this.version);
         out.setComment(this.comment);
+        // The attachment is as stored, setting it's fields marked it changed.
+        out.setMetaDataDirty(false);
         return out;
     }
 }
@@ -20,8 +20,13 @@
 package org.xwiki.store.legacy.internal.datanucleus;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,6 +52,7 @@ import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.PrimaryKey;
 import org.xwiki.model.EntityType;
+import org.xwiki.store.datanucleus.internal.DataNucleusPersistableObjectStore;
 import org.xwiki.store.datanucleus.internal.JavaClassNameDocumentReferenceSerializer;
 import org.xwiki.store.objects.PersistableObject;
 import org.xwiki.store.objects.PersistableClass;
@@ -133,6 +139,13 @@ class PersistableXWikiDocument extends PersistableObject
     @Index
     private List<AbstractXObject> objects;
 
+    /**
+     * The number of each of the objects, in the same order.
+     * This is set by {@link #convertObjects()}, objects are matched by class and number when they are merged.
+     */
+    @NotPersistent
+    private List<Integer> objectNumbers;
+
     @Persistent(defaultFetchGroup="true")
     @Element(dependent="true")
     private Map<String, PersistableXWikiAttachment> attachments;
@@ -214,7 +227,8 @@ class PersistableXWikiDocument extends PersistableObject
             }
         }
 
-        this.objects = (List) xObjectsToObjects(this.original.getXObjects(), pcl);
+        this.objectNumbers = new ArrayList<Integer>();
+        this.objects = (List) xObjectsToObjects(this.original.getXObjects(), pcl, this.objectNumbers);
 
         this.attachments = xAttachmentsToPersistableAttachments(this.original.getAttachmentList());
     }
@@ -275,6 +289,215 @@ class PersistableXWikiDocument extends PersistableObject
         return out;
     }
 
+    /**
+     * Copy this document onto the persistent document it replaces, assigning only what changed
+     * so that only changed columns, objects and attachments are written.
+     * Objects are matched by class and object number and updated in place,
+     * attachments are matched by name. Call {@link #convertObjects()} and set the ids of this
+     * document with {@link DataNucleusPersistableObjectStore#setIds(String, PersistableObject)} first
+     * so that what is added to the stored document already has it's id.
+     *
+     * @param stored the document as it is in the store, persistent in the PersistenceManager.
+     * @param objStore used to give ids to the objects which are added.
+     */
+    void mergeInto(final PersistableXWikiDocument stored, final DataNucleusPersistableObjectStore objStore)
+    {
+        if (changed(stored.fullName, this.fullName)) {
+            stored.fullName = this.fullName;
+        }
+        if (changed(stored.name, this.name)) {
+            stored.name = this.name;
+        }
+        if (changed(stored.title, this.title)) {
+            stored.title = this.title;
+        }
+        if (changed(stored.language, this.language)) {
+            stored.language = this.language;
+        }
+        if (changed(stored.defaultLanguage, this.defaultLanguage)) {
+            stored.defaultLanguage = this.defaultLanguage;
+        }
+        if (stored.translation != this.translation) {
+            stored.translation = this.translation;
+        }
+        if (changed(stored.date, this.date)) {
+            stored.date = this.date;
+        }
+        if (changed(stored.contentUpdateDate, this.contentUpdateDate)) {
+            stored.contentUpdateDate = this.contentUpdateDate;
+        }
+        if (changed(stored.creationDate, this.creationDate)) {
+            stored.creationDate = this.creationDate;
+        }
+        if (changed(stored.author, this.author)) {
+            stored.author = this.author;
+        }
+        if (changed(stored.contentAuthor, this.contentAuthor)) {
+            stored.contentAuthor = this.contentAuthor;
+        }
+        if (changed(stored.creator, this.creator)) {
+            stored.creator = this.creator;
+        }
+        if (changed(stored.space, this.space)) {
+            stored.space = this.space;
+        }
+        if (changed(stored.content, this.content)) {
+            stored.content = this.content;
+        }
+        if (changed(stored.version, this.version)) {
+            stored.version = this.version;
+        }
+        if (changed(stored.customClass, this.customClass)) {
+            stored.customClass = this.customClass;
+        }
+        if (changed(stored.parent, this.parent)) {
+            stored.parent = this.parent;
+        }
+        if (changed(stored.xClassXML, this.xClassXML)) {
+            stored.xClassXML = this.xClassXML;
+        }
+        if (stored.elements != this.elements) {
+            stored.elements = this.elements;
+        }
+        if (changed(stored.defaultTemplate, this.defaultTemplate)) {
+            stored.defaultTemplate = this.defaultTemplate;
+        }
+        if (changed(stored.validationScript, this.validationScript)) {
+            stored.validationScript = this.validationScript;
+        }
+        if (changed(stored.comment, this.comment)) {
+            stored.comment = this.comment;
+        }
+        if (stored.isMinorEdit != this.isMinorEdit) {
+            stored.isMinorEdit = this.isMinorEdit;
+        }
+        if (changed(stored.syntaxId, this.syntaxId)) {
+            stored.syntaxId = this.syntaxId;
+        }
+        if (stored.hidden != this.hidden) {
+            stored.hidden = this.hidden;
+        }
+        if (changed(stored.wiki, this.wiki)) {
+            stored.wiki = this.wiki;
+        }
+
+        this.mergeObjectsInto(stored, objStore);
+        this.mergeAttachmentsInto(stored);
+    }
+
+    /**
+     * Update the objects of the stored document in place.
+     * An object is matched with the stored object of the same class which has the same number, the stored
+     * objects are numbered in order within each class as they are when the document is loaded.
+     * Stored objects which are not matched are deleted and the objects which are not matched are added
+     * after those which are kept, with ids made from their class and number. An id is never one of the
+     * stored objects, reusing the id of a deleted object would not work in stores such as Cassandra where
+     * the deletion, written in the same transaction, hides the insertion.
+     *
+     * @param stored the document as it is in the store.
+     * @param objStore used to give ids to the objects which are added.
+     */
+    private void mergeObjectsInto(final PersistableXWikiDocument stored,
+                                  final DataNucleusPersistableObjectStore objStore)
+    {
+        if (stored.objects == null) {
+            stored.objects = this.objects;
+            return;
+        }
+        final Map<String, AbstractXObject> unmatched = new HashMap<String, AbstractXObject>();
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        final Set<String> usedIds = new HashSet<String>();
+        for (final AbstractXObject object : stored.objects) {
+            final String className = object.getClass().getName();
+            final Integer count = counts.get(className);
+            final int number = (count == null) ? 0 : count;
+            counts.put(className, number + 1);
+            unmatched.put(objectKey(className, number), object);
+            usedIds.add(object.getId());
+        }
+
+        final Map<String, AbstractXObject> added = new LinkedHashMap<String, AbstractXObject>();
+        for (int i = 0; i < this.objects.size(); i++) {
+            final AbstractXObject object = this.objects.get(i);
+            final String key = objectKey(object.getClass().getName(), this.objectNumbers.get(i));
+            final AbstractXObject storedObject = unmatched.get(key);
+            if (storedObject != null && storedObject.getClass() == object.getClass()) {
+                unmatched.remove(key);
+                final Map<String, Object> fields = object.getFields();
+                if (!fields.equals(storedObject.getFields())) {
+                    storedObject.setFields(fields);
+                }
+            } else {
+                added.put(key, object);
+            }
+        }
+
+        final Set<AbstractXObject> removed =
+            Collections.newSetFromMap(new IdentityHashMap<AbstractXObject, Boolean>());
+        removed.addAll(unmatched.values());
+        for (final Iterator<AbstractXObject> it = stored.objects.iterator(); it.hasNext();) {
+            if (removed.contains(it.next())) {
+                it.remove();
+            }
+        }
+        for (final Map.Entry<String, AbstractXObject> e : added.entrySet()) {
+            final String base = stored.getId() + ".objects" + e.getKey();
+            String id = base;
+            for (int n = 1; usedIds.contains(id); n++) {
+                id = base + '~' + n;
+            }
+            usedIds.add(id);
+            objStore.setIds(id, e.getValue());
+        }
+        stored.objects.addAll(added.values());
+    }
+
+    /**
+     * @param className the name of the class of an object.
+     * @param number the number of the object among the objects of it's class.
+     * @return the key which the object is matched by.
+     */
+    private static String objectKey(final String className, final int number)
+    {
+        return "['" + className + "'][" + number + ']';
+    }
+
+    /**
+     * Update the attachments of the stored document in place, adding and removing those which changed.
+     *
+     * @param stored the document as it is in the store.
+     */
+    private void mergeAttachmentsInto(final PersistableXWikiDocument stored)
+    {
+        if (stored.attachments == null) {
+            stored.attachments = this.attachments;
+            return;
+        }
+        for (final String fileName : new ArrayList<String>(stored.attachments.keySet())) {
+            if (!this.attachments.containsKey(fileName)) {
+                stored.attachments.remove(fileName);
+            }
+        }
+        for (final Map.Entry<String, PersistableXWikiAttachment> e : this.attachments.entrySet()) {
+            final PersistableXWikiAttachment storedAttach = stored.attachments.get(e.getKey());
+            if (storedAttach == null) {
+                stored.attachments.put(e.getKey(), e.getValue());
+            } else {
+                e.getValue().mergeInto(storedAttach);
+            }
+        }
+    }
+
+    /**
+     * @param storedValue a value as it is in the store.
+     * @param value the value being saved.
+     * @return true if the value is not the same as the stored one.
+     */
+    static boolean changed(final Object storedValue, final Object value)
+    {
+        return (storedValue == null) ? value != null : !storedValue.equals(value);
+    }
+
     /** Get the PersistableClass defined in this XDoc if any. */
     PersistableClass getDefinedPersistableClass()
     {
@@ -339,7 +562,8 @@ class PersistableXWikiDocument extends PersistableObject
 
     private static List<XObject> xObjectsToObjects(
         final Map<DocumentReference, List<BaseObject>> xObjects,
-        final PersistableClassLoader loader)
+        final PersistableClassLoader loader,
+        final List<Integer> outputNumbers)
     {
         final List<XObject> out = new ArrayList<XObject>();
         final XClassConverter converter = new XClassConverter(loader);
@@ -354,6 +578,7 @@ class PersistableXWikiDocument extends PersistableObject
                         cls = converter.convert(obj).getNativeClass();
                     }
                     out.add(XObjectConverter.convertFromXObject(obj, cls));
+                    outputNumbers.add(obj.getNumber());
                 }
             }
         }
@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.datanucleus.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.PersistenceManager;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.store.objects.PersistableObject;
+
+public class DataNucleusPersistableObjectStoreTest
+{
+    public static class Node extends PersistableObject
+    {
+        private Node child;
+
+        private List<Node> list = new ArrayList<Node>();
+
+        private Map<String, Node> map = new HashMap<String, Node>();
+
+        private Node[] array = new Node[0];
+
+        private String notPersistable = "ignored";
+    }
+
+    private final Mockery mockery = new Mockery();
+
+    private final PersistenceManager pm = this.mockery.mock(PersistenceManager.class);
+
+    private void store(final String key, final PersistableObject value)
+    {
+        this.mockery.checking(new Expectations() {{
+            oneOf(pm).setDetachAllOnCommit(true);
+            oneOf(pm).makePersistent(value);
+        }});
+        new DataNucleusPersistableObjectStore().store(this.pm, key, value);
+        this.mockery.assertIsSatisfied();
+    }
+
+    @Test
+    public void testIds()
+    {
+        final Node root = new Node();
+        root.child = new Node();
+        root.child.child = new Node();
+        root.list.add(new Node());
+        root.list.add(null);
+        root.list.add(new Node());
+        root.map.put("a", new Node());
+        root.array = new Node[] { new Node() };
+
+        this.store("Main.WebHome", root);
+
+        Assert.assertEquals("Main.WebHome", root.getId());
+        Assert.assertEquals("Main.WebHome.child", root.child.getId());
+        Assert.assertEquals("Main.WebHome.child.child", root.child.child.getId());
+        Assert.assertEquals("Main.WebHome.list[0]", root.list.get(0).getId());
+        Assert.assertEquals("Main.WebHome.list[2]", root.list.get(2).getId());
+        Assert.assertEquals("Main.WebHome.map['a']", root.map.get("a").getId());
+        Assert.assertEquals("Main.WebHome.array[0]", root.array[0].getId());
+    }
+
+    @Test
+    public void testCycles()
+    {
+        final Node root = new Node();
+        root.child = new Node();
+        root.child.child = root;
+        root.list.add(root);
+        root.map.put("self", root);
+
+        this.store("Main.WebHome", root);
+
+        Assert.assertEquals("Main.WebHome", root.getId());
+        Assert.assertEquals("Main.WebHome.child", root.child.getId());
+    }
+
+    @Test
+    public void testEqualObjectsAreNotCycles()
+    {
+        final EqualNode root = new EqualNode();
+        root.child = new EqualNode();
+        root.child.child = new EqualNode();
+
+        this.store("Main.WebHome", root);
+
+        Assert.assertEquals("Main.WebHome.child", root.child.getId());
+        Assert.assertEquals("Main.WebHome.child.child", root.child.child.getId());
+    }
+
+    /** Equal to every other EqualNode, a walk by equality would mistake a child for a cycle. */
+    public static class EqualNode extends PersistableObject
+    {
+        private EqualNode child;
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            return o instanceof EqualNode;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.legacy.internal.datanucleus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiConfig;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.web.Utils;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.servlet.ServletContext;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xwiki.component.annotation.ComponentAnnotationLoader;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.environment.Environment;
+import org.xwiki.environment.internal.ServletEnvironment;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.UnexpectedException;
+import org.xwiki.store.attachments.datanucleus.internal.PersistableAttachmentMetadata;
+import org.xwiki.store.blob.BlobInfo;
+import org.xwiki.store.blob.BlobStore;
+import org.xwiki.test.AbstractComponentTestCase;
+import org.xwiki.test.MockConfigurationSource;
+
+/**
+ * The attachments of documents saved and loaded through the DataNucleus document store:
+ * the metadata rows, the content and the digest of the content, how the content is fetched when it is read
+ * and how the contents of one save are written together.
+ */
+public class AttachmentStoreTest
+{
+    private static XWikiContext XCONTEXT;
+
+    private static ComponentManager COMPONENT_MANAGER;
+
+    private final Random random = new Random();
+
+    private XWikiStoreInterface store;
+
+    private TransactionProvider<PersistenceManager> provider;
+
+    private BlobStore<Object> blobStore;
+
+    private EntityReferenceSerializer<String> serializer;
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        final AbstractComponentTestCase actc = new AbstractComponentTestCase(){};
+        final ClassLoader classLoader = actc.getClass().getClassLoader();
+
+        new ComponentAnnotationLoader().initialize(actc.getComponentManager(), classLoader);
+        Utils.setComponentManager(actc.getComponentManager());
+        COMPONENT_MANAGER = actc.getComponentManager();
+
+        // The configuration is read when the stores are initialized.
+        final MockConfigurationSource configuration = new MockConfigurationSource();
+        final File blobDir = new File(System.getProperty("java.io.tmpdir"),
+                                      "AttachmentStoreTest-" + Math.abs(new Random().nextLong()));
+        configuration.setProperty("store.attachments.datanucleus.blobStore", "packfile");
+        configuration.setProperty("store.blob.packfile.directory", blobDir.getAbsolutePath());
+        COMPONENT_MANAGER.registerComponent(MockConfigurationSource.getDescriptor("xwikiproperties"), configuration);
+
+        final ServletEnvironment sev = (ServletEnvironment) COMPONENT_MANAGER.getInstance(Environment.class);
+        final ServletContext sc = actc.getMockery().mock(ServletContext.class);
+        sev.setServletContext(sc);
+        actc.getMockery().checking(new Expectations() {{
+            allowing(sc).getAttribute("javax.servlet.context.tempdir");
+                will(returnValue(new File(System.getProperty("java.io.tmpdir"))));
+            allowing(sc).getResource("/WEB-INF/xwiki.properties");
+                will(returnValue(null));
+        }});
+
+        final XWiki xwiki = new XWiki();
+        xwiki.setStore(Utils.getComponent(XWikiStoreInterface.class, "datanucleus"));
+        xwiki.setConfig(new XWikiConfig() {
+            final Map<String, String> props = (new HashMap<String, String>() {{
+                put("xwiki.store.main.hint", "datanucleus");
+                put("xwiki.work.dir",        System.getProperty("java.io.tmpdir"));
+            }});
+            public String getProperty(String key, String defaultValue)
+            {
+                return (this.props.get(key) != null) ? this.props.get(key) : defaultValue;
+            }
+        });
+
+        XCONTEXT = new XWikiContext();
+        XCONTEXT.setWiki(xwiki);
+        final ExecutionContext context = new ExecutionContext();
+        context.setProperty("xwikicontext", XCONTEXT);
+        COMPONENT_MANAGER.<Execution>getInstance(Execution.class).setContext(context);
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.store = Utils.getComponent(XWikiStoreInterface.class, "datanucleus");
+        this.provider = COMPONENT_MANAGER.getInstance(
+            new DefaultParameterizedType(null, TransactionProvider.class, PersistenceManager.class), "datanucleus");
+        this.blobStore = COMPONENT_MANAGER.getInstance(
+            new DefaultParameterizedType(null, BlobStore.class, Object.class), "packfile");
+        this.serializer = COMPONENT_MANAGER.getInstance(
+            new DefaultParameterizedType(null, EntityReferenceSerializer.class, String.class));
+    }
+
+    @Test
+    public void testSaveAttachments() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final byte[] first = this.content(10);
+        final byte[] second = this.content(20);
+        final XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("first.txt", first, XCONTEXT);
+        doc.addAttachment("second.txt", second, XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        final Map<String, String> digests = this.getDigests(ref);
+        Assert.assertEquals(2, digests.size());
+        Assert.assertEquals(sha256(first), digests.get("first.txt"));
+        Assert.assertEquals(sha256(second), digests.get("second.txt"));
+
+        final XWikiDocument loaded = this.load(ref);
+        Assert.assertEquals(2, loaded.getAttachmentList().size());
+        Assert.assertEquals(20, loaded.getAttachment("second.txt").getFilesize());
+        Assert.assertArrayEquals(first, loaded.getAttachment("first.txt").getAttachment_content().getContent());
+        Assert.assertArrayEquals(second, loaded.getAttachment("second.txt").getAttachment_content().getContent());
+    }
+
+    @Test
+    public void testLoadedAttachmentsAreNotDirty() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("file.txt", this.content(10), XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        final XWikiDocument loaded = this.load(ref);
+        Assert.assertFalse(loaded.getAttachment("file.txt").isMetaDataDirty());
+        Assert.assertFalse(loaded.getAttachment("file.txt").isContentDirty());
+        loaded.getAttachment("file.txt").getAttachment_content().getContent();
+        Assert.assertFalse(loaded.getAttachment("file.txt").isContentDirty());
+    }
+
+    @Test
+    public void testSaveChangedAttachment() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final byte[] unchanged = this.content(10);
+        XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("changed.txt", this.content(10), XCONTEXT);
+        doc.addAttachment("unchanged.txt", unchanged, XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        final byte[] changed = this.content(30);
+        doc = this.load(ref);
+        doc.addAttachment("changed.txt", changed, XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        final Map<String, String> digests = this.getDigests(ref);
+        Assert.assertEquals(sha256(changed), digests.get("changed.txt"));
+        Assert.assertEquals(sha256(unchanged), digests.get("unchanged.txt"));
+        doc = this.load(ref);
+        Assert.assertEquals(30, doc.getAttachment("changed.txt").getFilesize());
+        Assert.assertArrayEquals(changed, doc.getAttachment("changed.txt").getAttachment_content().getContent());
+        Assert.assertArrayEquals(unchanged, doc.getAttachment("unchanged.txt").getAttachment_content().getContent());
+    }
+
+    @Test
+    public void testRemoveAttachment() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final byte[] kept = this.content(10);
+        XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("kept.txt", kept, XCONTEXT);
+        doc.addAttachment("removed.txt", this.content(10), XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        doc = this.load(ref);
+        doc.getAttachmentList().remove(doc.getAttachment("removed.txt"));
+        this.store.saveXWikiDoc(doc, null);
+
+        Assert.assertEquals(1, this.getDigests(ref).size());
+        Assert.assertFalse(this.contentExists(ref, "removed.txt"));
+        Assert.assertTrue(this.contentExists(ref, "kept.txt"));
+        doc = this.load(ref);
+        Assert.assertNull(doc.getAttachment("removed.txt"));
+        Assert.assertArrayEquals(kept, doc.getAttachment("kept.txt").getAttachment_content().getContent());
+    }
+
+    @Test
+    public void testDeleteDocument() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("first.txt", this.content(10), XCONTEXT);
+        doc.addAttachment("second.txt", this.content(10), XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        this.store.deleteXWikiDoc(this.load(ref), null);
+        Assert.assertEquals(0, this.getDigests(ref).size());
+        Assert.assertFalse(this.contentExists(ref, "first.txt"));
+        Assert.assertFalse(this.contentExists(ref, "second.txt"));
+        Assert.assertTrue(this.load(ref).isNew());
+    }
+
+    @Test
+    public void testContentIsNotFetchedOnLoad() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("file.txt", this.content(10), XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        final XWikiAttachment attach = this.load(ref).getAttachment("file.txt");
+        final LazyAttachmentContent content = (LazyAttachmentContent) attach.getAttachment_content();
+        Assert.assertFalse(content.isLoaded());
+        Assert.assertEquals(10, attach.getFilesize());
+        Assert.assertEquals(10, content.getSize());
+        Assert.assertFalse(content.isLoaded());
+        Assert.assertEquals(10, content.getContent().length);
+        Assert.assertTrue(content.isLoaded());
+    }
+
+    @Test
+    public void testSmallContentsAreFetchedTogether() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final byte[] large = this.content(100 << 10);
+        final XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("small1.txt", this.content(10), XCONTEXT);
+        doc.addAttachment("small2.txt", this.content(20), XCONTEXT);
+        doc.addAttachment("large.bin", large, XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        final XWikiDocument loaded = this.load(ref);
+        loaded.getAttachment("small1.txt").getAttachment_content().getContent();
+        Assert.assertTrue(
+            ((LazyAttachmentContent) loaded.getAttachment("small2.txt").getAttachment_content()).isLoaded());
+        final LazyAttachmentContent largeContent =
+            (LazyAttachmentContent) loaded.getAttachment("large.bin").getAttachment_content();
+        Assert.assertFalse(largeContent.isLoaded());
+        Assert.assertArrayEquals(large, largeContent.getContent());
+        Assert.assertFalse(loaded.getAttachment("large.bin").isContentDirty());
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final byte[] expected = this.content(1000);
+        final XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("file.txt", expected, XCONTEXT);
+        doc.addAttachment("other.txt", this.content(10), XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        final XWikiDocument loaded = this.load(ref);
+        final byte[][] read = new byte[8][];
+        final Thread[] threads = new Thread[read.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    read[index] = loaded.getAttachment("file.txt").getAttachment_content().getContent();
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (final byte[] content : read) {
+            Assert.assertArrayEquals(expected, content);
+        }
+    }
+
+    @Test
+    public void testSaveManyAttachments() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final byte[][] contents = new byte[6][];
+        XWikiDocument doc = new XWikiDocument(ref);
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = this.content(1000 * (i + 1));
+            doc.addAttachment("file" + i + ".bin", contents[i], XCONTEXT);
+        }
+        this.store.saveXWikiDoc(doc, null);
+
+        final Map<String, String> digests = this.getDigests(ref);
+        doc = this.load(ref);
+        for (int i = 0; i < contents.length; i++) {
+            Assert.assertEquals(sha256(contents[i]), digests.get("file" + i + ".bin"));
+            Assert.assertArrayEquals(contents[i],
+                                     doc.getAttachment("file" + i + ".bin").getAttachment_content().getContent());
+        }
+    }
+
+    @Test
+    public void testFailedContentSaveLeavesAttachmentsUnchanged() throws Exception
+    {
+        final DocumentReference ref = this.newDocumentReference();
+        final byte[] first = this.content(10);
+        final byte[] second = this.content(10);
+        XWikiDocument doc = new XWikiDocument(ref);
+        doc.addAttachment("first.txt", first, XCONTEXT);
+        doc.addAttachment("second.txt", second, XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        doc = this.load(ref);
+        doc.addAttachment("first.txt", this.content(20), XCONTEXT);
+        final XWikiAttachment failing = doc.getAttachment("second.txt");
+        final XWikiAttachmentContent failingContent = new XWikiAttachmentContent(failing) {
+            @Override
+            public InputStream getContentInputStream()
+            {
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        throw new IOException("Failing content");
+                    }
+                };
+            }
+
+            @Override
+            public int getSize()
+            {
+                return 20;
+            }
+        };
+        failingContent.setContentDirty(true);
+        failing.setAttachment_content(failingContent);
+        try {
+            this.store.saveXWikiDoc(doc, null);
+            Assert.fail("A document was saved with an attachment whose content could not be read");
+        } catch (UnexpectedException e) {
+            // The save failed as a whole.
+        }
+
+        final Map<String, String> digests = this.getDigests(ref);
+        Assert.assertEquals(sha256(first), digests.get("first.txt"));
+        Assert.assertEquals(sha256(second), digests.get("second.txt"));
+        doc = this.load(ref);
+        Assert.assertArrayEquals(first, doc.getAttachment("first.txt").getAttachment_content().getContent());
+        Assert.assertArrayEquals(second, doc.getAttachment("second.txt").getAttachment_content().getContent());
+    }
+
+    private DocumentReference newDocumentReference()
+    {
+        return new DocumentReference("xwiki", "AttachmentStoreTest", "Document" + Math.abs(this.random.nextLong()));
+    }
+
+    private byte[] content(final int length)
+    {
+        final byte[] content = new byte[length];
+        this.random.nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Load a document the way XWiki#getDocument does, with the original document which a save compares to.
+     */
+    private XWikiDocument load(final DocumentReference ref) throws Exception
+    {
+        final XWikiDocument doc = new XWikiDocument(ref);
+        this.store.loadXWikiDoc(doc, null);
+        doc.setOriginalDocument(doc.clone());
+        return doc;
+    }
+
+    /** The digest recorded in the metadata row of each attachment of a document, by file name. */
+    private Map<String, String> getDigests(final DocumentReference ref) throws Exception
+    {
+        final String documentId = this.serializer.serialize(ref);
+        final Map<String, String> out = new HashMap<String, String>();
+        this.run(new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                final Query query =
+                    this.getContext().newQuery(PersistableAttachmentMetadata.class, "documentId == :documentId");
+                for (final PersistableAttachmentMetadata row
+                     : (Collection<PersistableAttachmentMetadata>) query.execute(documentId))
+                {
+                    out.put(row.getFileName(), row.getDigest());
+                }
+                query.closeAll();
+            }
+        });
+        return out;
+    }
+
+    /** True if the blob store holds content for an attachment, the blob id is the attachment reference. */
+    private boolean contentExists(final DocumentReference ref, final String fileName) throws Exception
+    {
+        final BlobInfo info = new BlobInfo();
+        this.run(this.blobStore.getStatRunnable(this.serializer.serialize(new AttachmentReference(fileName, ref)),
+                                                info));
+        return info.exists();
+    }
+
+    private void run(final TransactionRunnable<? super PersistenceManager> runnable) throws Exception
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        runnable.runIn(transaction);
+        transaction.start();
+    }
+
+    private static String sha256(final byte[] content) throws Exception
+    {
+        return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(content)));
+    }
+}
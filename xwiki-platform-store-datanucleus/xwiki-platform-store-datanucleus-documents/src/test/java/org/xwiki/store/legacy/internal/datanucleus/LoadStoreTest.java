@@ -21,6 +21,7 @@ package org.xwiki.store.legacy.internal.datanucleus;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -369,4 +370,96 @@ public class LoadStoreTest
         Assert.assertEquals("hello", obj.getStringValue("str1"));
         Assert.assertEquals("world", obj.getStringValue("str2"));
     }
+
+    @Test
+    public void testSaveChanges() throws Exception
+    {
+        final DocumentReference classA = new DocumentReference("xwiki", "Merge", "ClassA");
+        final DocumentReference classB = new DocumentReference("xwiki", "Merge", "ClassB");
+        for (final DocumentReference classRef : Arrays.asList(classA, classB)) {
+            final XWikiDocument classDoc = new XWikiDocument(classRef);
+            classDoc.getXClass().addField("str", new StringClass());
+            this.store.saveXWikiDoc(classDoc, null);
+        }
+
+        final DocumentReference ref = new DocumentReference("xwiki", "Merge", "Document");
+        XWikiDocument doc = new XWikiDocument(ref);
+        doc.setContent("first");
+        doc.newXObject(classA, XCONTEXT).setStringValue("str", "a0");
+        doc.newXObject(classA, XCONTEXT).setStringValue("str", "a1");
+        doc.addAttachment("first.txt", "first".getBytes("UTF-8"), XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+
+        // Edit a field, the objects are updated in place.
+        doc = this.load(ref);
+        doc.setContent("second");
+        doc.getXObject(classA, 1).setStringValue("str", "a1 edited");
+        this.store.saveXWikiDoc(doc, null);
+        doc = this.load(ref);
+        Assert.assertEquals("second", doc.getContent());
+        Assert.assertEquals(Arrays.asList("a0", "a1 edited"), values(doc, classA));
+
+        // Add an object of another class.
+        doc.newXObject(classB, XCONTEXT).setStringValue("str", "b0");
+        this.store.saveXWikiDoc(doc, null);
+        doc = this.load(ref);
+        Assert.assertEquals(Arrays.asList("a0", "a1 edited"), values(doc, classA));
+        Assert.assertEquals(Arrays.asList("b0"), values(doc, classB));
+
+        // Remove the first object, the objects after it are replaced by objects of another class.
+        doc.removeXObject(doc.getXObject(classA, 0));
+        this.store.saveXWikiDoc(doc, null);
+        doc = this.load(ref);
+        Assert.assertEquals(Arrays.asList("a1 edited"), values(doc, classA));
+        Assert.assertEquals(Arrays.asList("b0"), values(doc, classB));
+
+        // Remove the object of the other class.
+        doc.removeXObject(doc.getXObjects(classB).get(0));
+        this.store.saveXWikiDoc(doc, null);
+        doc = this.load(ref);
+        Assert.assertEquals(Arrays.asList("a1 edited"), values(doc, classA));
+        Assert.assertEquals(new ArrayList<String>(), values(doc, classB));
+
+        // Add an attachment.
+        doc.addAttachment("second.txt", "second".getBytes("UTF-8"), XCONTEXT);
+        this.store.saveXWikiDoc(doc, null);
+        doc = this.load(ref);
+        Assert.assertEquals("first", new String(doc.getAttachment("first.txt").getContent(XCONTEXT), "UTF-8"));
+        Assert.assertEquals("second", new String(doc.getAttachment("second.txt").getContent(XCONTEXT), "UTF-8"));
+
+        // Remove an attachment.
+        doc.getAttachmentList().remove(doc.getAttachment("first.txt"));
+        this.store.saveXWikiDoc(doc, null);
+        doc = this.load(ref);
+        Assert.assertNull(doc.getAttachment("first.txt"));
+        Assert.assertEquals("second", new String(doc.getAttachment("second.txt").getContent(XCONTEXT), "UTF-8"));
+        Assert.assertEquals("second", doc.getContent());
+        Assert.assertEquals(Arrays.asList("a1 edited"), values(doc, classA));
+    }
+
+    /**
+     * Load a document the way XWiki#getDocument does, with the original document which a save compares to.
+     */
+    private XWikiDocument load(final DocumentReference ref) throws Exception
+    {
+        final XWikiDocument doc = new XWikiDocument(ref);
+        this.store.loadXWikiDoc(doc, null);
+        doc.setOriginalDocument(doc.clone());
+        return doc;
+    }
+
+    /** The values of the str field of the objects of a class in a document, in order. */
+    private static List<String> values(final XWikiDocument doc, final DocumentReference classRef)
+    {
+        final List<String> out = new ArrayList<String>();
+        final List<BaseObject> objects = doc.getXObjects(classRef);
+        if (objects != null) {
+            for (final BaseObject obj : objects) {
+                if (obj != null) {
+                    out.add(obj.getStringValue("str"));
+                }
+            }
+        }
+        return out;
+    }
 }
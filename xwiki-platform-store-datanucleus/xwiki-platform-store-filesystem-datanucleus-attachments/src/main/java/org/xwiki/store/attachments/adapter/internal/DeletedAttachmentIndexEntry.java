@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.adapter.internal;
+
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * An entry of the index from the id of a deleted attachment to the reference of the attachment.
+ * The recycle bin only knows deleted attachments by attachment, this lets an id be
+ * resolved with a single key read.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@PersistenceCapable(table = "DeletedAttachmentIndex")
+class DeletedAttachmentIndexEntry
+{
+    /** The id of the deleted attachment. */
+    @PrimaryKey
+    private long id;
+
+    /** The serialized reference of the attachment. */
+    private String attachmentId;
+
+    /** The serialized reference of the document which the attachment was attached to. */
+    @Index
+    private String documentId;
+
+    DeletedAttachmentIndexEntry(final long id, final String attachmentId, final String documentId)
+    {
+        this.id = id;
+        this.attachmentId = attachmentId;
+        this.documentId = documentId;
+    }
+
+    long getId()
+    {
+        return this.id;
+    }
+
+    String getAttachmentId()
+    {
+        return this.attachmentId;
+    }
+
+    String getDocumentId()
+    {
+        return this.documentId;
+    }
+}
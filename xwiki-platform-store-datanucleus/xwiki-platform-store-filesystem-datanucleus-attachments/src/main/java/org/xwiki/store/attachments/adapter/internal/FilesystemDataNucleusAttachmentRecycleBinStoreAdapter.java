@@ -19,20 +19,44 @@
  */
 package org.xwiki.store.attachments.adapter.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.DeletedAttachment;
+import com.xpn.xwiki.doc.XWikiAttachment;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.listener.InstanceLifecycleEvent;
+import javax.jdo.listener.StoreLifecycleListener;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.WikiReference;
 import org.xwiki.store.attachments.newstore.internal.DeletedAttachmentContentStore;
 import org.xwiki.store.attachments.newstore.internal.DeletedAttachmentStore;
+import org.xwiki.store.datanucleus.internal.ObjectLookup;
 import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
 import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.UnexpectedException;
 
 /**
  * Realization of {@link AttachmentRecycleBinStore} for filesystem storage.
@@ -61,18 +85,49 @@ public class FilesystemDataNucleusAttachmentRecycleBinStoreAdapter
     @Inject
     private DeletedAttachmentContentStore contentStore;
 
-    /** Generic String reference resolver used for the name of the deleter. */
+    /**
+     * Generic String reference resolver used for the name of the deleter
+     * and for the attachment references in the index of deleted attachment ids.
+     */
     @Inject
     private EntityReferenceResolver<String> resolver;
 
+    /** Used to serialize the references in the index of deleted attachment ids. */
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
     /** A means of getting the XWikiContext to get the current wiki. */
     @Inject
     private Execution execution;
 
+    /** The transaction which the recycle bin changes of the current save or delete are chained into, if any. */
+    private final ThreadLocal<StartableTransactionRunnable<PersistenceManager>> currentTransaction =
+        new ThreadLocal<StartableTransactionRunnable<PersistenceManager>>();
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * While the recycle bin is being changed together with the index, the returned runnable is chained into
+     * the transaction which also writes the index and starting it does nothing, the metadata and content
+     * changes are run and committed when that transaction is started.
+     */
     @Override
     protected StartableTransactionRunnable<PersistenceManager> getTransaction()
     {
-        return this.transactionProvider.get();
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.currentTransaction.get();
+        if (transaction == null) {
+            return this.transactionProvider.get();
+        }
+        final StartableTransactionRunnable<PersistenceManager> chained =
+            new StartableTransactionRunnable<PersistenceManager>() {
+                @Override
+                public void start()
+                {
+                    // Run when the transaction which this is chained into is started.
+                }
+            };
+        chained.runIn(transaction);
+        return chained;
     }
 
     @Override
@@ -93,10 +148,212 @@ public class FilesystemDataNucleusAttachmentRecycleBinStoreAdapter
         return this.resolver;
     }
 
+    @Override
+    public void saveToRecycleBin(final XWikiAttachment attachment,
+                                 final String deleter,
+                                 final Date date,
+                                 final XWikiContext context,
+                                 final boolean bTransaction) throws XWikiException
+    {
+        final String attachmentId = this.serializer.serialize(attachment.getReference());
+        final String documentId = this.serializer.serialize(attachment.getDoc().getDocumentReference());
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.transactionProvider.get();
+        this.currentTransaction.set(transaction);
+        try {
+            super.saveToRecycleBin(attachment, deleter, date, context, bTransaction);
+        } finally {
+            this.currentTransaction.remove();
+        }
+        // The id is chosen by the metadata store when it stores the entry, it is taken from the stored entry.
+        final Set<Long> ids = new HashSet<Long>();
+        final StoreLifecycleListener listener = new StoreLifecycleListener() {
+            @Override
+            public void preStore(final InstanceLifecycleEvent event)
+            {
+                // Nothing to do before the entry is stored.
+            }
+
+            @Override
+            public void postStore(final InstanceLifecycleEvent event)
+            {
+                if (event.getPersistentInstance() instanceof DeletedAttachment) {
+                    ids.add(((DeletedAttachment) event.getPersistentInstance()).getId());
+                }
+            }
+        };
+        new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onPreRun()
+            {
+                this.getContext().addInstanceLifecycleListener(listener, (Class[]) null);
+            }
+
+            @Override
+            protected void onRun()
+            {
+                final PersistenceManager pm = this.getContext();
+                pm.flush();
+                final List<DeletedAttachmentIndexEntry> entries = new ArrayList<DeletedAttachmentIndexEntry>();
+                for (final Long id : ids) {
+                    entries.add(new DeletedAttachmentIndexEntry(id, attachmentId, documentId));
+                }
+                pm.makePersistentAll(entries);
+            }
+
+            @Override
+            protected void onComplete()
+            {
+                this.getContext().removeInstanceLifecycleListener(listener);
+            }
+        }.runIn(transaction);
+        this.start(transaction, "move the attachment [" + attachmentId + "] to the recycle bin");
+    }
+
+    @Override
+    public void deleteFromRecycleBin(final long index,
+                                     final XWikiContext context,
+                                     final boolean bTransaction) throws XWikiException
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.transactionProvider.get();
+        this.currentTransaction.set(transaction);
+        try {
+            super.deleteFromRecycleBin(index, context, bTransaction);
+        } finally {
+            this.currentTransaction.remove();
+        }
+        new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                final PersistenceManager pm = this.getContext();
+                try {
+                    pm.deletePersistent(pm.getObjectById(DeletedAttachmentIndexEntry.class, index));
+                } catch (JDOObjectNotFoundException e) {
+                    // Not in the index.
+                }
+            }
+        }.runIn(transaction);
+        this.start(transaction, "delete the attachment [" + index + "] from the recycle bin");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is a single key read of the index of deleted attachment ids.
+     *
+     * @return the reference of the attachment or null if the id is not in the index.
+     */
     @Override
     protected AttachmentReference getAttachmentReferenceForId(final long id)
     {
-        throw new RuntimeException("Not Implemented.");
+        final List<String> found = new ArrayList<String>(1);
+        this.runInTransaction(new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                try {
+                    found.add(this.getContext().getObjectById(DeletedAttachmentIndexEntry.class, id)
+                        .getAttachmentId());
+                } catch (JDOObjectNotFoundException e) {
+                    // Not in the index.
+                }
+            }
+        }, "look up the deleted attachment [" + id + "]");
+        return (found.isEmpty()) ? null : this.resolve(found.get(0));
+    }
+
+    /**
+     * Get the attachment references of many deleted attachments, they are looked up by id.
+     *
+     * @param ids the ids of the deleted attachments.
+     * @return the references which were found in the index, by id.
+     */
+    public Map<Long, AttachmentReference> getAttachmentReferencesForIds(final Collection<Long> ids)
+    {
+        final List<DeletedAttachmentIndexEntry> found = new ArrayList<DeletedAttachmentIndexEntry>();
+        this.runInTransaction(new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                found.addAll(ObjectLookup.getExisting(this.getContext(), DeletedAttachmentIndexEntry.class, ids));
+            }
+        }, "look up deleted attachments");
+        final Map<Long, AttachmentReference> out = new HashMap<Long, AttachmentReference>();
+        for (final DeletedAttachmentIndexEntry entry : found) {
+            out.put(entry.getId(), this.resolve(entry.getAttachmentId()));
+        }
+        return out;
+    }
+
+    /**
+     * Get one page of the ids of the attachments which were deleted from a document, in ascending order.
+     * To restore or purge in batches, pass the last id of each page as the after parameter
+     * of the next until a page is not full.
+     * Only the index entries of the document are read, they are sorted in memory.
+     *
+     * @param document the document which the attachments were deleted from.
+     * @param after only list ids greater than this, Long.MIN_VALUE to start at the beginning.
+     * @param limit the maximum number of ids to list.
+     * @return the ids of the page.
+     */
+    public List<Long> getDeletedAttachmentIds(final DocumentReference document, final long after, final int limit)
+    {
+        final List<Long> ids = new ArrayList<Long>();
+        final String documentId = this.serializer.serialize(document);
+        this.runInTransaction(new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                final Query query =
+                    this.getContext().newQuery(DeletedAttachmentIndexEntry.class, "documentId == :documentId");
+                query.setResult("id");
+                for (final Long id : (Collection<Long>) query.execute(documentId)) {
+                    if (id > after) {
+                        ids.add(id);
+                    }
+                }
+                query.closeAll();
+            }
+        }, "list the deleted attachments of [" + documentId + "]");
+        Collections.sort(ids);
+        return new ArrayList<Long>(ids.subList(0, Math.min(limit, ids.size())));
+    }
+
+    /**
+     * @param attachmentId a serialized attachment reference from the index.
+     * @return the attachment reference.
+     */
+    private AttachmentReference resolve(final String attachmentId)
+    {
+        return new AttachmentReference(this.resolver.resolve(attachmentId, EntityType.ATTACHMENT));
+    }
+
+    /**
+     * Run a TransactionRunnable in a transaction of it's own.
+     *
+     * @param runnable the runnable to run.
+     * @param what what the runnable does, for the error message.
+     */
+    private void runInTransaction(final TransactionRunnable<PersistenceManager> runnable, final String what)
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.transactionProvider.get();
+        runnable.runIn(transaction);
+        this.start(transaction, what);
+    }
+
+    /**
+     * Start a transaction.
+     *
+     * @param transaction the transaction to start.
+     * @param what what the transaction does, for the error message.
+     */
+    private void start(final StartableTransactionRunnable<PersistenceManager> transaction, final String what)
+    {
+        try {
+            transaction.start();
+        } catch (TransactionException e) {
+            throw new UnexpectedException("Failed to " + what, e);
+        }
     }
 
     /**
@@ -0,0 +1,272 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.tiered.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import javax.jdo.Extent;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.attachments.datanucleus.internal.PersistableAttachmentMetadata;
+
+/**
+ * Moves attachment content to the tier it belongs in, for content saved before the tier thresholds
+ * were changed or before the tier was recorded.
+ * A run reads the attachment metadata in a single pass and then moves the content in batches,
+ * with a pause between batches. Each move loads the content in one transaction and saves it
+ * in another which is rolled back if the attachment was changed in between.
+ * A save always places content in the tier it belongs in so once a run has moved everything,
+ * the following runs do nothing.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class AttachmentTierMigrator implements Runnable
+{
+    /** For reporting failed runs, the executor would otherwise swallow them. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentTierMigrator.class);
+
+    /** The store which the content is moved within. */
+    private final TieredAttachmentContentStore store;
+
+    /** The provider of the transactions to migrate in. */
+    private final TransactionProvider<PersistenceManager> provider;
+
+    /** The configuration of the store. */
+    private final TieredStoreSettings settings;
+
+    /** Used to resolve the documents of attachments from their metadata. */
+    private final EntityReferenceResolver<String> resolver;
+
+    /** True once a run has moved the content of every attachment which was in the wrong tier. */
+    private boolean done;
+
+    /**
+     * The Constructor.
+     *
+     * @param store the store which the content is moved within.
+     * @param provider the provider of the transactions to migrate in.
+     * @param settings the configuration of the store.
+     * @param resolver used to resolve the documents of attachments from their metadata.
+     */
+    AttachmentTierMigrator(final TieredAttachmentContentStore store,
+                           final TransactionProvider<PersistenceManager> provider,
+                           final TieredStoreSettings settings,
+                           final EntityReferenceResolver<String> resolver)
+    {
+        this.store = store;
+        this.provider = provider;
+        this.settings = settings;
+        this.resolver = resolver;
+    }
+
+    @Override
+    public void run()
+    {
+        if (this.done) {
+            return;
+        }
+        try {
+            this.done = this.migrate();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to migrate attachment content between tiers, will try again at the next run", e);
+        }
+    }
+
+    /**
+     * Find the attachments in the wrong tier and move their content one batch at a time.
+     *
+     * @return true if every move succeeded.
+     * @throws Exception if finding the moves fails or the migrator is interrupted.
+     */
+    private boolean migrate() throws Exception
+    {
+        final List<Move> moves = new ArrayList<Move>();
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        new FindMovesRunnable(moves).runIn(transaction);
+        transaction.start();
+
+        final int batchSize = this.settings.getMigrationBatchSize();
+        boolean succeeded = true;
+        for (int i = 0; i < moves.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            if (i > 0 && i % batchSize == 0) {
+                Thread.sleep(this.settings.getMigrationPause());
+            }
+            succeeded &= this.move(moves.get(i));
+        }
+        return succeeded;
+    }
+
+    /**
+     * Move the content of one attachment, a failure is logged and the move is tried again at the next run.
+     *
+     * @param move the attachment to move and the tiers to move it between.
+     * @return true if the content was moved.
+     * @throws TransactionException if loading the content fails.
+     */
+    private boolean move(final Move move) throws TransactionException
+    {
+        final DocumentReference docRef =
+            new DocumentReference(this.resolver.resolve(move.documentId, EntityType.DOCUMENT));
+        final XWikiAttachment attach = new XWikiAttachment(new XWikiDocument(docRef), move.fileName);
+
+        final StartableTransactionRunnable<PersistenceManager> load = this.provider.get();
+        this.store.storeFor(move.from).getAttachmentContentLoadRunnable(attach).runIn(load);
+        load.start();
+        if (attach.getAttachment_content() == null) {
+            LOGGER.warn("No content for attachment [{}] in tier [{}]", move.id, move.from);
+            return false;
+        }
+
+        final StartableTransactionRunnable<PersistenceManager> save = this.provider.get();
+        // Checked before the save so that content saved in the meantime is not overwritten,
+        // the move checks again before it removes the content from the tier it was in.
+        new CheckUnchangedRunnable(move).runIn(save);
+        this.store.getMoveRunnable(attach.getAttachment_content(), move.from, move.to, move.version, move.digest)
+            .runIn(save);
+        try {
+            save.start();
+        } catch (TransactionException e) {
+            LOGGER.warn("Failed to move the content of attachment [{}] from tier [{}] to tier [{}], "
+                        + "will try again at the next run", new Object[] { move.id, move.from, move.to, e });
+            return false;
+        }
+        return true;
+    }
+
+    /** An attachment whose content is in the wrong tier. */
+    private static class Move
+    {
+        /** The serialized reference of the attachment. */
+        private final String id;
+
+        /** The serialized reference of the document. */
+        private final String documentId;
+
+        /** The name of the attachment. */
+        private final String fileName;
+
+        /** The version of the attachment when the move was planned. */
+        private final String version;
+
+        /** The digest of the content when the move was planned. */
+        private final String digest;
+
+        /** The tier which the content is in. */
+        private final String from;
+
+        /** The tier which the content belongs in. */
+        private final String to;
+
+        Move(final PersistableAttachmentMetadata row, final String from, final String to)
+        {
+            this.id = row.getId();
+            this.documentId = row.getDocumentId();
+            this.fileName = row.getFileName();
+            this.version = row.getVersion();
+            this.digest = row.getDigest();
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Find the attachments whose content is in the wrong tier.
+     * The metadata is read in a single pass without ordering, only the moves are kept.
+     */
+    private class FindMovesRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** Populated with the attachments which need to be moved. */
+        private final List<Move> moves;
+
+        FindMovesRunnable(final List<Move> moves)
+        {
+            this.moves = moves;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final Extent<PersistableAttachmentMetadata> extent =
+                this.getContext().getExtent(PersistableAttachmentMetadata.class, false);
+            try {
+                for (final PersistableAttachmentMetadata row : extent) {
+                    final String from = (row.getTier() != null)
+                        ? row.getTier() : AttachmentTierMigrator.this.settings.getDefaultTier();
+                    final String to =
+                        AttachmentTierMigrator.this.settings.chooseTier(row.getSize(), row.getFileName());
+                    if (!from.equals(to)) {
+                        this.moves.add(new Move(row, from, to));
+                    }
+                }
+            } finally {
+                extent.closeAll();
+            }
+        }
+    }
+
+    /** Fail the transaction if the attachment was saved, moved or deleted since the move was planned. */
+    private static class CheckUnchangedRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** The planned move. */
+        private final Move move;
+
+        CheckUnchangedRunnable(final Move move)
+        {
+            this.move = move;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final PersistableAttachmentMetadata row;
+            try {
+                row = this.getContext().getObjectById(PersistableAttachmentMetadata.class, this.move.id);
+            } catch (JDOObjectNotFoundException e) {
+                throw new IllegalStateException("The attachment was deleted", e);
+            }
+            final String tier = (row.getTier() != null) ? row.getTier() : this.move.from;
+            if (!tier.equals(this.move.from)
+                || !StringUtils.equals(row.getVersion(), this.move.version)
+                || !StringUtils.equals(row.getDigest(), this.move.digest))
+            {
+                throw new IllegalStateException("The attachment was changed");
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.tiered.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.UnexpectedException;
+import org.xwiki.store.attachments.datanucleus.internal.DigestingAttachmentContent;
+import org.xwiki.store.attachments.datanucleus.internal.PersistableAttachmentMetadata;
+import org.xwiki.store.attachments.newstore.internal.AttachmentContentStore;
+
+/**
+ * An attachment content store which places the content of each attachment in one of two tiers,
+ * by default small content in the DataNucleus blob store and large or cold content on the filesystem.
+ * The tier is recorded in the attachment metadata so a load goes straight to the tier which holds the content,
+ * along with the digest of the content which is computed as the tier writes it.
+ * A save also removes the content from every other tier in the same transaction, so when the tier of an
+ * attachment changes the copy in the tier it was in is only removed if the transaction commits.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+@Component
+@Named("tiered")
+@Singleton
+public class TieredAttachmentContentStore
+    implements AttachmentContentStore<PersistenceManager>, Initializable, Disposable
+{
+    /** The hint of this store, which can not be one of it's own tiers. */
+    private static final String HINT = "tiered";
+
+    /** The source of the configuration for the store. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Used to look up the content stores of the tiers. */
+    @Inject
+    private ComponentManager componentManager;
+
+    /** The provider of the transactions which the migrator runs in. */
+    @Inject
+    @Named("datanucleus")
+    private TransactionProvider<PersistenceManager> provider;
+
+    /** A serializer for attachment and document references. */
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    /** Used by the migrator to resolve the documents of attachments from their metadata. */
+    @Inject
+    private EntityReferenceResolver<String> referenceResolver;
+
+    /** The content store of each tier, by hint. */
+    private final Map<String, AttachmentContentStore<PersistenceManager>> stores =
+        new ConcurrentHashMap<String, AttachmentContentStore<PersistenceManager>>();
+
+    /** The configuration of the store. */
+    private TieredStoreSettings settings;
+
+    /** The executor which runs the migrator, null if the migrator is disabled. */
+    private ScheduledExecutorService migrationExecutor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.settings = new TieredStoreSettings(this.configuration);
+        for (final String tier : this.settings.getTiers()) {
+            if (HINT.equals(tier)) {
+                throw new InitializationException("The tiered attachment content store can not be a tier of itself");
+            }
+            try {
+                this.storeFor(tier);
+            } catch (UnexpectedException e) {
+                throw new InitializationException("No attachment content store for tier [" + tier + "]", e);
+            }
+        }
+        if (this.settings.isMigrationEnabled()) {
+            this.migrationExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "TieredAttachmentContentStore migrator");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            final long interval = this.settings.getMigrationInterval();
+            this.migrationExecutor.scheduleWithFixedDelay(
+                new AttachmentTierMigrator(this, this.provider, this.settings, this.referenceResolver),
+                interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.migrationExecutor != null) {
+            this.migrationExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAttachmentContentSaveRunnable(
+        final XWikiAttachmentContent content)
+    {
+        final String tier = this.settings.chooseTier(content.getSize(), content.getAttachment().getFilename());
+        return this.getSaveRunnable(content, tier);
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAttachmentContentLoadRunnable(final XWikiAttachment attachment)
+    {
+        return new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun() throws TransactionException
+            {
+                final PersistenceManager pm = this.getContext();
+                final PersistableAttachmentMetadata row = TieredAttachmentContentStore.this.fetch(pm, attachment);
+                final String tier = (row != null && row.getTier() != null)
+                    ? row.getTier() : TieredAttachmentContentStore.this.settings.getDefaultTier();
+                runInCurrent(pm, TieredAttachmentContentStore.this.storeFor(tier)
+                    .getAttachmentContentLoadRunnable(attachment));
+            }
+        };
+    }
+
+    @Override
+    public TransactionRunnable<PersistenceManager> getAttachmentContentDeleteRunnable(final XWikiAttachment attachment)
+    {
+        // Deleting from every tier needs no read and removes content which was left by an interrupted migration.
+        final TransactionRunnable<PersistenceManager> out = new TransactionRunnable<PersistenceManager>();
+        for (final String tier : this.settings.getTiers()) {
+            this.storeFor(tier).getAttachmentContentDeleteRunnable(attachment).runIn(out);
+        }
+        return out;
+    }
+
+    /**
+     * Get a TransactionRunnable which saves content in a given tier, removes it from the tier it was in
+     * before and records the tier in the attachment metadata.
+     *
+     * @param content the content to save.
+     * @param tier the tier to save it in.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<PersistenceManager> getSaveRunnable(final XWikiAttachmentContent content, final String tier)
+    {
+        final TransactionRunnable<PersistenceManager> out = new TransactionRunnable<PersistenceManager>();
+        final DigestingAttachmentContent digesting = DigestingAttachmentContent.of(content);
+        this.storeFor(tier).getAttachmentContentSaveRunnable(digesting).runIn(out);
+        new RecordTierRunnable(digesting, tier, null, null, null).runIn(out);
+        this.deleteFromOtherTiers(content.getAttachment(), tier, out);
+        return out;
+    }
+
+    /**
+     * Get a TransactionRunnable which moves content from one tier to another.
+     * The transaction fails before the content is removed from the tier it was in if the attachment
+     * was saved, moved or deleted since the move was planned.
+     *
+     * @param content the content to move.
+     * @param from the tier which the content is in.
+     * @param to the tier to move it to.
+     * @param version the version of the attachment when the move was planned.
+     * @param digest the digest of the content when the move was planned.
+     * @return a new TransactionRunnable.
+     */
+    TransactionRunnable<PersistenceManager> getMoveRunnable(final XWikiAttachmentContent content,
+                                                            final String from,
+                                                            final String to,
+                                                            final String version,
+                                                            final String digest)
+    {
+        final TransactionRunnable<PersistenceManager> out = new TransactionRunnable<PersistenceManager>();
+        final DigestingAttachmentContent digesting = DigestingAttachmentContent.of(content);
+        this.storeFor(to).getAttachmentContentSaveRunnable(digesting).runIn(out);
+        new RecordTierRunnable(digesting, to, from, version, digest).runIn(out);
+        this.deleteFromOtherTiers(content.getAttachment(), to, out);
+        return out;
+    }
+
+    /**
+     * Remove the content of an attachment from every tier but one, after the tier has been recorded.
+     * The deletes are part of the transaction, they need no read and they are undone if it rolls back.
+     *
+     * @param attachment the attachment whose content is removed.
+     * @param tier the tier which holds the content.
+     * @param out the runnable to run the deletes in.
+     */
+    private void deleteFromOtherTiers(final XWikiAttachment attachment,
+                                      final String tier,
+                                      final TransactionRunnable<PersistenceManager> out)
+    {
+        for (final String other : this.settings.getTiers()) {
+            if (!other.equals(tier)) {
+                this.storeFor(other).getAttachmentContentDeleteRunnable(attachment).runIn(out);
+            }
+        }
+    }
+
+    /**
+     * Get the content store of a tier, looking it up the first time.
+     *
+     * @param tier the hint of the content store.
+     * @return the content store.
+     */
+    AttachmentContentStore<PersistenceManager> storeFor(final String tier)
+    {
+        AttachmentContentStore<PersistenceManager> store = this.stores.get(tier);
+        if (store == null) {
+            try {
+                store = this.componentManager.getInstance(AttachmentContentStore.class, tier);
+            } catch (ComponentLookupException e) {
+                throw new UnexpectedException("No attachment content store for tier [" + tier + "]", e);
+            }
+            this.stores.put(tier, store);
+        }
+        return store;
+    }
+
+    /**
+     * @param pm the PersistenceManager to read with.
+     * @param attach an attachment.
+     * @return the metadata of the attachment or null if there is none.
+     */
+    private PersistableAttachmentMetadata fetch(final PersistenceManager pm, final XWikiAttachment attach)
+    {
+        try {
+            return pm.getObjectById(PersistableAttachmentMetadata.class, this.idForAttach(attach));
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run a runnable of a tier in the PersistenceManager of the current transaction.
+     * The runnable is committed at once, this is only used for loads which change nothing when the
+     * transaction commits.
+     *
+     * @param pm the PersistenceManager of the current transaction.
+     * @param runnable the runnable to run.
+     * @throws TransactionException if the runnable fails.
+     */
+    private static void runInCurrent(final PersistenceManager pm,
+                                     final TransactionRunnable<PersistenceManager> runnable)
+        throws TransactionException
+    {
+        final StartableTransactionRunnable<PersistenceManager> inCurrent =
+            new StartableTransactionRunnable<PersistenceManager>() {
+                @Override
+                protected PersistenceManager getProvidedContext()
+                {
+                    return pm;
+                }
+            };
+        runnable.runIn(inCurrent);
+        inCurrent.start();
+    }
+
+    /**
+     * Get a serialized attachment reference for the attachment, the id of it's metadata.
+     *
+     * @param attach the attachment to get a serialized reference for.
+     * @return the serialized reference for the given attachment.
+     */
+    private String idForAttach(final XWikiAttachment attach)
+    {
+        final AttachmentReference ar =
+                new AttachmentReference(attach.getFilename(), attach.getDoc().getDocumentReference());
+        return this.referenceSerializer.serialize(ar);
+    }
+
+    /**
+     * Record the tier and the digest of the content of an attachment in it's metadata.
+     * For a move, the transaction fails here, before any content is removed, if the attachment changed.
+     */
+    private class RecordTierRunnable extends TransactionRunnable<PersistenceManager>
+    {
+        /** The content which was saved, it's digest was computed as the tier wrote it. */
+        private final DigestingAttachmentContent content;
+
+        /** The attachment whose content was saved. */
+        private final XWikiAttachment attachment;
+
+        /** The tier which the content was saved in. */
+        private final String tier;
+
+        /** The tier which the content must be in for a move to go ahead, null if this is not a move. */
+        private final String expectedTier;
+
+        /** The version which the attachment must have for a move to go ahead. */
+        private final String expectedVersion;
+
+        /** The digest which the content must have for a move to go ahead. */
+        private final String expectedDigest;
+
+        RecordTierRunnable(final DigestingAttachmentContent content,
+                           final String tier,
+                           final String expectedTier,
+                           final String expectedVersion,
+                           final String expectedDigest)
+        {
+            this.content = content;
+            this.attachment = content.getAttachment();
+            this.tier = tier;
+            this.expectedTier = expectedTier;
+            this.expectedVersion = expectedVersion;
+            this.expectedDigest = expectedDigest;
+        }
+
+        @Override
+        protected void onRun()
+        {
+            final TieredAttachmentContentStore store = TieredAttachmentContentStore.this;
+            final PersistenceManager pm = this.getContext();
+            PersistableAttachmentMetadata row = store.fetch(pm, this.attachment);
+            if (this.expectedTier != null) {
+                if (row == null) {
+                    throw new IllegalStateException("The attachment was deleted");
+                }
+                final String previousTier =
+                    (row.getTier() == null) ? store.settings.getDefaultTier() : row.getTier();
+                if (!previousTier.equals(this.expectedTier)
+                    || !StringUtils.equals(row.getVersion(), this.expectedVersion)
+                    || !StringUtils.equals(row.getDigest(), this.expectedDigest))
+                {
+                    throw new IllegalStateException("The attachment was changed");
+                }
+            }
+            if (row == null) {
+                // A new attachment, the metadata store fills the rest of the row when it saves the attachment.
+                row = new PersistableAttachmentMetadata(store.idForAttach(this.attachment),
+                    store.referenceSerializer.serialize(this.attachment.getDoc().getDocumentReference()));
+            }
+            row.setTier(this.tier);
+            final String digest = this.content.getDigest();
+            if (!StringUtils.equals(row.getDigest(), digest)) {
+                row.setDigest(digest);
+            }
+            pm.makePersistent(row);
+        }
+    }
+}
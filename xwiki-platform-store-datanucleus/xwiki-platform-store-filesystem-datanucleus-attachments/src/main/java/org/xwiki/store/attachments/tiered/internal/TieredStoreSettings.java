@@ -0,0 +1,180 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.tiered.internal;
+
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * The configuration of the tiered attachment content store, read once when the store is initialized.
+ * A tier is the hint of an AttachmentContentStore which takes part in DataNucleus transactions.
+ *
+ * @version $Id$
+ * @since TODO
+ */
+class TieredStoreSettings
+{
+    /** The tier of content which is small and not of a cold mime type. */
+    private static final String SMALL_TIER_PROPERTY = "store.attachments.tiered.smallTier";
+
+    /** The tier of content which is larger than the maximum small size or of a cold mime type. */
+    private static final String LARGE_TIER_PROPERTY = "store.attachments.tiered.largeTier";
+
+    /** The tier of content which was saved before the tier was recorded in the attachment metadata. */
+    private static final String DEFAULT_TIER_PROPERTY = "store.attachments.tiered.defaultTier";
+
+    /** The largest content which is placed in the small tier, in bytes. */
+    private static final String MAX_SMALL_SIZE_PROPERTY = "store.attachments.tiered.maxSmallSize";
+
+    /**
+     * A comma separated list of mime type prefixes, content of these types is placed in the large tier
+     * whatever it's size.
+     */
+    private static final String LARGE_MIME_TYPES_PROPERTY = "store.attachments.tiered.largeMimeTypes";
+
+    /**
+     * The number of seconds between runs of the migrator which moves content to the tier it belongs in,
+     * 0, the default, disables the migrator.
+     * It is only needed once the tier thresholds are changed or when switching to the tiered store.
+     */
+    private static final String MIGRATION_INTERVAL_PROPERTY = "store.attachments.tiered.migration.interval";
+
+    /** The number of attachments which the migrator moves between two pauses. */
+    private static final String MIGRATION_BATCH_SIZE_PROPERTY = "store.attachments.tiered.migration.batchSize";
+
+    /** The number of milliseconds the migrator pauses between two batches. */
+    private static final String MIGRATION_PAUSE_PROPERTY = "store.attachments.tiered.migration.pause";
+
+    /** The tier of small content. */
+    private final String smallTier;
+
+    /** The tier of large content. */
+    private final String largeTier;
+
+    /** The tier of content whose tier was not recorded. */
+    private final String defaultTier;
+
+    /** The largest content which is placed in the small tier. */
+    private final long maxSmallSize;
+
+    /** The mime type prefixes of content which is placed in the large tier. */
+    private final List<String> largeMimeTypes = new ArrayList<String>();
+
+    /** The number of seconds between migrator runs, 0 if disabled. */
+    private final long migrationInterval;
+
+    /** The number of attachments moved between two migrator pauses. */
+    private final int migrationBatchSize;
+
+    /** The number of milliseconds to pause between migrator batches. */
+    private final long migrationPause;
+
+    /**
+     * The Constructor.
+     *
+     * @param configuration the source of the configuration.
+     */
+    TieredStoreSettings(final ConfigurationSource configuration)
+    {
+        this.smallTier = configuration.getProperty(SMALL_TIER_PROPERTY, "datanucleus");
+        this.largeTier = configuration.getProperty(LARGE_TIER_PROPERTY, "file");
+        this.defaultTier = configuration.getProperty(DEFAULT_TIER_PROPERTY, "datanucleus");
+        this.maxSmallSize = configuration.getProperty(MAX_SMALL_SIZE_PROPERTY, 1L << 20);
+        final String mimeTypes = configuration.getProperty(LARGE_MIME_TYPES_PROPERTY,
+            "video/,audio/,application/zip,application/x-tar,application/x-gzip");
+        for (final String mimeType : mimeTypes.split(",")) {
+            if (mimeType.trim().length() > 0) {
+                this.largeMimeTypes.add(mimeType.trim());
+            }
+        }
+        this.migrationInterval = configuration.getProperty(MIGRATION_INTERVAL_PROPERTY, 0L);
+        this.migrationBatchSize = Math.max(1, configuration.getProperty(MIGRATION_BATCH_SIZE_PROPERTY, 100));
+        this.migrationPause = configuration.getProperty(MIGRATION_PAUSE_PROPERTY, 1000L);
+    }
+
+    /**
+     * Choose the tier which content belongs in.
+     * The mime type is guessed from the file name so that a save and the migrator always agree.
+     *
+     * @param size the size of the content in bytes.
+     * @param fileName the name of the attachment.
+     * @return the tier of the content.
+     */
+    String chooseTier(final long size, final String fileName)
+    {
+        if (size > this.maxSmallSize) {
+            return this.largeTier;
+        }
+        final String mimeType = URLConnection.guessContentTypeFromName(fileName);
+        if (mimeType != null) {
+            for (final String prefix : this.largeMimeTypes) {
+                if (mimeType.startsWith(prefix)) {
+                    return this.largeTier;
+                }
+            }
+        }
+        return this.smallTier;
+    }
+
+    /** @return every tier which content may be in. */
+    Set<String> getTiers()
+    {
+        final Set<String> out = new LinkedHashSet<String>();
+        out.add(this.smallTier);
+        out.add(this.largeTier);
+        out.add(this.defaultTier);
+        return out;
+    }
+
+    /** @return the tier of content whose tier was not recorded. */
+    String getDefaultTier()
+    {
+        return this.defaultTier;
+    }
+
+    /** @return true if content is moved to the tier it belongs in by a background migrator. */
+    boolean isMigrationEnabled()
+    {
+        return this.migrationInterval > 0;
+    }
+
+    /** @return the number of seconds between migrator runs. */
+    long getMigrationInterval()
+    {
+        return this.migrationInterval;
+    }
+
+    /** @return the number of attachments moved between two migrator pauses. */
+    int getMigrationBatchSize()
+    {
+        return this.migrationBatchSize;
+    }
+
+    /** @return the number of milliseconds to pause between migrator batches. */
+    long getMigrationPause()
+    {
+        return this.migrationPause;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.adapter.internal;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.jdo.PersistenceManager;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.annotation.ComponentAnnotationLoader;
+import org.xwiki.component.descriptor.ComponentDescriptor;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.test.XWikiComponentInitializer;
+
+/**
+ * Lookups of deleted attachments through the index from their ids to their references.
+ */
+public class DeletedAttachmentIndexTest
+{
+    /** The hint the recycle bin is registered with, the filesystem store has a recycle bin named "file". */
+    private static final String HINT = "DeletedAttachmentIndexTest";
+
+    private final Random random = new Random();
+
+    private XWikiComponentInitializer initializer;
+
+    private File temporaryDirectory;
+
+    private TransactionProvider<PersistenceManager> provider;
+
+    private EntityReferenceSerializer<String> serializer;
+
+    private FilesystemDataNucleusAttachmentRecycleBinStoreAdapter recycleBin;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.initializer = new XWikiComponentInitializer();
+        this.initializer.initializeConfigurationSource();
+        this.initializer.initializeExecution();
+        final ComponentManager componentManager = this.initializer.getComponentManager();
+
+        this.temporaryDirectory = File.createTempFile("DeletedAttachmentIndexTest", "");
+        FileUtils.forceDelete(this.temporaryDirectory);
+        FileUtils.forceMkdir(this.temporaryDirectory);
+        final DefaultComponentDescriptor<Environment> environment = new DefaultComponentDescriptor<Environment>();
+        environment.setRoleType(Environment.class);
+        componentManager.registerComponent(environment, new Environment()
+        {
+            @Override
+            public File getTemporaryDirectory()
+            {
+                return DeletedAttachmentIndexTest.this.temporaryDirectory;
+            }
+
+            @Override
+            public File getPermanentDirectory()
+            {
+                return DeletedAttachmentIndexTest.this.temporaryDirectory;
+            }
+
+            @Override
+            public URL getResource(final String resourceName)
+            {
+                return null;
+            }
+
+            @Override
+            public InputStream getResourceAsStream(final String resourceName)
+            {
+                return null;
+            }
+        });
+
+        final List<ComponentDescriptor> descriptors = new ComponentAnnotationLoader()
+            .getComponentsDescriptors(FilesystemDataNucleusAttachmentRecycleBinStoreAdapter.class);
+        for (final ComponentDescriptor descriptor : descriptors) {
+            ((DefaultComponentDescriptor) descriptor).setRoleHint(HINT);
+            componentManager.registerComponent(descriptor);
+        }
+        this.recycleBin = (FilesystemDataNucleusAttachmentRecycleBinStoreAdapter)
+            componentManager.getInstance(descriptors.get(0).getRoleType(), HINT);
+        this.provider = componentManager.getInstance(
+            new DefaultParameterizedType(null, TransactionProvider.class, PersistenceManager.class), "datanucleus");
+        this.serializer = componentManager.getInstance(
+            new DefaultParameterizedType(null, EntityReferenceSerializer.class, String.class));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.initializer.shutdown();
+        FileUtils.deleteDirectory(this.temporaryDirectory);
+    }
+
+    @Test
+    public void testLookupById() throws Exception
+    {
+        final DocumentReference document = this.newDocumentReference();
+        final AttachmentReference attachment = new AttachmentReference("file.txt", document);
+        final long id = this.random.nextLong();
+        this.index(document, attachment, id);
+
+        Assert.assertEquals(attachment, this.recycleBin.getAttachmentReferenceForId(id));
+        Assert.assertNull(this.recycleBin.getAttachmentReferenceForId(id + 1));
+    }
+
+    @Test
+    public void testLookupManyIds() throws Exception
+    {
+        final DocumentReference document = this.newDocumentReference();
+        final AttachmentReference first = new AttachmentReference("first.txt", document);
+        final AttachmentReference second = new AttachmentReference("second.txt", document);
+        final long firstId = this.random.nextLong();
+        final long secondId = firstId + 1;
+        final long missingId = firstId + 2;
+        this.index(document, first, firstId);
+        this.index(document, second, secondId);
+
+        final Map<Long, AttachmentReference> found =
+            this.recycleBin.getAttachmentReferencesForIds(Arrays.asList(firstId, secondId, missingId));
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals(first, found.get(firstId));
+        Assert.assertEquals(second, found.get(secondId));
+    }
+
+    @Test
+    public void testListDeletedAttachmentIds() throws Exception
+    {
+        final DocumentReference document = this.newDocumentReference();
+        final List<Long> ids = new ArrayList<Long>();
+        final long base = this.random.nextInt(1 << 30);
+        // Indexed out of order, they are listed in ascending order.
+        for (final long offset : new long[] { 4, 0, 3, 1, 2 }) {
+            ids.add(base + offset);
+            this.index(document, new AttachmentReference("file" + offset + ".txt", document), base + offset);
+        }
+        final DocumentReference other = this.newDocumentReference();
+        this.index(other, new AttachmentReference("other.txt", other), base + 5);
+
+        Assert.assertEquals(Arrays.asList(base, base + 1, base + 2),
+                            this.recycleBin.getDeletedAttachmentIds(document, Long.MIN_VALUE, 3));
+        Assert.assertEquals(Arrays.asList(base + 3, base + 4),
+                            this.recycleBin.getDeletedAttachmentIds(document, base + 2, 3));
+        Assert.assertEquals(0, this.recycleBin.getDeletedAttachmentIds(document, base + 4, 3).size());
+    }
+
+    private DocumentReference newDocumentReference()
+    {
+        return new DocumentReference("xwiki", "DeletedAttachmentIndexTest",
+                                     "Document" + Math.abs(this.random.nextLong()));
+    }
+
+    /** Write an entry of the index the way the recycle bin does when an attachment is deleted. */
+    private void index(final DocumentReference document, final AttachmentReference attachment, final long id)
+        throws Exception
+    {
+        final DeletedAttachmentIndexEntry entry = new DeletedAttachmentIndexEntry(
+            id, this.serializer.serialize(attachment), this.serializer.serialize(document));
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                this.getContext().makePersistent(entry);
+            }
+        }.runIn(transaction);
+        transaction.start();
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.store.attachments.tiered.internal;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import com.xpn.xwiki.doc.XWikiDocument;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.store.StartableTransactionRunnable;
+import org.xwiki.store.TransactionException;
+import org.xwiki.store.TransactionProvider;
+import org.xwiki.store.TransactionRunnable;
+import org.xwiki.store.attachments.datanucleus.internal.PersistableAttachmentMetadata;
+import org.xwiki.store.attachments.newstore.internal.AttachmentContentStore;
+import org.xwiki.store.attachments.newstore.internal.AttachmentStore;
+import org.xwiki.test.MockConfigurationSource;
+import org.xwiki.test.XWikiComponentInitializer;
+
+/**
+ * Placement of attachment content in the tiers of {@link TieredAttachmentContentStore} and moves between them.
+ * The tiers are in memory stores which undo their changes when the transaction rolls back.
+ */
+public class TieredAttachmentContentStoreTest
+{
+    private static final String SMALL_TIER = "TieredAttachmentContentStoreTest-small";
+
+    private static final String LARGE_TIER = "TieredAttachmentContentStoreTest-large";
+
+    /** The largest content which is placed in the small tier. */
+    private static final long MAX_SMALL_SIZE = 1000;
+
+    private final Random random = new Random();
+
+    private XWikiComponentInitializer initializer;
+
+    private TransactionProvider<PersistenceManager> provider;
+
+    private EntityReferenceSerializer<String> serializer;
+
+    private EntityReferenceResolver<String> resolver;
+
+    private AttachmentStore<PersistenceManager> metaStore;
+
+    private TieredAttachmentContentStore store;
+
+    private MemoryAttachmentContentStore small;
+
+    private MemoryAttachmentContentStore large;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.initializer = new XWikiComponentInitializer();
+        this.initializer.initializeConfigurationSource();
+        this.configure(this.initializer.getConfigurationSource(), MAX_SMALL_SIZE);
+        this.initializer.initializeExecution();
+        final ComponentManager componentManager = this.initializer.getComponentManager();
+
+        this.small = new MemoryAttachmentContentStore();
+        this.large = new MemoryAttachmentContentStore();
+        this.registerTier(SMALL_TIER, this.small);
+        this.registerTier(LARGE_TIER, this.large);
+
+        this.provider = componentManager.getInstance(
+            new DefaultParameterizedType(null, TransactionProvider.class, PersistenceManager.class), "datanucleus");
+        this.serializer = componentManager.getInstance(
+            new DefaultParameterizedType(null, EntityReferenceSerializer.class, String.class));
+        this.resolver = componentManager.getInstance(
+            new DefaultParameterizedType(null, EntityReferenceResolver.class, String.class));
+        this.metaStore = componentManager.getInstance(AttachmentStore.class, "datanucleus");
+        this.store = (TieredAttachmentContentStore) componentManager.getInstance(AttachmentContentStore.class,
+                                                                                 "tiered");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.initializer.shutdown();
+    }
+
+    @Test
+    public void testPlacementBySize() throws Exception
+    {
+        final XWikiAttachment smallAttach = this.newAttachment("small.txt", this.content((int) MAX_SMALL_SIZE));
+        final XWikiAttachment largeAttach = this.newAttachment("large.txt", this.content((int) MAX_SMALL_SIZE + 1));
+        this.save(smallAttach);
+        this.save(largeAttach);
+
+        Assert.assertEquals(SMALL_TIER, this.read(smallAttach, "tier"));
+        Assert.assertTrue(this.small.contains(smallAttach));
+        Assert.assertFalse(this.large.contains(smallAttach));
+        Assert.assertEquals(LARGE_TIER, this.read(largeAttach, "tier"));
+        Assert.assertTrue(this.large.contains(largeAttach));
+        Assert.assertFalse(this.small.contains(largeAttach));
+        Assert.assertEquals(sha256(largeAttach.getContent(null)), this.read(largeAttach, "digest"));
+        Assert.assertArrayEquals(largeAttach.getContent(null), this.load(largeAttach));
+    }
+
+    @Test
+    public void testPlacementByMimeType() throws Exception
+    {
+        final XWikiAttachment attach = this.newAttachment("movie.mpeg", this.content(10));
+        this.save(attach);
+
+        Assert.assertEquals(LARGE_TIER, this.read(attach, "tier"));
+        Assert.assertTrue(this.large.contains(attach));
+    }
+
+    @Test
+    public void testSaveRemovesContentFromOtherTier() throws Exception
+    {
+        final XWikiAttachment attach = this.newAttachment("file.txt", this.content(10));
+        this.save(attach);
+        final byte[] grown = this.content((int) MAX_SMALL_SIZE * 2);
+        attach.setContent(new ByteArrayInputStream(grown));
+        this.save(attach);
+
+        Assert.assertEquals(LARGE_TIER, this.read(attach, "tier"));
+        Assert.assertFalse(this.small.contains(attach));
+        Assert.assertArrayEquals(grown, this.load(attach));
+    }
+
+    @Test
+    public void testMigration() throws Exception
+    {
+        final XWikiAttachment attach = this.newAttachment("file.txt", this.content((int) MAX_SMALL_SIZE / 2));
+        this.save(attach);
+        Assert.assertEquals(SMALL_TIER, this.read(attach, "tier"));
+
+        // Content saved before the threshold was lowered is moved by the migrator.
+        final MockConfigurationSource lowered = new MockConfigurationSource();
+        this.configure(lowered, MAX_SMALL_SIZE / 4);
+        new AttachmentTierMigrator(this.store, this.provider, new TieredStoreSettings(lowered), this.resolver).run();
+
+        Assert.assertEquals(LARGE_TIER, this.read(attach, "tier"));
+        Assert.assertEquals(sha256(attach.getContent(null)), this.read(attach, "digest"));
+        Assert.assertFalse(this.small.contains(attach));
+        Assert.assertArrayEquals(attach.getContent(null), this.large.get(attach));
+    }
+
+    @Test
+    public void testMoveOfChangedAttachmentRollsBack() throws Exception
+    {
+        final XWikiAttachment attach = this.newAttachment("file.txt", this.content(10));
+        this.save(attach);
+
+        try {
+            this.run(this.store.getMoveRunnable(attach.getAttachment_content(), SMALL_TIER, LARGE_TIER,
+                                                this.read(attach, "version") + "-changed",
+                                                this.read(attach, "digest")));
+            Assert.fail("The content of a changed attachment was moved");
+        } catch (TransactionException e) {
+            // The attachment was changed since the move was planned.
+        }
+
+        Assert.assertEquals(SMALL_TIER, this.read(attach, "tier"));
+        Assert.assertTrue(this.small.contains(attach));
+        Assert.assertFalse(this.large.contains(attach));
+        Assert.assertArrayEquals(attach.getContent(null), this.load(attach));
+    }
+
+    private void configure(final MockConfigurationSource configuration, final long maxSmallSize)
+    {
+        configuration.setProperty("store.attachments.tiered.smallTier", SMALL_TIER);
+        configuration.setProperty("store.attachments.tiered.largeTier", LARGE_TIER);
+        configuration.setProperty("store.attachments.tiered.defaultTier", SMALL_TIER);
+        configuration.setProperty("store.attachments.tiered.maxSmallSize", maxSmallSize);
+        configuration.setProperty("store.attachments.tiered.largeMimeTypes", "video/");
+        configuration.setProperty("store.attachments.tiered.migration.pause", 0L);
+    }
+
+    private void registerTier(final String tier, final MemoryAttachmentContentStore tierStore) throws Exception
+    {
+        final DefaultComponentDescriptor<AttachmentContentStore> descriptor =
+            new DefaultComponentDescriptor<AttachmentContentStore>();
+        descriptor.setRoleType(AttachmentContentStore.class);
+        descriptor.setRoleHint(tier);
+        this.initializer.getComponentManager().registerComponent(descriptor, tierStore);
+    }
+
+    private XWikiAttachment newAttachment(final String fileName, final byte[] content) throws Exception
+    {
+        final DocumentReference docRef = new DocumentReference("xwiki", "TieredAttachmentContentStoreTest",
+                                                               "Document" + Math.abs(this.random.nextLong()));
+        final XWikiAttachment attach = new XWikiAttachment(new XWikiDocument(docRef), fileName);
+        attach.setContent(new ByteArrayInputStream(content));
+        return attach;
+    }
+
+    private byte[] content(final int length)
+    {
+        final byte[] content = new byte[length];
+        this.random.nextBytes(content);
+        return content;
+    }
+
+    /** Save the content and the metadata of an attachment the way the document store does. */
+    private void save(final XWikiAttachment attach) throws Exception
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        this.store.getAttachmentContentSaveRunnable(attach.getAttachment_content()).runIn(transaction);
+        this.metaStore.getAttachmentSaveRunnable(Arrays.asList(attach)).runIn(transaction);
+        transaction.start();
+    }
+
+    /** Load the content of an attachment into a copy of it, through the tier recorded in it's metadata. */
+    private byte[] load(final XWikiAttachment attach) throws Exception
+    {
+        final XWikiAttachment copy = new XWikiAttachment(attach.getDoc(), attach.getFilename());
+        this.run(this.store.getAttachmentContentLoadRunnable(copy));
+        return copy.getContent(null);
+    }
+
+    /**
+     * Read one field of the metadata of an attachment.
+     *
+     * @param attach the attachment.
+     * @param field the name of the field of {@link PersistableAttachmentMetadata}.
+     * @return the value of the field.
+     */
+    private String read(final XWikiAttachment attach, final String field) throws Exception
+    {
+        final String id = this.serializer.serialize(
+            new AttachmentReference(attach.getFilename(), attach.getDoc().getDocumentReference()));
+        final String[] out = new String[1];
+        this.run(new TransactionRunnable<PersistenceManager>() {
+            @Override
+            protected void onRun()
+            {
+                final Query query = this.getContext().newQuery(PersistableAttachmentMetadata.class, "id == :id");
+                query.setResult(field);
+                query.setUnique(true);
+                out[0] = (String) query.execute(id);
+                query.closeAll();
+            }
+        });
+        return out[0];
+    }
+
+    private void run(final TransactionRunnable<PersistenceManager> runnable) throws TransactionException
+    {
+        final StartableTransactionRunnable<PersistenceManager> transaction = this.provider.get();
+        runnable.runIn(transaction);
+        transaction.start();
+    }
+
+    private static String sha256(final byte[] content) throws Exception
+    {
+        return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(content)));
+    }
+
+    /** A tier which holds content in memory, each change is undone if it's transaction rolls back. */
+    private static class MemoryAttachmentContentStore implements AttachmentContentStore<PersistenceManager>
+    {
+        private final Map<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+
+        boolean contains(final XWikiAttachment attach)
+        {
+            return this.contents.containsKey(key(attach));
+        }
+
+        byte[] get(final XWikiAttachment attach)
+        {
+            return this.contents.get(key(attach));
+        }
+
+        @Override
+        public TransactionRunnable<PersistenceManager> getAttachmentContentSaveRunnable(
+            final XWikiAttachmentContent content)
+        {
+            return new ChangeRunnable(key(content.getAttachment()), content);
+        }
+
+        @Override
+        public TransactionRunnable<PersistenceManager> getAttachmentContentLoadRunnable(
+            final XWikiAttachment attachment)
+        {
+            return new TransactionRunnable<PersistenceManager>() {
+                @Override
+                protected void onRun() throws Exception
+                {
+                    final byte[] content = MemoryAttachmentContentStore.this.contents.get(key(attachment));
+                    if (content != null) {
+                        attachment.setContent(new ByteArrayInputStream(content));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public TransactionRunnable<PersistenceManager> getAttachmentContentDeleteRunnable(
+            final XWikiAttachment attachment)
+        {
+            return new ChangeRunnable(key(attachment), null);
+        }
+
+        private static String key(final XWikiAttachment attach)
+        {
+            return attach.getDoc().getDocumentReference() + "@" + attach.getFilename();
+        }
+
+        /** Put or remove the content of an attachment, the previous content is put back on rollback. */
+        private class ChangeRunnable extends TransactionRunnable<PersistenceManager>
+        {
+            private final String key;
+
+            /** The content to put, null to remove it. */
+            private final XWikiAttachmentContent content;
+
+            private byte[] previous;
+
+            /** True once the change was made, a change which did not run is not undone. */
+            private boolean changed;
+
+            ChangeRunnable(final String key, final XWikiAttachmentContent content)
+            {
+                this.key = key;
+                this.content = content;
+            }
+
+            @Override
+            protected void onRun() throws Exception
+            {
+                final Map<String, byte[]> contents = MemoryAttachmentContentStore.this.contents;
+                if (this.content == null) {
+                    this.previous = contents.remove(this.key);
+                } else {
+                    this.previous = contents.put(this.key, IOUtils.toByteArray(this.content.getContentInputStream()));
+                }
+                this.changed = true;
+            }
+
+            @Override
+            protected void onRollback()
+            {
+                if (!this.changed) {
+                    return;
+                }
+                if (this.previous == null) {
+                    MemoryAttachmentContentStore.this.contents.remove(this.key);
+                } else {
+                    MemoryAttachmentContentStore.this.contents.put(this.key, this.previous);
+                }
+            }
+        }
+    }
+}